@@ -0,0 +1,498 @@
+package matcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.DoubleConsumer;
+import java.util.stream.Stream;
+
+import matcher.Matcher.MatchingStatus;
+import matcher.classifier.ClassifierLevel;
+import matcher.classifier.ClassifierProfiler;
+import matcher.classifier.ClassifierUtil;
+import matcher.classifier.MatchingCache;
+import matcher.config.ProjectConfig;
+import matcher.mapping.MappingFormat;
+import matcher.mapping.Mappings;
+import matcher.mapping.MappingsExportVerbosity;
+import matcher.serdes.MatchesIo;
+import matcher.type.ClassEnvironment;
+import matcher.type.InputFile;
+import matcher.type.LocalClassEnv;
+import matcher.type.ParseDepth;
+import matcher.type.RuntimeClassIndex;
+
+/**
+ * Batch matching entry point that drives {@link Matcher} without starting the JavaFX gui.
+ *
+ * <p>Progress and results are reported as tab separated lines to stdout or the file given with --report, all other
+ * output including the matcher's log goes to stderr:
+ * <pre>
+ * stage	&lt;name&gt;	start
+ * progress	&lt;name&gt;	&lt;fraction&gt;
+ * stage	&lt;name&gt;	done	&lt;millis&gt;
+ * status	&lt;kind&gt;	&lt;matched&gt;	&lt;total&gt;
+ * cache	&lt;hits&gt;	&lt;misses&gt;	&lt;evictions&gt;
+ * classifier	&lt;type&gt;	&lt;level&gt;	&lt;name&gt;	&lt;calls&gt;	&lt;total ns&gt;	&lt;p50 ns&gt;	&lt;p90 ns&gt;	&lt;p99 ns&gt;	&lt;max mismatch exits&gt;	&lt;bound exits&gt;	&lt;ranked pairs&gt;
+ * error	&lt;message&gt;
+ * </pre>
+ */
+public class HeadlessMain {
+	public static void main(String[] args) {
+		PrintStream stdout = System.out;
+		System.setOut(System.err); // keep stdout for the report, the matcher logs through System.out
+
+		HeadlessMain main = new HeadlessMain(stdout);
+		int ret;
+
+		try {
+			main.parseArgs(args);
+			ret = main.run();
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			printUsage(System.err);
+			ret = 2;
+		} catch (Throwable t) {
+			t.printStackTrace();
+			main.report("error", String.valueOf(t.getMessage()).replace('\n', ' '));
+			ret = 1;
+		} finally {
+			if (main.report != stdout) main.report.close();
+		}
+
+		System.exit(ret);
+	}
+
+	private HeadlessMain(PrintStream report) {
+		this.report = report;
+	}
+
+	private static void printUsage(PrintStream out) {
+		out.println("usage: --headless [options]");
+		out.println("project setup:");
+		out.println("  --config <file>             properties file with paths-a, paths-b, class-path-a, class-path-b, paths-shared,");
+		out.println("                              inputs-before-classpath, non-obfuscated-{class,member}-pattern-{a,b}");
+		out.println("  --a <path>, --b <path>      input jar or class directory for side a/b (repeatable)");
+		out.println("  --cp <path>, --cp-a <path>, --cp-b <path>  shared/side a/side b class path entry (repeatable)");
+		out.println("  --inputs-before-cp          process inputs before the class path");
+		out.println("  --non-obf-cls-a/b <regex>, --non-obf-mem-a/b <regex>  non-obfuscated name patterns");
+		out.println("  --matches <file>            load matches, initializes the project from its header if no inputs are given");
+		out.println("  --input-dir <dir>           dir to search for the inputs listed in --matches (repeatable)");
+		out.println("  --no-verify                 skip input file hash verification for --matches");
+		out.println("  --snapshot-dir <dir>        restore the extracted classes from a snapshot of the same inputs, write one otherwise");
+		out.println("  --hash-cache <file>         persist input file hashes, skips rehashing unchanged inputs");
+		out.println("  --runtime-digest-dir <dir>  persist the digests of used JDK classes, skips parsing them again");
+		out.println("  --cp-parse-depth <depth>    parse depth for shared class path classes (full, members), default members");
+		out.println("  --mappings-a/b <path>       load mappings for side a/b, format from --mappings-in-format or auto detected");
+		out.println("matching:");
+		out.println("  --threads <n>               matching worker thread count");
+		out.println("  --levels <l1,l2,..>         auto match levels (Initial,Intermediate,Full,Extra), default all");
+		out.println("  --no-auto-match             skip auto matching");
+		out.println("  --no-vars                   skip method arg/var matching");
+		out.println("  --no-duplicates             don't match classes with unique identical normalized bytecode before ranking");
+		out.println("  --exhaustive-class-ranking  rank classes against all candidates instead of the pre-filtered ones");
+		out.println("  --approx-class-candidates   only rank classes with similar method code (LSH), faster but may miss matches");
+		out.println("  --profile-classifiers       report per classifier timings and early exits after auto matching");
+		out.println("  --alignment-memory <mib>    memory limit per instruction alignment, larger ones are skipped, default 64");
+		out.println("  --cache-memory <mib>        memory limit for the matching cache, default 256 or a quarter of the heap");
+		out.println("output:");
+		out.println("  --save-matches <file>       write matches");
+		out.println("  --save-mappings <path>      write mappings, --mappings-format <fmt> --mappings-side <a|b>");
+		out.println("                              --src-name <type> --dst-name <type> --verbosity <v>");
+		out.println("  --report <file>             write the machine readable report to a file instead of stdout");
+	}
+
+	private void parseArgs(String[] args) throws IOException {
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+
+			switch (arg) {
+			case "--headless":
+				break;
+			case "--config":
+				loadConfig(Paths.get(value(args, ++i, arg)));
+				break;
+			case "--a":
+				pathsA.add(Paths.get(value(args, ++i, arg)));
+				break;
+			case "--b":
+				pathsB.add(Paths.get(value(args, ++i, arg)));
+				break;
+			case "--cp":
+				sharedClassPath.add(Paths.get(value(args, ++i, arg)));
+				break;
+			case "--cp-a":
+				classPathA.add(Paths.get(value(args, ++i, arg)));
+				break;
+			case "--cp-b":
+				classPathB.add(Paths.get(value(args, ++i, arg)));
+				break;
+			case "--inputs-before-cp":
+				inputsBeforeClassPath = true;
+				break;
+			case "--non-obf-cls-a":
+				nonObfuscatedClassPatternA = value(args, ++i, arg);
+				break;
+			case "--non-obf-cls-b":
+				nonObfuscatedClassPatternB = value(args, ++i, arg);
+				break;
+			case "--non-obf-mem-a":
+				nonObfuscatedMemberPatternA = value(args, ++i, arg);
+				break;
+			case "--non-obf-mem-b":
+				nonObfuscatedMemberPatternB = value(args, ++i, arg);
+				break;
+			case "--matches":
+				matchesIn = Paths.get(value(args, ++i, arg));
+				break;
+			case "--input-dir":
+				inputDirs.add(Paths.get(value(args, ++i, arg)));
+				break;
+			case "--snapshot-dir":
+				snapshotDir = Paths.get(value(args, ++i, arg));
+				break;
+			case "--hash-cache":
+				hashCacheFile = Paths.get(value(args, ++i, arg));
+				break;
+			case "--runtime-digest-dir":
+				runtimeDigestDir = Paths.get(value(args, ++i, arg));
+				break;
+			case "--cp-parse-depth":
+				sharedClassPathParseDepth = parseEnum(ParseDepth.class, value(args, ++i, arg));
+				break;
+			case "--no-verify":
+				verifyInputs = false;
+				break;
+			case "--mappings-a":
+				mappingsA = Paths.get(value(args, ++i, arg));
+				break;
+			case "--mappings-b":
+				mappingsB = Paths.get(value(args, ++i, arg));
+				break;
+			case "--mappings-in-format":
+				mappingsInFormat = parseEnum(MappingFormat.class, value(args, ++i, arg));
+				break;
+			case "--threads":
+				threads = Integer.parseInt(value(args, ++i, arg));
+				if (threads <= 0) throw new IllegalArgumentException("invalid thread count: "+threads);
+				break;
+			case "--levels":
+				levels = EnumSet.noneOf(ClassifierLevel.class);
+
+				for (String level : value(args, ++i, arg).split(",")) {
+					levels.add(parseEnum(ClassifierLevel.class, level.trim()));
+				}
+
+				break;
+			case "--no-auto-match":
+				autoMatch = false;
+				break;
+			case "--no-vars":
+				matchVars = false;
+				break;
+			case "--no-duplicates":
+				matchDuplicates = false;
+				break;
+			case "--exhaustive-class-ranking":
+				exhaustiveClassRanking = true;
+				break;
+			case "--approx-class-candidates":
+				approximateClassCandidates = true;
+				break;
+			case "--profile-classifiers":
+				profileClassifiers = true;
+				break;
+			case "--alignment-memory":
+				alignmentMemory = Long.parseLong(value(args, ++i, arg));
+				if (alignmentMemory <= 0) throw new IllegalArgumentException("invalid alignment memory: "+alignmentMemory);
+				break;
+			case "--cache-memory":
+				cacheMemory = Long.parseLong(value(args, ++i, arg));
+				if (cacheMemory <= 0) throw new IllegalArgumentException("invalid cache memory: "+cacheMemory);
+				break;
+			case "--save-matches":
+				matchesOut = Paths.get(value(args, ++i, arg));
+				break;
+			case "--save-mappings":
+				mappingsOut = Paths.get(value(args, ++i, arg));
+				break;
+			case "--mappings-format":
+				mappingsOutFormat = parseEnum(MappingFormat.class, value(args, ++i, arg));
+				break;
+			case "--mappings-side": {
+				String side = value(args, ++i, arg);
+				if (!side.equals("a") && !side.equals("b")) throw new IllegalArgumentException("invalid mappings side: "+side);
+				mappingsOutA = side.equals("a");
+				break;
+			}
+			case "--src-name":
+				srcName = parseEnum(NameType.class, value(args, ++i, arg));
+				break;
+			case "--dst-name":
+				dstName = parseEnum(NameType.class, value(args, ++i, arg));
+				break;
+			case "--verbosity":
+				verbosity = parseEnum(MappingsExportVerbosity.class, value(args, ++i, arg));
+				break;
+			case "--report":
+				report = new PrintStream(Files.newOutputStream(Paths.get(value(args, ++i, arg))), true, "UTF-8");
+				break;
+			default:
+				throw new IllegalArgumentException("unknown argument: "+arg);
+			}
+		}
+
+		if (pathsA.isEmpty() != pathsB.isEmpty()) throw new IllegalArgumentException("inputs are required for both a and b");
+
+		if (pathsA.isEmpty()) {
+			if (matchesIn == null) throw new IllegalArgumentException("no inputs or matches file specified");
+			if (inputDirs.isEmpty()) throw new IllegalArgumentException("--input-dir is required to initialize the project from a matches file");
+		}
+
+		if (mappingsOut != null && mappingsOutFormat == null) {
+			mappingsOutFormat = getFormat(mappingsOut);
+			if (mappingsOutFormat == null) throw new IllegalArgumentException("can't determine the mapping format for "+mappingsOut+", use --mappings-format");
+		}
+	}
+
+	private static String value(String[] args, int idx, String arg) {
+		if (idx >= args.length) throw new IllegalArgumentException("missing value for "+arg);
+
+		return args[idx];
+	}
+
+	private static <T extends Enum<T>> T parseEnum(Class<T> cls, String value) {
+		for (T e : cls.getEnumConstants()) {
+			if (e.name().equalsIgnoreCase(value)) return e;
+		}
+
+		throw new IllegalArgumentException("invalid "+cls.getSimpleName()+": "+value);
+	}
+
+	private void loadConfig(Path file) throws IOException {
+		Properties props = new Properties();
+
+		try (Reader reader = Files.newBufferedReader(file)) {
+			props.load(reader);
+		}
+
+		Path base = file.toAbsolutePath().getParent();
+
+		addPaths(props.getProperty("paths-a"), base, pathsA);
+		addPaths(props.getProperty("paths-b"), base, pathsB);
+		addPaths(props.getProperty("class-path-a"), base, classPathA);
+		addPaths(props.getProperty("class-path-b"), base, classPathB);
+		addPaths(props.getProperty("paths-shared"), base, sharedClassPath);
+		inputsBeforeClassPath |= Boolean.parseBoolean(props.getProperty("inputs-before-classpath", "false"));
+		nonObfuscatedClassPatternA = props.getProperty("non-obfuscated-class-pattern-a", nonObfuscatedClassPatternA);
+		nonObfuscatedClassPatternB = props.getProperty("non-obfuscated-class-pattern-b", nonObfuscatedClassPatternB);
+		nonObfuscatedMemberPatternA = props.getProperty("non-obfuscated-member-pattern-a", nonObfuscatedMemberPatternA);
+		nonObfuscatedMemberPatternB = props.getProperty("non-obfuscated-member-pattern-b", nonObfuscatedMemberPatternB);
+	}
+
+	private static void addPaths(String value, Path base, List<Path> out) {
+		if (value == null) return;
+
+		for (String path : value.split(File.pathSeparator)) {
+			path = path.trim();
+			if (!path.isEmpty()) out.add(base.resolve(path));
+		}
+	}
+
+	private static MappingFormat getFormat(Path path) {
+		String fileName = path.getFileName().toString().toLowerCase(Locale.ENGLISH);
+
+		for (MappingFormat format : MappingFormat.values()) {
+			if (format.hasSingleFile() && fileName.endsWith("."+format.fileExt)) {
+				// prefer the longest matching extension, tiny.gz over tiny
+				if (format == MappingFormat.TINY && fileName.endsWith("."+MappingFormat.TINY_GZIP.fileExt)) continue;
+
+				return format;
+			}
+		}
+
+		return null;
+	}
+
+	private int run() throws IOException {
+		if (threads > 0) Matcher.setParallelism(threads);
+		if (alignmentMemory > 0) ClassifierUtil.setAlignmentMemoryBudget(alignmentMemory << 20);
+
+		Matcher.init();
+
+		ClassEnvironment env = new ClassEnvironment();
+		if (cacheMemory > 0) env.getCache().setMemoryBudget(cacheMemory << 20);
+		env.setSnapshotDir(snapshotDir);
+		env.setSharedClassPathParseDepth(sharedClassPathParseDepth);
+		InputFile.setHashCacheFile(hashCacheFile);
+		RuntimeClassIndex.setDigestDir(runtimeDigestDir);
+		Matcher matcher = new Matcher(env);
+		matcher.setExhaustiveClassRanking(exhaustiveClassRanking);
+		matcher.setApproximateClassCandidates(approximateClassCandidates);
+		matcher.setMatchDuplicates(matchDuplicates);
+
+		if (!pathsA.isEmpty()) {
+			ProjectConfig config = new ProjectConfig(pathsA, pathsB, classPathA, classPathB, sharedClassPath, inputsBeforeClassPath,
+					nonObfuscatedClassPatternA, nonObfuscatedClassPatternB, nonObfuscatedMemberPatternA, nonObfuscatedMemberPatternB);
+			if (!config.isValid()) throw new IllegalArgumentException("invalid project configuration");
+
+			runStage("init", progress -> matcher.init(config, progress));
+
+			if (matchesIn != null) {
+				runStage("load-matches", progress -> MatchesIo.read(matchesIn, null, verifyInputs, matcher, progress));
+			}
+		} else {
+			runStage("load-matches", progress -> MatchesIo.read(matchesIn, inputDirs, verifyInputs, matcher, progress));
+		}
+
+		if (mappingsA != null) loadMappings("load-mappings-a", mappingsA, env.getEnvA());
+		if (mappingsB != null) loadMappings("load-mappings-b", mappingsB, env.getEnvB());
+
+		if (autoMatch) {
+			ClassifierProfiler.setEnabled(profileClassifiers);
+			runStage("auto-match", progress -> matcher.autoMatchAll(levels, matchVars, progress));
+			ClassifierProfiler.setEnabled(false);
+
+			MatchingCache.Stats cacheStats = env.getCache().getStats();
+			report("cache", Long.toString(cacheStats.hits), Long.toString(cacheStats.misses), Long.toString(cacheStats.evictions));
+
+			if (profileClassifiers) reportClassifierProfile();
+		}
+
+		reportStatus(matcher.getStatus(true));
+
+		if (matchesOut != null) {
+			Files.deleteIfExists(matchesOut);
+
+			if (!MatchesIo.write(matcher, matchesOut)) {
+				report("warning", "no matches to save");
+			} else {
+				report("output", "matches", matchesOut.toString());
+			}
+		}
+
+		if (mappingsOut != null) {
+			if (!mappingsOutFormat.hasSingleFile() && Files.isDirectory(mappingsOut)) {
+				try (Stream<Path> stream = Files.list(mappingsOut)) {
+					if (stream.findAny().isPresent()) throw new IOException("mapping dir "+mappingsOut+" is not empty");
+				}
+			} else {
+				Files.deleteIfExists(mappingsOut);
+			}
+
+			if (!Mappings.save(mappingsOut, mappingsOutFormat, mappingsOutA ? env.getEnvA() : env.getEnvB(), srcName, dstName, verbosity)) {
+				report("warning", "no mappings to save");
+			} else {
+				report("output", "mappings", mappingsOut.toString());
+			}
+		}
+
+		return 0;
+	}
+
+	private void loadMappings(String stage, Path path, LocalClassEnv env) throws IOException {
+		long start = System.nanoTime();
+		report("stage", stage, "start");
+		Mappings.load(path, mappingsInFormat, env, true); // null format = auto detect
+		report("stage", stage, "done", Long.toString((System.nanoTime() - start) / 1000000));
+	}
+
+	private void runStage(String name, IoConsumer<DoubleConsumer> task) throws IOException {
+		long start = System.nanoTime();
+		report("stage", name, "start");
+
+		task.accept(new DoubleConsumer() {
+			@Override
+			public synchronized void accept(double progress) {
+				// throttle to 1% steps, progress may be reported concurrently and out of order
+				int step = (int) (progress * 100);
+				if (step <= lastStep) return;
+
+				lastStep = step;
+				report("progress", name, String.format(Locale.ENGLISH, "%.2f", step / 100.));
+			}
+
+			private int lastStep = -1;
+		});
+
+		report("stage", name, "done", Long.toString((System.nanoTime() - start) / 1000000));
+	}
+
+	private void reportStatus(MatchingStatus status) {
+		report("status", "classes", Integer.toString(status.matchedClassCount), Integer.toString(status.totalClassCount));
+		report("status", "methods", Integer.toString(status.matchedMethodCount), Integer.toString(status.totalMethodCount));
+		report("status", "fields", Integer.toString(status.matchedFieldCount), Integer.toString(status.totalFieldCount));
+		report("status", "method-args", Integer.toString(status.matchedMethodArgCount), Integer.toString(status.totalMethodArgCount));
+		report("status", "method-vars", Integer.toString(status.matchedMethodVarCount), Integer.toString(status.totalMethodVarCount));
+	}
+
+	private void reportClassifierProfile() {
+		for (ClassifierProfiler.Entry entry : ClassifierProfiler.getEntries()) {
+			report("classifier", entry.type.name(), entry.level.name(), entry.name,
+					Long.toString(entry.calls), Long.toString(entry.totalNanos),
+					Long.toString(entry.p50Nanos), Long.toString(entry.p90Nanos), Long.toString(entry.p99Nanos),
+					Long.toString(entry.maxMismatchExits), Long.toString(entry.boundExits), Long.toString(entry.rankedPairs));
+		}
+	}
+
+	private synchronized void report(String... parts) {
+		report.println(String.join("\t", parts));
+	}
+
+	private interface IoConsumer<T> {
+		void accept(T value) throws IOException;
+	}
+
+	private final List<Path> pathsA = new ArrayList<>();
+	private final List<Path> pathsB = new ArrayList<>();
+	private final List<Path> classPathA = new ArrayList<>();
+	private final List<Path> classPathB = new ArrayList<>();
+	private final List<Path> sharedClassPath = new ArrayList<>();
+	private boolean inputsBeforeClassPath;
+	private String nonObfuscatedClassPatternA = "";
+	private String nonObfuscatedClassPatternB = "";
+	private String nonObfuscatedMemberPatternA = "";
+	private String nonObfuscatedMemberPatternB = "";
+
+	private Path matchesIn;
+	private final List<Path> inputDirs = new ArrayList<>();
+	private boolean verifyInputs = true;
+	private Path snapshotDir;
+	private Path hashCacheFile;
+	private Path runtimeDigestDir;
+	private ParseDepth sharedClassPathParseDepth = ParseDepth.MEMBERS;
+	private Path mappingsA;
+	private Path mappingsB;
+	private MappingFormat mappingsInFormat;
+
+	private int threads;
+	private long alignmentMemory;
+	private long cacheMemory;
+	private Set<ClassifierLevel> levels = EnumSet.allOf(ClassifierLevel.class);
+	private boolean autoMatch = true;
+	private boolean matchVars = true;
+	private boolean matchDuplicates = true;
+	private boolean exhaustiveClassRanking;
+	private boolean approximateClassCandidates;
+	private boolean profileClassifiers;
+
+	private Path matchesOut;
+	private Path mappingsOut;
+	private MappingFormat mappingsOutFormat;
+	private boolean mappingsOutA = true;
+	private NameType srcName = NameType.PLAIN;
+	private NameType dstName = NameType.MAPPED;
+	private MappingsExportVerbosity verbosity = MappingsExportVerbosity.FULL;
+
+	private PrintStream report;
+}
@@ -6,6 +6,11 @@ import matcher.gui.Gui;
 
 public class Main {
 	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("--headless")) { // batch mode, avoid touching any JavaFX classes
+			HeadlessMain.main(args);
+			return;
+		}
+
 		Config.init();
 		Application.launch(Gui.class, args);
 	}
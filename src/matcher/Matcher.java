@@ -1,13 +1,17 @@
 package matcher;
 
 import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.nio.file.FileVisitOption;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
@@ -20,6 +24,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.DoubleConsumer;
 import java.util.function.Function;
@@ -36,21 +41,28 @@ import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
 import org.objectweb.asm.tree.TypeInsnNode;
 
+import matcher.classifier.ClassCandidateIndex;
 import matcher.classifier.ClassClassifier;
 import matcher.classifier.ClassifierLevel;
 import matcher.classifier.ClassifierUtil;
+import matcher.classifier.CodeSketchIndex;
 import matcher.classifier.FieldClassifier;
 import matcher.classifier.IRanker;
 import matcher.classifier.MethodClassifier;
 import matcher.classifier.MethodVarClassifier;
+import matcher.classifier.NormalizedHash;
 import matcher.classifier.RankResult;
+import matcher.classifier.RankingWorklist;
 import matcher.config.Config;
 import matcher.config.ProjectConfig;
 import matcher.type.ClassEnv;
 import matcher.type.ClassEnvironment;
 import matcher.type.ClassInstance;
 import matcher.type.FieldInstance;
+import matcher.type.IMatchable;
 import matcher.type.InputFile;
+import matcher.type.InputFileIndex;
+import matcher.type.MatchType;
 import matcher.type.MemberInstance;
 import matcher.type.MethodInstance;
 import matcher.type.MethodVarInstance;
@@ -74,15 +86,19 @@ public class Matcher {
 	}
 
 	private void matchUnobfuscated() {
+		Map<ClassInstance, ClassInstance> matches = new LinkedHashMap<>();
+
 		for (ClassInstance cls : env.getClassesA()) {
 			if (cls.isNameObfuscated()) continue;
 
 			ClassInstance match = env.getLocalClsByIdB(cls.getId());
 
 			if (match != null && !match.isNameObfuscated()) {
-				match(cls, match);
+				matches.put(cls, match);
 			}
 		}
+
+		matchClasses(matches);
 	}
 
 	public void reset() {
@@ -97,17 +113,44 @@ public class Matcher {
 		return autoMatchLevel;
 	}
 
+	/**
+	 * Rank every class against all potential matches in autoMatchClasses instead of only the candidates from
+	 * the class candidate index, intended for checking the index' accuracy.
+	 */
+	public void setExhaustiveClassRanking(boolean value) {
+		exhaustiveClassRanking = value;
+	}
+
+	/**
+	 * Restrict the classes ranked in autoMatchClasses to those with methods of similar code according to the
+	 * code sketches' LSH index.
+	 *
+	 * <p>This is approximate, classes without any colliding method won't be considered anymore.
+	 */
+	public void setApproximateClassCandidates(boolean value) {
+		approximateClassCandidates = value;
+	}
+
+	/**
+	 * Match classes with unique normalized bytecode hashes before ranking in autoMatchAll, enabled by default.
+	 */
+	public void setMatchDuplicates(boolean value) {
+		matchDuplicates = value;
+	}
+
 	public void initFromMatches(List<Path> inputDirs,
 			List<InputFile> inputFilesA, List<InputFile> inputFilesB,
 			List<InputFile> cpFiles,
 			List<InputFile> cpFilesA, List<InputFile> cpFilesB,
 			String nonObfuscatedClassPatternA, String nonObfuscatedClassPatternB, String nonObfuscatedMemberPatternA, String nonObfuscatedMemberPatternB,
 			DoubleConsumer progressReceiver) throws IOException {
-		List<Path> pathsA = resolvePaths(inputDirs, inputFilesA);
-		List<Path> pathsB = resolvePaths(inputDirs, inputFilesB);
-		List<Path> sharedClassPath = resolvePaths(inputDirs, cpFiles);
-		List<Path> classPathA = resolvePaths(inputDirs, cpFilesA);
-		List<Path> classPathB = resolvePaths(inputDirs, cpFilesB);
+		InputFileIndex index = new InputFileIndex(inputDirs);
+		List<Path> pathsA = index.resolve(inputFilesA);
+		List<Path> pathsB = index.resolve(inputFilesB);
+		List<Path> sharedClassPath = index.resolve(cpFiles);
+		List<Path> classPathA = index.resolve(cpFilesA);
+		List<Path> classPathB = index.resolve(cpFilesB);
+		InputFile.saveHashCache();
 
 		ProjectConfig config = new ProjectConfig(pathsA, pathsB, classPathA, classPathB, sharedClassPath, false,
 				nonObfuscatedClassPatternA, nonObfuscatedClassPatternB, nonObfuscatedMemberPatternA, nonObfuscatedMemberPatternB);
@@ -119,40 +162,156 @@ public class Matcher {
 		init(config, progressReceiver);
 	}
 
-	private static List<Path> resolvePaths(List<Path> inputDirs, List<InputFile> inputFiles) throws IOException {
-		List<Path> ret = new ArrayList<>(inputFiles.size());
+	public void match(ClassInstance a, ClassInstance b) {
+		applyChange(() -> applyMatch(a, b));
+	}
 
-		for (InputFile inputFile : inputFiles) {
-			boolean found = false;
+	public void match(MethodInstance a, MethodInstance b) {
+		applyChange(() -> applyMatch(a, b));
+	}
 
-			for (Path inputDir : inputDirs) {
-				try (Stream<Path> matches = Files.find(inputDir, Integer.MAX_VALUE, (path, attr) -> inputFile.equals(path), FileVisitOption.FOLLOW_LINKS)) {
-					Path file = matches.findFirst().orElse(null);
+	public void match(FieldInstance a, FieldInstance b) {
+		applyChange(() -> applyMatch(a, b));
+	}
 
-					if (file != null) {
-						ret.add(file);
-						found = true;
-						break;
-					}
-				} catch (UncheckedIOException e) {
-					throw e.getCause();
-				}
+	public void match(MethodVarInstance a, MethodVarInstance b) {
+		applyChange(() -> applyMatch(a, b));
+	}
+
+	/**
+	 * Apply class matches in bulk, caches get invalidated once all of them are in place.
+	 *
+	 * @throws IllegalArgumentException if any entry is invalid, nothing will be matched in this case
+	 */
+	public void matchClasses(Map<ClassInstance, ClassInstance> matches) {
+		applyMatches(matches, (a, b) -> {
+			if (a.getArrayDimensions() != b.getArrayDimensions()) throw new IllegalArgumentException("the classes "+a+" and "+b+" don't have the same amount of array dimensions");
+		}, this::applyMatch);
+	}
+
+	/**
+	 * Apply method matches in bulk, the owning classes have to be matched to each other already.
+	 *
+	 * @throws IllegalArgumentException if any entry is invalid, nothing will be matched in this case
+	 */
+	public void matchMethods(Map<MethodInstance, MethodInstance> matches) {
+		applyMatches(matches, Matcher::checkMemberMatch, this::applyMatch);
+	}
+
+	/**
+	 * Apply field matches in bulk, the owning classes have to be matched to each other already.
+	 *
+	 * @throws IllegalArgumentException if any entry is invalid, nothing will be matched in this case
+	 */
+	public void matchFields(Map<FieldInstance, FieldInstance> matches) {
+		applyMatches(matches, Matcher::checkMemberMatch, this::applyMatch);
+	}
+
+	/**
+	 * Apply method arg/var matches in bulk, the owning methods have to be matched to each other already.
+	 *
+	 * @throws IllegalArgumentException if any entry is invalid, nothing will be matched in this case
+	 */
+	public void matchMethodVars(Map<MethodVarInstance, MethodVarInstance> matches) {
+		applyMatches(matches, (a, b) -> {
+			if (a.getMethod().getMatch() != b.getMethod()) throw new IllegalArgumentException("the method vars "+a+" and "+b+" don't belong to the same method");
+			if (a.isArg() != b.isArg()) throw new IllegalArgumentException("the method vars "+a+" and "+b+" are not of the same kind");
+		}, this::applyMatch);
+	}
+
+	private static void checkMemberMatch(MemberInstance<?> a, MemberInstance<?> b) {
+		if (a.getCls().getMatch() != b.getCls()) throw new IllegalArgumentException("the members "+a+" and "+b+" don't belong to the same class");
+	}
+
+	private <T> void applyMatches(Map<T, T> matches, BiConsumer<T, T> validator, BiConsumer<T, T> applier) {
+		if (matches.isEmpty()) return;
+
+		Set<T> targets = Util.newIdentityHashSet();
+
+		for (Map.Entry<T, T> entry : matches.entrySet()) {
+			T a = entry.getKey();
+			T b = entry.getValue();
+
+			if (a == null || b == null) throw new NullPointerException("null match entry: "+a+" -> "+b);
+			if (!targets.add(b)) throw new IllegalArgumentException("multiple matches to "+b);
+
+			validator.accept(a, b);
+		}
+
+		applyChange(() -> {
+			for (Map.Entry<T, T> entry : matches.entrySet()) {
+				applier.accept(entry.getKey(), entry.getValue());
 			}
+		});
+	}
+
+	public void unmatch(ClassInstance cls) {
+		applyChange(() -> applyUnmatch(cls));
+	}
+
+	/**
+	 * Unmatch classes in bulk, caches get invalidated once all of them are unmatched.
+	 */
+	public void unmatchClasses(Collection<ClassInstance> classes) {
+		applyChange(() -> {
+			for (ClassInstance cls : classes) {
+				applyUnmatch(cls);
+			}
+		});
+	}
+
+	public void unmatch(MemberInstance<?> m) {
+		applyChange(() -> applyUnmatch(m));
+	}
+
+	public void unmatch(MethodVarInstance a) {
+		applyChange(() -> applyUnmatch(a));
+	}
+
+	/**
+	 * Run a match state change, nested changes are merged into the outermost one.
+	 *
+	 * <p>The cache invalidation and logging is deferred until the outermost change completes.
+	 */
+	private void applyChange(Runnable change) {
+		changeDepth++;
 
-			if (!found) throw new IOException("can't find input "+inputFile.getFileName());
+		try {
+			change.run();
+		} finally {
+			if (--changeDepth == 0) finishChange();
 		}
+	}
 
-		return ret;
+	private void finishChange() {
+		if (!changedEntities.isEmpty()) {
+			env.getCache().invalidate(changedEntities.toArray(new IMatchable<?>[0]));
+			if (worklist != null) worklist.invalidate(changedEntities);
+			changedEntities.clear();
+		}
+
+		if (changeLog.length() > 0) {
+			System.out.print(changeLog);
+			changeLog.setLength(0);
+		}
 	}
 
-	public void match(ClassInstance a, ClassInstance b) {
+	private void recordChange(IMatchable<?>... entities) {
+		for (IMatchable<?> entity : entities) {
+			if (entity != null) changedEntities.add(entity);
+		}
+	}
+
+	private void applyMatch(ClassInstance a, ClassInstance b) {
 		if (a == null) throw new NullPointerException("null class A");
 		if (b == null) throw new NullPointerException("null class B");
 		if (a.getArrayDimensions() != b.getArrayDimensions()) throw new IllegalArgumentException("the classes don't have the same amount of array dimensions");
 		if (a.getMatch() == b) return;
 
 		String mappedName = a.getMappedName();
-		System.out.println("match class "+a+" -> "+b+(mappedName != null ? " ("+mappedName+")" : ""));
+		changeLog.append("match class "+a+" -> "+b+(mappedName != null ? " ("+mappedName+")" : "")).append('\n');
+
+		recordChange(a, b, a.getMatch(), b.getMatch());
 
 		if (a.getMatch() != null) {
 			a.getMatch().setMatch(null);
@@ -225,18 +384,18 @@ public class Matcher {
 				}
 			}
 		}
-
-		env.getCache().clear();
 	}
 
-	private static void unmatchMembers(ClassInstance cls) {
+	private void unmatchMembers(ClassInstance cls) {
 		for (MethodInstance m : cls.getMethods()) {
 			if (m.getMatch() != null) {
+				recordChange(m, m.getMatch());
 				m.getMatch().setMatch(null);
 				m.setMatch(null);
 
 				for (MethodVarInstance arg : m.getArgs()) {
 					if (arg.getMatch() != null) {
+						recordChange(arg, arg.getMatch());
 						arg.getMatch().setMatch(null);
 						arg.setMatch(null);
 					}
@@ -246,20 +405,23 @@ public class Matcher {
 
 		for (FieldInstance m : cls.getFields()) {
 			if (m.getMatch() != null) {
+				recordChange(m, m.getMatch());
 				m.getMatch().setMatch(null);
 				m.setMatch(null);
 			}
 		}
 	}
 
-	public void match(MethodInstance a, MethodInstance b) {
+	private void applyMatch(MethodInstance a, MethodInstance b) {
 		if (a == null) throw new NullPointerException("null method A");
 		if (b == null) throw new NullPointerException("null method B");
 		if (a.getCls().getMatch() != b.getCls()) throw new IllegalArgumentException("the methods don't belong to the same class");
 		if (a.getMatch() == b) return;
 
 		String mappedName = a.getMappedName();
-		System.out.println("match method "+a+" -> "+b+(mappedName != null ? " ("+mappedName+")" : ""));
+		changeLog.append("match method "+a+" -> "+b+(mappedName != null ? " ("+mappedName+")" : "")).append('\n');
+
+		recordChange(a, b, a.getMatch(), b.getMatch());
 
 		if (a.getMatch() != null) a.getMatch().setMatch(null);
 		if (b.getMatch() != null) b.getMatch().setMatch(null);
@@ -288,29 +450,27 @@ public class Matcher {
 				}
 			}
 		}
-
-		env.getCache().clear();
 	}
 
-	public void match(FieldInstance a, FieldInstance b) {
+	private void applyMatch(FieldInstance a, FieldInstance b) {
 		if (a == null) throw new NullPointerException("null field A");
 		if (b == null) throw new NullPointerException("null field B");
 		if (a.getCls().getMatch() != b.getCls()) throw new IllegalArgumentException("the methods don't belong to the same class");
 		if (a.getMatch() == b) return;
 
 		String mappedName = a.getMappedName();
-		System.out.println("match field "+a+" -> "+b+(mappedName != null ? " ("+mappedName+")" : ""));
+		changeLog.append("match field "+a+" -> "+b+(mappedName != null ? " ("+mappedName+")" : "")).append('\n');
+
+		recordChange(a, b, a.getMatch(), b.getMatch());
 
 		if (a.getMatch() != null) a.getMatch().setMatch(null);
 		if (b.getMatch() != null) b.getMatch().setMatch(null);
 
 		a.setMatch(b);
 		b.setMatch(a);
-
-		env.getCache().clear();
 	}
 
-	public void match(MethodVarInstance a, MethodVarInstance b) {
+	private void applyMatch(MethodVarInstance a, MethodVarInstance b) {
 		if (a == null) throw new NullPointerException("null method var A");
 		if (b == null) throw new NullPointerException("null method var B");
 		if (a.getMethod().getMatch() != b.getMethod()) throw new IllegalArgumentException("the method vars don't belong to the same method");
@@ -318,24 +478,25 @@ public class Matcher {
 		if (a.getMatch() == b) return;
 
 		String mappedName = a.getMappedName();
-		System.out.println("match method arg "+a+" -> "+b+(mappedName != null ? " ("+mappedName+")" : ""));
+		changeLog.append("match method arg "+a+" -> "+b+(mappedName != null ? " ("+mappedName+")" : "")).append('\n');
+
+		recordChange(a, b, a.getMatch(), b.getMatch());
 
 		if (a.getMatch() != null) a.getMatch().setMatch(null);
 		if (b.getMatch() != null) b.getMatch().setMatch(null);
 
 		a.setMatch(b);
 		b.setMatch(a);
-
-		env.getCache().clear();
 	}
 
-	public void unmatch(ClassInstance cls) {
+	private void applyUnmatch(ClassInstance cls) {
 		if (cls == null) throw new NullPointerException("null class");
 		if (cls.getMatch() == null) return;
 
 		String mappedName = cls.getMappedName();
-		System.out.println("unmatch class "+cls+" (was "+cls.getMatch()+")"+(mappedName != null ? " ("+mappedName+")" : ""));
+		changeLog.append("unmatch class "+cls+" (was "+cls.getMatch()+")"+(mappedName != null ? " ("+mappedName+")" : "")).append('\n');
 
+		recordChange(cls, cls.getMatch());
 		cls.getMatch().setMatch(null);
 		cls.setMatch(null);
 
@@ -348,16 +509,14 @@ public class Matcher {
 				unmatch(array);
 			}
 		}
-
-		env.getCache().clear();
 	}
 
-	public void unmatch(MemberInstance<?> m) {
+	private void applyUnmatch(MemberInstance<?> m) {
 		if (m == null) throw new NullPointerException("null member");
 		if (m.getMatch() == null) return;
 
 		String mappedName = m.getMappedName();
-		System.out.println("unmatch member "+m+" (was "+m.getMatch()+")"+(mappedName != null ? " ("+mappedName+")" : ""));
+		changeLog.append("unmatch member "+m+" (was "+m.getMatch()+")"+(mappedName != null ? " ("+mappedName+")" : "")).append('\n');
 
 		if (m instanceof MethodInstance) {
 			for (MethodVarInstance arg : ((MethodInstance) m).getArgs()) {
@@ -365,6 +524,7 @@ public class Matcher {
 			}
 		}
 
+		recordChange(m, m.getMatch());
 		m.getMatch().setMatch(null);
 		m.setMatch(null);
 
@@ -373,55 +533,168 @@ public class Matcher {
 				unmatch(member);
 			}
 		}
-
-		env.getCache().clear();
 	}
 
-	public void unmatch(MethodVarInstance a) {
+	private void applyUnmatch(MethodVarInstance a) {
 		if (a == null) throw new NullPointerException("null method var");
 		if (a.getMatch() == null) return;
 
 		String mappedName = a.getMappedName();
-		System.out.println("unmatch method var "+a+" (was "+a.getMatch()+")"+(mappedName != null ? " ("+mappedName+")" : ""));
+		changeLog.append("unmatch method var "+a+" (was "+a.getMatch()+")"+(mappedName != null ? " ("+mappedName+")" : "")).append('\n');
 
+		recordChange(a, a.getMatch());
 		a.getMatch().setMatch(null);
 		a.setMatch(null);
+	}
+
+	public void autoMatchAll(DoubleConsumer progressReceiver) {
+		autoMatchAll(EnumSet.allOf(ClassifierLevel.class), true, progressReceiver);
+	}
+
+	/**
+	 * Run the auto matching passes for the given classifier levels, in level order.
+	 *
+	 * @param levels levels to run, Initial only matches classes
+	 * @param matchVars whether to finish with matching method args and vars
+	 */
+	public void autoMatchAll(Set<ClassifierLevel> levels, boolean matchVars, DoubleConsumer progressReceiver) {
+		if (matchDuplicates) autoMatchDuplicates(progressReceiver);
+
+		worklist = new RankingWorklist(env);
+
+		try {
+			if (levels.contains(ClassifierLevel.Initial)
+					&& autoMatchClasses(ClassifierLevel.Initial, absClassAutoMatchThreshold, relClassAutoMatchThreshold, worklist, progressReceiver)) {
+				autoMatchClasses(ClassifierLevel.Initial, absClassAutoMatchThreshold, relClassAutoMatchThreshold, worklist, progressReceiver);
+			}
+
+			for (ClassifierLevel level : ClassifierLevel.ALL) {
+				if (level != ClassifierLevel.Initial && levels.contains(level)) {
+					autoMatchLevel(level, progressReceiver);
+				}
+			}
+		} finally {
+			worklist = null;
+		}
 
+		if (matchVars) {
+			boolean matchedAny;
+
+			do {
+				matchedAny = autoMatchMethodArgs(ClassifierLevel.Full, absMethodArgAutoMatchThreshold, relMethodArgAutoMatchThreshold, progressReceiver);
+				matchedAny |= autoMatchMethodVars(ClassifierLevel.Full, absMethodArgAutoMatchThreshold, relMethodArgAutoMatchThreshold, progressReceiver);
+			} while (matchedAny);
+		}
+
+		System.out.println("Matching cache: "+env.getCache().getStats());
 		env.getCache().clear();
 	}
 
-	public void autoMatchAll(DoubleConsumer progressReceiver) {
-		if (autoMatchClasses(ClassifierLevel.Initial, absClassAutoMatchThreshold, relClassAutoMatchThreshold, progressReceiver)) {
-			autoMatchClasses(ClassifierLevel.Initial, absClassAutoMatchThreshold, relClassAutoMatchThreshold, progressReceiver);
+	/**
+	 * Match unmatched obfuscated classes whose normalized hash is unique on both sides, see {@link NormalizedHash}.
+	 *
+	 * <p>The members of such class pairs get matched as well if their hash is unique within the classes. Classes
+	 * with less than minDuplicateInsns instructions are left to the classifiers since their hashes aren't specific
+	 * enough.
+	 */
+	public boolean autoMatchDuplicates(DoubleConsumer progressReceiver) {
+		Predicate<ClassInstance> filter = cls -> cls.getUri() != null && cls.isNameObfuscated() && cls.getMatch() == null;
+
+		List<ClassInstance> classes = Stream.concat(env.getClassesA().stream(), env.getClassesB().stream())
+				.filter(filter)
+				.collect(Collectors.toList());
+
+		Map<ClassInstance, Long> hashes = new ConcurrentHashMap<>(classes.size());
+
+		runInParallel(classes, cls -> {
+			int insns = 0;
+
+			for (MethodInstance method : cls.getMethods()) {
+				insns += NormalizedHash.getInsnCount(method);
+			}
+
+			if (insns >= minDuplicateInsns) hashes.put(cls, NormalizedHash.get(cls));
+		}, progressReceiver);
+
+		Map<Long, ClassInstance> uniqueA = getUniqueByHash(env.getClassesA(), hashes::get);
+		Map<Long, ClassInstance> uniqueB = getUniqueByHash(env.getClassesB(), hashes::get);
+		Map<ClassInstance, ClassInstance> matches = new LinkedHashMap<>();
+
+		for (Map.Entry<Long, ClassInstance> entry : uniqueA.entrySet()) {
+			ClassInstance clsA = entry.getValue();
+			ClassInstance clsB = uniqueB.get(entry.getKey());
+
+			if (clsB != null && ClassifierUtil.checkPotentialEquality(clsA, clsB)) {
+				matches.put(clsA, clsB);
+			}
 		}
 
-		autoMatchLevel(ClassifierLevel.Intermediate, progressReceiver);
-		autoMatchLevel(ClassifierLevel.Full, progressReceiver);
-		autoMatchLevel(ClassifierLevel.Extra, progressReceiver);
+		matchClasses(matches);
 
-		boolean matchedAny;
+		Map<MethodInstance, MethodInstance> methodMatches = new LinkedHashMap<>();
+		Map<FieldInstance, FieldInstance> fieldMatches = new LinkedHashMap<>();
+		Predicate<MemberInstance<?>> memberFilter = m -> m.getMatch() == null;
 
-		do {
-			matchedAny = autoMatchMethodArgs(ClassifierLevel.Full, absMethodArgAutoMatchThreshold, relMethodArgAutoMatchThreshold, progressReceiver);
-			matchedAny |= autoMatchMethodVars(ClassifierLevel.Full, absMethodArgAutoMatchThreshold, relMethodArgAutoMatchThreshold, progressReceiver);
-		} while (matchedAny);
+		for (Map.Entry<ClassInstance, ClassInstance> entry : matches.entrySet()) {
+			matchUniqueByHash(entry.getKey().getMethods(), entry.getValue().getMethods(), memberFilter, NormalizedHash::get, methodMatches);
+			matchUniqueByHash(entry.getKey().getFields(), entry.getValue().getFields(), memberFilter, NormalizedHash::get, fieldMatches);
+		}
 
-		env.getCache().clear();
+		matchMethods(methodMatches);
+		matchFields(fieldMatches);
+
+		System.out.println("Auto matched "+matches.size()+" duplicate classes with "+methodMatches.size()+" methods and "+fieldMatches.size()+" fields");
+
+		return !matches.isEmpty();
+	}
+
+	private static <T> Map<Long, T> getUniqueByHash(Collection<T> entities, Function<T, Long> hashProvider) {
+		Map<Long, T> ret = new HashMap<>();
+		Set<Long> duplicates = new HashSet<>();
+
+		for (T entity : entities) {
+			Long hash = hashProvider.apply(entity);
+			if (hash == null || duplicates.contains(hash)) continue;
+
+			if (ret.putIfAbsent(hash, entity) != null) {
+				ret.remove(hash);
+				duplicates.add(hash);
+			}
+		}
+
+		return ret;
+	}
+
+	private static <T> void matchUniqueByHash(T[] entitiesA, T[] entitiesB, Predicate<? super T> filter, Function<T, Long> hashProvider, Map<T, T> out) {
+		Function<T, Long> filteredHashProvider = entity -> filter.test(entity) ? hashProvider.apply(entity) : null;
+		Map<Long, T> uniqueA = getUniqueByHash(Arrays.asList(entitiesA), filteredHashProvider);
+		Map<Long, T> uniqueB = getUniqueByHash(Arrays.asList(entitiesB), filteredHashProvider);
+
+		for (Map.Entry<Long, T> entry : uniqueA.entrySet()) {
+			T match = uniqueB.get(entry.getKey());
+			if (match != null) out.put(entry.getValue(), match);
+		}
 	}
 
+	/**
+	 * Alternate the member and class passes until nothing matches anymore.
+	 *
+	 * <p>Every pass after the first of its kind only re-ranks the classes or members whose neighborhood received
+	 * match changes since, see {@link RankingWorklist}.
+	 */
 	private void autoMatchLevel(ClassifierLevel level, DoubleConsumer progressReceiver) {
 		boolean matchedAny;
 		boolean matchedClassesBefore = true;
 
 		do {
-			matchedAny = autoMatchMethods(level, absMethodAutoMatchThreshold, relMethodAutoMatchThreshold, progressReceiver);
-			matchedAny |= autoMatchFields(level, absFieldAutoMatchThreshold, relFieldAutoMatchThreshold, progressReceiver);
+			matchedAny = autoMatchMethods(level, absMethodAutoMatchThreshold, relMethodAutoMatchThreshold, worklist, progressReceiver);
+			matchedAny |= autoMatchFields(level, absFieldAutoMatchThreshold, relFieldAutoMatchThreshold, worklist, progressReceiver);
 
 			if (!matchedAny && !matchedClassesBefore) {
 				break;
 			}
 
-			matchedAny |= matchedClassesBefore = autoMatchClasses(level, absClassAutoMatchThreshold, relClassAutoMatchThreshold, progressReceiver);
+			matchedAny |= matchedClassesBefore = autoMatchClasses(level, absClassAutoMatchThreshold, relClassAutoMatchThreshold, worklist, progressReceiver);
 		} while (matchedAny);
 	}
 
@@ -430,6 +703,10 @@ public class Matcher {
 	}
 
 	public boolean autoMatchClasses(ClassifierLevel level, double absThreshold, double relThreshold, DoubleConsumer progressReceiver) {
+		return autoMatchClasses(level, absThreshold, relThreshold, null, progressReceiver);
+	}
+
+	private boolean autoMatchClasses(ClassifierLevel level, double absThreshold, double relThreshold, RankingWorklist worklist, DoubleConsumer progressReceiver) {
 		Predicate<ClassInstance> filter = cls -> cls.getUri() != null && cls.isNameObfuscated() && cls.getMatch() == null;
 
 		List<ClassInstance> classes = env.getClassesA().stream()
@@ -443,9 +720,52 @@ public class Matcher {
 		double maxScore = ClassClassifier.getMaxScore(level);
 		double maxMismatch = maxScore - getRawScore(absThreshold * (1 - relThreshold), maxScore);
 		Map<ClassInstance, ClassInstance> matches = new ConcurrentHashMap<>(classes.size());
+		ClassCandidateIndex candidateIndex = exhaustiveClassRanking ? null : ClassClassifier.createCandidateIndex(cmpClasses, level, env.getConstantIndexB());
+		CodeSketchIndex sketchIndex = approximateClassCandidates ? new CodeSketchIndex(cmpClasses) : null;
+		RankingWorklist.Pass pass = worklist != null ? worklist.getPass(MatchType.Class, level) : null;
+		Set<ClassInstance> dirty = pass != null ? pass.begin() : null;
+		ClassInstance[] dirtyCmpClasses = dirty != null ? Arrays.stream(cmpClasses).filter(dirty::contains).toArray(ClassInstance[]::new) : null;
 
 		runInParallel(classes, cls -> {
-			List<RankResult<ClassInstance>> ranking = ClassClassifier.rank(cls, cmpClasses, level, env, maxMismatch);
+			List<RankResult<ClassInstance>> prevRanking = dirty != null && !dirty.contains(cls) ? pass.getClassRanking(cls) : null;
+			ClassInstance[] candidates;
+
+			if (prevRanking != null && prevRanking.size() >= checkRankSize) {
+				// the previous ranking only holds the top entries, a dirty one may have hidden an unknown successor
+				for (RankResult<ClassInstance> result : prevRanking) {
+					if (dirty.contains(result.getSubject())) {
+						prevRanking = null;
+						break;
+					}
+				}
+			}
+
+			if (prevRanking == null) {
+				candidates = candidateIndex != null ? candidateIndex.getCandidates(cls, maxMismatch) : cmpClasses;
+			} else { // only the results for dirty candidates may have changed
+				candidates = dirtyCmpClasses;
+			}
+
+			if (sketchIndex != null) {
+				Set<ClassInstance> similar = sketchIndex.getSimilarClasses(cls);
+
+				if (similar != null) {
+					candidates = Arrays.stream(candidates).filter(similar::contains).toArray(ClassInstance[]::new);
+				}
+			}
+
+			List<RankResult<ClassInstance>> ranking = ClassClassifier.rank(cls, candidates, level, env, maxMismatch, checkRankSize);
+
+			if (prevRanking != null) {
+				for (RankResult<ClassInstance> result : prevRanking) {
+					if (!dirty.contains(result.getSubject())) ranking.add(result);
+				}
+
+				ranking.sort(Comparator.<RankResult<ClassInstance>, Double>comparing(RankResult::getScore).reversed());
+				if (ranking.size() > checkRankSize) ranking = new ArrayList<>(ranking.subList(0, checkRankSize));
+			}
+
+			if (pass != null) pass.putClassRanking(cls, ranking);
 
 			if (checkRank(ranking, absThreshold, relThreshold, maxScore)) {
 				ClassInstance match = ranking.get(0).getSubject();
@@ -455,16 +775,24 @@ public class Matcher {
 		}, progressReceiver);
 
 		sanitizeMatches(matches);
-
-		for (Map.Entry<ClassInstance, ClassInstance> entry : matches.entrySet()) {
-			match(entry.getKey(), entry.getValue());
-		}
+		matchClasses(matches);
 
 		System.out.println("Auto matched "+matches.size()+" classes ("+(classes.size() - matches.size())+" unmatched, "+env.getClassesA().size()+" total)");
 
 		return !matches.isEmpty();
 	}
 
+	/**
+	 * Replace the pool used for parallel matching work with one using the given amount of threads.
+	 */
+	public static synchronized void setParallelism(int threads) {
+		if (threads <= 0) throw new IllegalArgumentException("invalid thread count: "+threads);
+
+		ExecutorService prev = threadPool;
+		threadPool = Executors.newWorkStealingPool(threads);
+		prev.shutdown();
+	}
+
 	private static <T, C> void runInParallel(List<T> workSet, Consumer<T> worker, DoubleConsumer progressReceiver) {
 		if (workSet.isEmpty()) return;
 
@@ -497,14 +825,16 @@ public class Matcher {
 	}
 
 	public boolean autoMatchMethods(ClassifierLevel level, double absThreshold, double relThreshold, DoubleConsumer progressReceiver) {
+		return autoMatchMethods(level, absThreshold, relThreshold, null, progressReceiver);
+	}
+
+	private boolean autoMatchMethods(ClassifierLevel level, double absThreshold, double relThreshold, RankingWorklist worklist, DoubleConsumer progressReceiver) {
 		AtomicInteger totalUnmatched = new AtomicInteger();
 		Map<MethodInstance, MethodInstance> matches = match(level, absThreshold, relThreshold,
 				cls -> cls.getMethods(), MethodClassifier::rank, MethodClassifier.getMaxScore(level),
-				progressReceiver, totalUnmatched);
+				worklist != null ? worklist.getPass(MatchType.Method, level) : null, progressReceiver, totalUnmatched);
 
-		for (Map.Entry<MethodInstance, MethodInstance> entry : matches.entrySet()) {
-			match(entry.getKey(), entry.getValue());
-		}
+		matchMethods(matches);
 
 		System.out.println("Auto matched "+matches.size()+" methods ("+totalUnmatched.get()+" unmatched)");
 
@@ -516,16 +846,18 @@ public class Matcher {
 	}
 
 	public boolean autoMatchFields(ClassifierLevel level, double absThreshold, double relThreshold, DoubleConsumer progressReceiver) {
+		return autoMatchFields(level, absThreshold, relThreshold, null, progressReceiver);
+	}
+
+	private boolean autoMatchFields(ClassifierLevel level, double absThreshold, double relThreshold, RankingWorklist worklist, DoubleConsumer progressReceiver) {
 		AtomicInteger totalUnmatched = new AtomicInteger();
 		double maxScore = FieldClassifier.getMaxScore(level);
 
 		Map<FieldInstance, FieldInstance> matches = match(level, absThreshold, relThreshold,
 				cls -> cls.getFields(), FieldClassifier::rank, maxScore,
-				progressReceiver, totalUnmatched);
+				worklist != null ? worklist.getPass(MatchType.Field, level) : null, progressReceiver, totalUnmatched);
 
-		for (Map.Entry<FieldInstance, FieldInstance> entry : matches.entrySet()) {
-			match(entry.getKey(), entry.getValue());
-		}
+		matchFields(matches);
 
 		System.out.println("Auto matched "+matches.size()+" fields ("+totalUnmatched.get()+" unmatched)");
 
@@ -534,7 +866,9 @@ public class Matcher {
 
 	private <T extends MemberInstance<T>> Map<T, T> match(ClassifierLevel level, double absThreshold, double relThreshold,
 			Function<ClassInstance, T[]> memberGetter, IRanker<T> ranker, double maxScore,
-			DoubleConsumer progressReceiver, AtomicInteger totalUnmatched) {
+			RankingWorklist.Pass pass, DoubleConsumer progressReceiver, AtomicInteger totalUnmatched) {
+		Set<ClassInstance> dirty = pass != null ? pass.begin() : null;
+
 		List<ClassInstance> classes = env.getClassesA().stream()
 				.filter(cls -> cls.getUri() != null && cls.getMatch() != null && memberGetter.apply(cls).length > 0)
 				.filter(cls -> {
@@ -544,6 +878,17 @@ public class Matcher {
 
 					return false;
 				})
+				.filter(cls -> {
+					if (dirty == null || dirty.contains(cls) || dirty.contains(cls.getMatch())) return true;
+					if (cls.getMatch().getUri() == null) return true; // only input classes are tracked
+
+					// unchanged neighborhood, the members would stay unmatched
+					for (T member : memberGetter.apply(cls)) {
+						if (member.getMatch() == null) totalUnmatched.incrementAndGet();
+					}
+
+					return false;
+				})
 				.collect(Collectors.toList());
 		if (classes.isEmpty()) return Collections.emptyMap();
 
@@ -556,7 +901,7 @@ public class Matcher {
 			for (T member : memberGetter.apply(cls)) {
 				if (member.getMatch() != null) continue;
 
-				List<RankResult<T>> ranking = ranker.rank(member, memberGetter.apply(cls.getMatch()), level, env, maxMismatch);
+				List<RankResult<T>> ranking = ranker.rank(member, memberGetter.apply(cls.getMatch()), level, env, maxMismatch, checkRankSize);
 
 				if (checkRank(ranking, absThreshold, relThreshold, maxScore)) {
 					T match = ranking.get(0).getSubject();
@@ -617,7 +962,7 @@ public class Matcher {
 				for (MethodVarInstance var : supplier.apply(m)) {
 					if (var.getMatch() != null) continue;
 
-					List<RankResult<MethodVarInstance>> ranking = MethodVarClassifier.rank(var, supplier.apply(m.getMatch()), level, env, maxMismatch);
+					List<RankResult<MethodVarInstance>> ranking = MethodVarClassifier.rank(var, supplier.apply(m.getMatch()), level, env, maxMismatch, checkRankSize);
 
 					if (checkRank(ranking, absThreshold, relThreshold, maxScore)) {
 						MethodVarInstance match = ranking.get(0).getSubject();
@@ -634,9 +979,7 @@ public class Matcher {
 			sanitizeMatches(matches);
 		}
 
-		for (Map.Entry<MethodVarInstance, MethodVarInstance> entry : matches.entrySet()) {
-			match(entry.getKey(), entry.getValue());
-		}
+		matchMethodVars(matches);
 
 		System.out.println("Auto matched "+matches.size()+" method "+(isArg ? "arg" : "var")+"s ("+totalUnmatched.get()+" unmatched)");
 
@@ -704,9 +1047,10 @@ public class Matcher {
 				MethodNode node = method.getAsmNode();
 				if (node == null || method.getMatch() == null) continue;
 
-				double closeness = ClassifierUtil.compareInsns(node.instructions, method.getMatch().getAsmNode().instructions, env);
+				// exact down to 0.99, an upper bound below that
+				double closeness = ClassifierUtil.compareInsns(method, method.getMatch(), 0.99);
 				if (closeness < 0.99) {
-					System.out.println("Method contents mismatch in " + cls.getName() + '#' + method.getName() + method.getDesc() + ", only matched with " + closeness);
+					System.out.println("Method contents mismatch in " + cls.getName() + '#' + method.getName() + method.getDesc() + ", only matched with at most " + closeness);
 					mismatches.add(cls);
 				}
 			}
@@ -714,8 +1058,9 @@ public class Matcher {
 
 		//Unmatch everything that we've decided is incorrectly matched
 		if (!mismatches.isEmpty()) {
-			mismatches.forEach(this::unmatch);
-			semimatchedClasses.removeAll(mismatches);
+			Set<ClassInstance> mismatched = Util.newIdentityHashSet(mismatches); // a class gets queued per mismatched method
+			unmatchClasses(mismatched);
+			semimatchedClasses.removeAll(mismatched);
 		}
 		matchedClasses.addAll(semimatchedClasses);
 
@@ -735,10 +1080,10 @@ public class Matcher {
 				InsnList methodIns = method.getAsmNode().instructions;
 				InsnList matchedIns = matched.getAsmNode().instructions;
 
-				//assert ClassifierUtil.compareInsns(methodIns, matchedIns, env) > 0.99;
-				double closeness = ClassifierUtil.compareInsns(methodIns, matchedIns, env);
+				//assert ClassifierUtil.compareInsns(method, matched) > 0.99;
+				double closeness = ClassifierUtil.compareInsns(method, matched, 0.99);
 				if (closeness < 0.99) {
-					System.out.println("Unexpected method contents mismatch in " + cls.getName() + '#' + method.getName() + method.getDesc() + ", only matched with " + closeness);
+					System.out.println("Unexpected method contents mismatch in " + cls.getName() + '#' + method.getName() + method.getDesc() + ", only matched with at most " + closeness);
 					continue;
 				}
 				assert methodIns.size() == matchedIns.size();
@@ -874,10 +1219,7 @@ public class Matcher {
 		}, progress -> progressReceiver.accept(0.5 + progress * 0.5));
 
 		sanitizeMatches(matches);
-
-		for (Map.Entry<ClassInstance, ClassInstance> entry : matches.entrySet()) {
-			match(entry.getKey(), entry.getValue());
-		}
+		matchClasses(matches);
 
 		long unmatched = env.getClassesA().stream().filter(cls -> cls.getUri() != null && cls.isNameObfuscated() && cls.getMatch() == null).count();
 		System.out.println("Merge matched " + matches.size() + " classes (" + unmatched + " unmatched, " + env.getClassesA().size() + " total)");
@@ -1043,9 +1385,19 @@ public class Matcher {
 		public final int matchedFieldCount;
 	}
 
-	private static final ExecutorService threadPool = Executors.newWorkStealingPool();
+	/**
+	 * Ranking entries looked at by {@link #checkRank}, auto matching doesn't determine any further ones.
+	 */
+	public static final int checkRankSize = 2;
+	private static final int minDuplicateInsns = 16;
+
+	private static volatile ExecutorService threadPool = Executors.newWorkStealingPool();
 
 	private final ClassEnvironment env;
+	private final Set<IMatchable<?>> changedEntities = Util.newIdentityHashSet();
+	private final StringBuilder changeLog = new StringBuilder();
+	private int changeDepth;
+	private RankingWorklist worklist;
 	private final ClassifierLevel autoMatchLevel = ClassifierLevel.Full;
 	private final double absClassAutoMatchThreshold = 0.85;
 	private final double relClassAutoMatchThreshold = 0.085;
@@ -1055,4 +1407,7 @@ public class Matcher {
 	private final double relFieldAutoMatchThreshold = 0.085;
 	private final double absMethodArgAutoMatchThreshold = 0.85;
 	private final double relMethodArgAutoMatchThreshold = 0.085;
+	private boolean exhaustiveClassRanking;
+	private boolean approximateClassCandidates;
+	private boolean matchDuplicates = true;
 }
@@ -17,6 +17,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 import org.objectweb.asm.Handle;
@@ -35,6 +36,13 @@ public class Util {
 		return ret;//new IdentityHashSet<>(c);
 	}
 
+	/**
+	 * Create a thread safe set with identity semantics, only for element types not overriding equals and hashCode.
+	 */
+	public static <T> Set<T> newConcurrentIdentityHashSet() {
+		return ConcurrentHashMap.newKeySet();
+	}
+
 	public static <T> Set<T> copySet(Set<T> set) {
 		if (set instanceof HashSet) {
 			return new HashSet<>(set);
@@ -0,0 +1,215 @@
+package matcher.classifier;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.objectweb.asm.Opcodes;
+
+import matcher.type.ClassInstance;
+
+/**
+ * Blocking index over ranking destination classes to skip those that can't reach a given mismatch limit.
+ *
+ * <p>The classes are bucketed by the cheap invariants checked by some of the class classifiers. A bucket is
+ * skipped if the mismatch these classifiers alone have to produce is already at or above the limit, which
+ * makes the pruning exact: ClassifierUtil.rank would drop the same classes.
+ *
+ * <p>Within buckets close to the limit, classes sharing no constants with the ranked class get excluded through
+ * the ConstantIndex if the string/numeric constants classifiers' mismatch from that pushes them over the limit.
+ */
+public class ClassCandidateIndex {
+	/**
+	 * @param presenceWeights weights of the classifiers scoring 0 if exactly one of the classes has the feature,
+	 * in the order outer class, inner classes, signature, child classes, interfaces, implementers
+	 */
+	ClassCandidateIndex(ClassInstance[] dsts, double typeWeight, double parentWeight, double methodCountWeight, double fieldCountWeight, double[] presenceWeights,
+			ConstantIndex constantIndex, double stringWeight, double numericWeight) {
+		assert presenceWeights.length == presenceFeatureCount;
+
+		this.typeWeight = typeWeight;
+		this.parentWeight = parentWeight;
+		this.methodCountWeight = methodCountWeight;
+		this.fieldCountWeight = fieldCountWeight;
+		this.presenceWeights = presenceWeights;
+		this.constantIndex = constantIndex;
+		this.stringWeight = stringWeight;
+		this.numericWeight = numericWeight;
+
+		Map<Long, Bucket> bucketMap = new HashMap<>();
+
+		for (ClassInstance cls : dsts) {
+			int access = cls.getAccess() & typeMask;
+			int presence = getPresenceFlags(cls);
+			int methodBand = getBand(cls.getMethods().length);
+			int fieldBand = getBand(cls.getFields().length);
+			long key = access | (long) presence << 16 | (long) methodBand << 32 | (long) fieldBand << 40;
+
+			Bucket bucket = bucketMap.get(key);
+
+			if (bucket == null) {
+				bucket = new Bucket(access, presence, methodBand, fieldBand);
+				bucketMap.put(key, bucket);
+				buckets.add(bucket);
+			}
+
+			bucket.add(cls);
+		}
+	}
+
+	/**
+	 * Get all classes whose ranking against src may yield a mismatch below maxMismatch.
+	 */
+	public ClassInstance[] getCandidates(ClassInstance src, double maxMismatch) {
+		int access = src.getAccess() & typeMask;
+		int presence = getPresenceFlags(src);
+		int methodCount = src.getMethods().length;
+		int fieldCount = src.getFields().length;
+		ClassInstance superKey = getSuperKey(src.getSuperClass());
+		if (superKey != null) superKey = superKey.getMatch();
+
+		maxMismatch += epsilon; // ensure fp rounding can't exclude a class rank would keep
+		List<ClassInstance> ret = new ArrayList<>();
+		double constantMismatch = constantIndex != null ? getConstantMismatch(src) : 0; // mismatch for classes sharing no constants with src
+		Predicate<ClassInstance> sharingTest = null;
+
+		for (Bucket bucket : buckets) {
+			double mismatch = typeWeight * Integer.bitCount(access ^ bucket.access) / 4.;
+			int presenceMismatches = presence ^ bucket.presence;
+
+			for (int i = 0; presenceMismatches != 0; i++, presenceMismatches >>>= 1) {
+				if ((presenceMismatches & 1) != 0) mismatch += presenceWeights[i];
+			}
+
+			mismatch += getCountMismatch(methodCount, bucket.methodBand, methodCountWeight);
+			mismatch += getCountMismatch(fieldCount, bucket.fieldBand, fieldCountWeight);
+
+			if (mismatch >= maxMismatch) continue;
+
+			List<ClassInstance> classes;
+			double parentMismatch;
+
+			if (mismatch + parentWeight < maxMismatch) {
+				classes = bucket.classes;
+				parentMismatch = parentWeight;
+			} else { // only classes with a potentially equal super class remain
+				classes = bucket.classesBySuper.get(superKey);
+				if (classes == null) continue;
+				parentMismatch = 0;
+			}
+
+			if (constantIndex == null || mismatch + parentMismatch + constantMismatch < maxMismatch) {
+				ret.addAll(classes);
+				continue;
+			}
+
+			// filter individual classes by super class and shared constants
+
+			for (ClassInstance cls : classes) {
+				double clsMismatch = mismatch;
+				if (parentMismatch > 0 && getSuperKey(cls.getSuperClass()) != superKey) clsMismatch += parentMismatch;
+
+				if (clsMismatch + constantMismatch >= maxMismatch) {
+					if (sharingTest == null) sharingTest = constantIndex.getSharingTest(src);
+					if (!sharingTest.test(cls)) continue;
+				}
+
+				ret.add(cls);
+			}
+		}
+
+		return ret.toArray(new ClassInstance[0]);
+	}
+
+	/**
+	 * Determine the minimum mismatch of the constant classifiers for a class sharing none of the constants.
+	 *
+	 * <p>The string set comparison yields 0 if only one side has strings, the numeric one averages over the
+	 * per type comparisons, with the same behavior for each type.
+	 */
+	private double getConstantMismatch(ClassInstance src) {
+		boolean hasString = src.getStringIds().length > 0;
+		int numTypes = src.getFeatures().getNumericConstants().getTypeCount();
+
+		return (hasString ? stringWeight : 0) + numericWeight * numTypes / 4;
+	}
+
+	private static int getPresenceFlags(ClassInstance cls) {
+		int ret = 0;
+
+		if (cls.getOuterClass() != null) ret |= 1 << 0;
+		if (!cls.getInnerClasses().isEmpty()) ret |= 1 << 1;
+		if (cls.getSignature() != null) ret |= 1 << 2;
+		if (!cls.getChildClasses().isEmpty()) ret |= 1 << 3;
+		if (!cls.getInterfaces().isEmpty()) ret |= 1 << 4;
+		if (!cls.getImplementers().isEmpty()) ret |= 1 << 5;
+
+		return ret;
+	}
+
+	/**
+	 * Group key for the parent class classifier, only a matched super class limits the potentially equal ones.
+	 */
+	private static ClassInstance getSuperKey(ClassInstance superCls) {
+		return superCls != null && superCls.hasMatch() ? superCls : null;
+	}
+
+	private static int getBand(int count) {
+		return Math.min(32 - Integer.numberOfLeadingZeros(count), maxBand);
+	}
+
+	private static double getCountMismatch(int count, int band, double weight) {
+		if (weight == 0) return 0;
+
+		int min, max;
+
+		if (band == 0) {
+			min = max = 0;
+		} else {
+			min = 1 << (band - 1);
+			max = band == maxBand ? Integer.MAX_VALUE : (1 << band) - 1;
+		}
+
+		int closest = Math.max(min, Math.min(max, count));
+
+		return weight * (1 - ClassifierUtil.compareCounts(count, closest));
+	}
+
+	private static class Bucket {
+		Bucket(int access, int presence, int methodBand, int fieldBand) {
+			this.access = access;
+			this.presence = presence;
+			this.methodBand = methodBand;
+			this.fieldBand = fieldBand;
+		}
+
+		void add(ClassInstance cls) {
+			classes.add(cls);
+			classesBySuper.computeIfAbsent(getSuperKey(cls.getSuperClass()), ignore -> new ArrayList<>()).add(cls);
+		}
+
+		final int access;
+		final int presence;
+		final int methodBand;
+		final int fieldBand;
+		final List<ClassInstance> classes = new ArrayList<>();
+		final Map<ClassInstance, List<ClassInstance>> classesBySuper = new HashMap<>();
+	}
+
+	private static final int typeMask = Opcodes.ACC_ENUM | Opcodes.ACC_INTERFACE | Opcodes.ACC_ANNOTATION | Opcodes.ACC_ABSTRACT; // same as the class type check
+	private static final int presenceFeatureCount = 6;
+	private static final int maxBand = 20;
+	private static final double epsilon = 1e-6;
+
+	private final double typeWeight;
+	private final double parentWeight;
+	private final double methodCountWeight;
+	private final double fieldCountWeight;
+	private final double[] presenceWeights;
+	private final ConstantIndex constantIndex;
+	private final double stringWeight;
+	private final double numericWeight;
+	private final List<Bucket> buckets = new ArrayList<>();
+}
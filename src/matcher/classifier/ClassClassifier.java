@@ -4,7 +4,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -68,11 +67,31 @@ public class ClassClassifier {
 	}
 
 	public static List<RankResult<ClassInstance>> rank(ClassInstance src, ClassInstance[] dsts, ClassifierLevel level, ClassEnvironment env, double maxMismatch) {
-		return ClassifierUtil.rank(src, dsts, classifiers.getOrDefault(level, Collections.emptyList()), ClassifierUtil::checkPotentialEquality, env, maxMismatch);
+		return ClassifierUtil.rank(src, dsts, classifiers.getOrDefault(level, Collections.emptyList()), level, ClassifierUtil::checkPotentialEquality, env, maxMismatch);
+	}
+
+	public static List<RankResult<ClassInstance>> rank(ClassInstance src, ClassInstance[] dsts, ClassifierLevel level, ClassEnvironment env, double maxMismatch, int maxResults) {
+		return ClassifierUtil.rank(src, dsts, classifiers.getOrDefault(level, Collections.emptyList()), level, ClassifierUtil::checkPotentialEquality, env, maxMismatch, maxResults);
 	}
 
 	public static List<RankResult<ClassInstance>> rankParallel(ClassInstance src, ClassInstance[] dsts, ClassifierLevel level, ClassEnvironment env, double maxMismatch) {
-		return ClassifierUtil.rankParallel(src, dsts, classifiers.getOrDefault(level, Collections.emptyList()), ClassifierUtil::checkPotentialEquality, env, maxMismatch);
+		return ClassifierUtil.rankParallel(src, dsts, classifiers.getOrDefault(level, Collections.emptyList()), level, ClassifierUtil::checkPotentialEquality, env, maxMismatch);
+	}
+
+	/**
+	 * Create a candidate index for ranking against dsts at the given level, see {@link ClassCandidateIndex}.
+	 */
+	public static ClassCandidateIndex createCandidateIndex(ClassInstance[] dsts, ClassifierLevel level, ConstantIndex constantIndex) {
+		return new ClassCandidateIndex(dsts,
+				getWeight(classTypeCheck, level), getWeight(parentClass, level),
+				getWeight(methodCount, level), getWeight(fieldCount, level),
+				new double[] { getWeight(outerClass, level), getWeight(innerClasses, level), getWeight(signature, level),
+						getWeight(childClasses, level), getWeight(interfaces, level), getWeight(implementers, level) },
+				constantIndex, getWeight(stringConstants, level), getWeight(numericConstants, level));
+	}
+
+	private static double getWeight(AbstractClassifier classifier, ClassifierLevel level) {
+		return classifiers.getOrDefault(level, Collections.emptyList()).contains(classifier) ? classifier.weight : 0;
 	}
 
 	private static final Map<ClassifierLevel, List<IClassifier<ClassInstance>>> classifiers = new EnumMap<>(ClassifierLevel.class);
@@ -107,20 +126,7 @@ public class ClassClassifier {
 	private static AbstractClassifier hierarchyDepth = new AbstractClassifier("hierarchy depth") {
 		@Override
 		public double getScore(ClassInstance clsA, ClassInstance clsB, ClassEnvironment env) {
-			int countA = 0;
-			int countB = 0;
-
-			while (clsA.getSuperClass() != null) {
-				clsA = clsA.getSuperClass();
-				countA++;
-			}
-
-			while (clsB.getSuperClass() != null) {
-				clsB = clsB.getSuperClass();
-				countB++;
-			}
-
-			return ClassifierUtil.compareCounts(countA, countB);
+			return ClassifierUtil.compareCounts(clsA.getFeatures().getHierarchyDepth(), clsB.getFeatures().getHierarchyDepth());
 		}
 	};
 
@@ -263,157 +269,56 @@ public class ClassClassifier {
 	private static AbstractClassifier outReferences = new AbstractClassifier("out references") {
 		@Override
 		public double getScore(ClassInstance clsA, ClassInstance clsB, ClassEnvironment env) {
-			Set<ClassInstance> refsA = getOutRefs(clsA);
-			Set<ClassInstance> refsB = getOutRefs(clsB);
-
-			return ClassifierUtil.compareClassSets(refsA, refsB, false);
+			return ClassifierUtil.compareClassSets(clsA.getFeatures().getOutRefs(), clsB.getFeatures().getOutRefs(), true);
 		}
 	};
 
-	private static Set<ClassInstance> getOutRefs(ClassInstance cls) {
-		Set<ClassInstance> ret = Util.newIdentityHashSet();
-
-		for (MethodInstance method : cls.getMethods()) {
-			ret.addAll(method.getClassRefs());
-		}
-
-		for (FieldInstance field : cls.getFields()) {
-			ret.add(field.getType());
-		}
-
-		return ret;
-	}
-
 	private static AbstractClassifier inReferences = new AbstractClassifier("in references") {
 		@Override
 		public double getScore(ClassInstance clsA, ClassInstance clsB, ClassEnvironment env) {
-			Set<ClassInstance> refsA = getInRefs(clsA);
-			Set<ClassInstance> refsB = getInRefs(clsB);
-
-			return ClassifierUtil.compareClassSets(refsA, refsB, false);
+			return ClassifierUtil.compareClassSets(clsA.getFeatures().getInRefs(), clsB.getFeatures().getInRefs(), true);
 		}
 	};
 
-	private static Set<ClassInstance> getInRefs(ClassInstance cls) {
-		Set<ClassInstance> ret = Util.newIdentityHashSet();
-
-		for (MethodInstance method : cls.getMethodTypeRefs()) {
-			ret.add(method.getCls());
-		}
-
-		for (FieldInstance field : cls.getFieldTypeRefs()) {
-			ret.add(field.getCls());
-		}
-
-		return ret;
-	}
-
 	private static AbstractClassifier methodOutReferences = new AbstractClassifier("method out references") {
 		@Override
 		public double getScore(ClassInstance clsA, ClassInstance clsB, ClassEnvironment env) {
-			Set<MethodInstance> refsA = getMethodOutRefs(clsA);
-			Set<MethodInstance> refsB = getMethodOutRefs(clsB);
-
-			return ClassifierUtil.compareMethodSets(refsA, refsB, false);
+			return ClassifierUtil.compareMethodSets(clsA.getFeatures().getMethodOutRefs(), clsB.getFeatures().getMethodOutRefs(), true);
 		}
 	};
 
-	private static Set<MethodInstance> getMethodOutRefs(ClassInstance cls) {
-		Set<MethodInstance> ret = Util.newIdentityHashSet();
-
-		for (MethodInstance method : cls.getMethods()) {
-			ret.addAll(method.getRefsOut());
-		}
-
-		return ret;
-	}
-
 	private static AbstractClassifier methodInReferences = new AbstractClassifier("method in references") {
 		@Override
 		public double getScore(ClassInstance clsA, ClassInstance clsB, ClassEnvironment env) {
-			Set<MethodInstance> refsA = getMethodInRefs(clsA);
-			Set<MethodInstance> refsB = getMethodInRefs(clsB);
-
-			return ClassifierUtil.compareMethodSets(refsA, refsB, false);
+			return ClassifierUtil.compareMethodSets(clsA.getFeatures().getMethodInRefs(), clsB.getFeatures().getMethodInRefs(), true);
 		}
 	};
 
-	private static Set<MethodInstance> getMethodInRefs(ClassInstance cls) {
-		Set<MethodInstance> ret = Util.newIdentityHashSet();
-
-		for (MethodInstance method : cls.getMethods()) {
-			ret.addAll(method.getRefsIn());
-		}
-
-		return ret;
-	}
-
 	private static AbstractClassifier fieldReadReferences = new AbstractClassifier("field read references") {
 		@Override
 		public double getScore(ClassInstance clsA, ClassInstance clsB, ClassEnvironment env) {
-			Set<FieldInstance> refsA = getFieldReadRefs(clsA);
-			Set<FieldInstance> refsB = getFieldReadRefs(clsB);
-
-			return ClassifierUtil.compareFieldSets(refsA, refsB, false);
+			return ClassifierUtil.compareFieldSets(clsA.getFeatures().getFieldReadRefs(), clsB.getFeatures().getFieldReadRefs(), true);
 		}
 	};
 
-	private static Set<FieldInstance> getFieldReadRefs(ClassInstance cls) {
-		Set<FieldInstance> ret = Util.newIdentityHashSet();
-
-		for (MethodInstance method : cls.getMethods()) {
-			ret.addAll(method.getFieldReadRefs());
-		}
-
-		return ret;
-	}
-
 	private static AbstractClassifier fieldWriteReferences = new AbstractClassifier("field write references") {
 		@Override
 		public double getScore(ClassInstance clsA, ClassInstance clsB, ClassEnvironment env) {
-			Set<FieldInstance> refsA = getFieldWriteRefs(clsA);
-			Set<FieldInstance> refsB = getFieldWriteRefs(clsB);
-
-			return ClassifierUtil.compareFieldSets(refsA, refsB, false);
+			return ClassifierUtil.compareFieldSets(clsA.getFeatures().getFieldWriteRefs(), clsB.getFeatures().getFieldWriteRefs(), true);
 		}
 	};
 
-	private static Set<FieldInstance> getFieldWriteRefs(ClassInstance cls) {
-		Set<FieldInstance> ret = Util.newIdentityHashSet();
-
-		for (MethodInstance method : cls.getMethods()) {
-			ret.addAll(method.getFieldWriteRefs());
-		}
-
-		return ret;
-	}
-
 	private static AbstractClassifier stringConstants = new AbstractClassifier("string constants") {
 		@Override
 		public double getScore(ClassInstance clsA, ClassInstance clsB, ClassEnvironment env) {
-			return ClassifierUtil.compareSets(clsA.getStrings(), clsB.getStrings(), true);
+			return ClassifierUtil.compareSortedSets(clsA.getStringIds(), clsB.getStringIds());
 		}
 	};
 
 	private static AbstractClassifier numericConstants = new AbstractClassifier("numeric constants") {
 		@Override
 		public double getScore(ClassInstance clsA, ClassInstance clsB, ClassEnvironment env) {
-			Set<Integer> intsA = new HashSet<>();
-			Set<Integer> intsB = new HashSet<>();
-			Set<Long> longsA = new HashSet<>();
-			Set<Long> longsB = new HashSet<>();
-			Set<Float> floatsA = new HashSet<>();
-			Set<Float> floatsB = new HashSet<>();
-			Set<Double> doublesA = new HashSet<>();
-			Set<Double> doublesB = new HashSet<>();
-
-			extractNumbers(clsA, intsA, longsA, floatsA, doublesA);
-			extractNumbers(clsB, intsB, longsB, floatsB, doublesB);
-
-			return (ClassifierUtil.compareSets(intsA, intsB, false)
-					+ ClassifierUtil.compareSets(longsA, longsB, false)
-					+ ClassifierUtil.compareSets(floatsA, floatsB, false)
-					+ ClassifierUtil.compareSets(doublesA, doublesB, false)) / 4;
+			return NumericConstants.compare(clsA.getFeatures().getNumericConstants(), clsB.getFeatures().getNumericConstants());
 		}
 	};
 
@@ -433,7 +338,7 @@ public class ClassClassifier {
 				double maxScore = MethodClassifier.getMaxScore(level);
 
 				for (MethodInstance methodA : clsA.getMethods()) {
-					List<RankResult<MethodInstance>> ranking = MethodClassifier.rank(methodA, clsB.getMethods(), level, env);
+					List<RankResult<MethodInstance>> ranking = MethodClassifier.rank(methodA, clsB.getMethods(), level, env, Double.POSITIVE_INFINITY, Matcher.checkRankSize);
 					if (Matcher.checkRank(ranking, absThreshold, relThreshold, maxScore)) match += Matcher.getScore(ranking.get(0).getScore(), maxScore);
 				}
 			}
@@ -442,7 +347,7 @@ public class ClassClassifier {
 				double maxScore = FieldClassifier.getMaxScore(level);
 
 				for (FieldInstance fieldA : clsA.getFields()) {
-					List<RankResult<FieldInstance>> ranking = FieldClassifier.rank(fieldA, clsB.getFields(), level, env);
+					List<RankResult<FieldInstance>> ranking = FieldClassifier.rank(fieldA, clsB.getFields(), level, env, Double.POSITIVE_INFINITY, Matcher.checkRankSize);
 					if (Matcher.checkRank(ranking, absThreshold, relThreshold, maxScore)) match += Matcher.getScore(ranking.get(0).getScore(), maxScore);
 				}
 			}
@@ -513,7 +418,7 @@ public class ClassClassifier {
 		}
 	};
 
-	private static void extractNumbers(ClassInstance cls, Set<Integer> ints, Set<Long> longs, Set<Float> floats, Set<Double> doubles) {
+	static void extractNumbers(ClassInstance cls, Set<Integer> ints, Set<Long> longs, Set<Float> floats, Set<Double> doubles) {
 		for (MethodInstance method : cls.getMethods()) {
 			MethodNode asmNode = method.getAsmNode();
 			if (asmNode == null) continue;
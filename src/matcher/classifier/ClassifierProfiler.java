@@ -0,0 +1,173 @@
+package matcher.classifier;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import matcher.type.MatchType;
+
+/**
+ * Optional per classifier instrumentation of the rankings done through ClassifierUtil.
+ *
+ * <p>While enabled, every classifier evaluation gets timed and counted, along with the rankings it ended early by
+ * reaching maxMismatch or by falling behind the required top scores. The statistics are kept per entity type and
+ * classifier level until {@link #reset()}.
+ */
+public final class ClassifierProfiler {
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean enabled) {
+		ClassifierProfiler.enabled = enabled;
+	}
+
+	public static void reset() {
+		ClassifierUtil.forEachSchedule(ClassifierSchedule::resetProfile);
+	}
+
+	/**
+	 * Get the recorded statistics of all classifiers that have been evaluated, most expensive first.
+	 */
+	public static List<Entry> getEntries() {
+		List<Entry> ret = new ArrayList<>();
+
+		ClassifierUtil.forEachSchedule(schedule -> {
+			Counters[] profile = schedule.getProfile();
+			long pairs = schedule.getProfiledPairs();
+			if (pairs == 0) return;
+
+			for (int i = 0; i < schedule.classifiers.length; i++) {
+				Counters counters = profile[i];
+				long calls = counters.calls.sum();
+				if (calls == 0) continue;
+
+				ret.add(new Entry(schedule.type, schedule.level, schedule.classifiers[i].getName(),
+						calls, counters.nanos.sum(),
+						counters.getPercentile(0.5), counters.getPercentile(0.9), counters.getPercentile(0.99),
+						counters.maxMismatchExits.sum(), counters.boundExits.sum(), pairs));
+			}
+		});
+
+		ret.sort(Comparator.comparingLong((Entry e) -> e.totalNanos).reversed());
+
+		return ret;
+	}
+
+	/**
+	 * Sum the time of all recorded classifier evaluations.
+	 */
+	public static long getTotalNanos(Collection<Entry> entries) {
+		long ret = 0;
+
+		for (Entry entry : entries) {
+			ret += entry.totalNanos;
+		}
+
+		return ret;
+	}
+
+	static final class Counters {
+		void record(long time) {
+			calls.increment();
+			nanos.add(time);
+			latencies.incrementAndGet(getBucket(time));
+		}
+
+		/**
+		 * Estimate a latency percentile from the histogram, returning the upper bound of the bucket it falls into.
+		 */
+		long getPercentile(double fraction) {
+			long total = 0;
+
+			for (int i = 0; i < bucketCount; i++) {
+				total += latencies.get(i);
+			}
+
+			if (total == 0) return 0;
+
+			long target = (long) Math.ceil(total * fraction);
+			long count = 0;
+
+			for (int i = 0; i < bucketCount; i++) {
+				count += latencies.get(i);
+				if (count >= target) return getBucketLimit(i);
+			}
+
+			return Long.MAX_VALUE;
+		}
+
+		/**
+		 * Map a duration to a histogram bucket, using 4 buckets per power of 2.
+		 */
+		private static int getBucket(long time) {
+			if (time < 4) return (int) Math.max(time, 0);
+
+			int exp = 63 - Long.numberOfLeadingZeros(time);
+
+			return Math.min(exp * 4 + (int) (time >>> (exp - 2) & 3), bucketCount - 1);
+		}
+
+		private static long getBucketLimit(int bucket) {
+			if (bucket < 4) return bucket;
+
+			int exp = bucket / 4;
+			if (exp >= 62) return Long.MAX_VALUE;
+
+			return (1L << exp) + ((long) (bucket % 4 + 1) << (exp - 2)) - 1;
+		}
+
+		private static final int bucketCount = 4 * 64;
+
+		final LongAdder calls = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+		final LongAdder maxMismatchExits = new LongAdder();
+		final LongAdder boundExits = new LongAdder();
+		private final AtomicLongArray latencies = new AtomicLongArray(bucketCount);
+	}
+
+	public static final class Entry {
+		Entry(MatchType type, ClassifierLevel level, String name,
+				long calls, long totalNanos, long p50Nanos, long p90Nanos, long p99Nanos,
+				long maxMismatchExits, long boundExits, long rankedPairs) {
+			this.type = type;
+			this.level = level;
+			this.name = name;
+			this.calls = calls;
+			this.totalNanos = totalNanos;
+			this.p50Nanos = p50Nanos;
+			this.p90Nanos = p90Nanos;
+			this.p99Nanos = p99Nanos;
+			this.maxMismatchExits = maxMismatchExits;
+			this.boundExits = boundExits;
+			this.rankedPairs = rankedPairs;
+		}
+
+		/**
+		 * Get the share of the ranked pairs of the classifier list this classifier ended early.
+		 */
+		public double getExitShare() {
+			return rankedPairs == 0 ? 0 : (double) (maxMismatchExits + boundExits) / rankedPairs;
+		}
+
+		public final MatchType type;
+		public final ClassifierLevel level;
+		public final String name;
+		public final long calls;
+		public final long totalNanos;
+		public final long p50Nanos;
+		public final long p90Nanos;
+		public final long p99Nanos;
+		/** rankings ended by this classifier's mismatch reaching maxMismatch */
+		public final long maxMismatchExits;
+		/** rankings ended by the score no longer being able to reach the required top entries */
+		public final long boundExits;
+		/** pairs ranked with the classifier list while profiling */
+		public final long rankedPairs;
+	}
+
+	private static volatile boolean enabled;
+}
@@ -0,0 +1,149 @@
+package matcher.classifier;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import matcher.classifier.ClassifierProfiler.Counters;
+import matcher.type.MatchType;
+
+/**
+ * Evaluation order for a classifier list, learned from sampled runtime statistics.
+ *
+ * <p>The classifiers are ordered by the mismatch they contribute per nanosecond spent, so cheap classifiers that
+ * often reject a pair run before the costly ones. The order only affects how early a pair gets rejected, the
+ * final scores are always summed in registration order.
+ */
+final class ClassifierSchedule<T> {
+	ClassifierSchedule(Collection<IClassifier<T>> classifiers, MatchType type, ClassifierLevel level) {
+		@SuppressWarnings({ "rawtypes", "unchecked" }) // generic array creation, only holds the IClassifier<T> elements
+		IClassifier<T>[] array = classifiers.toArray(new IClassifier[0]);
+
+		this.type = type;
+		this.level = level;
+		this.classifiers = array;
+		this.weights = new double[this.classifiers.length];
+		this.nanos = new LongAdder[this.classifiers.length];
+		this.evaluations = new LongAdder[this.classifiers.length];
+		this.mismatch = new DoubleAdder[this.classifiers.length];
+
+		double totalWeight = 0;
+
+		for (int i = 0; i < this.classifiers.length; i++) {
+			weights[i] = this.classifiers[i].getWeight();
+			totalWeight += weights[i];
+			nanos[i] = new LongAdder();
+			evaluations[i] = new LongAdder();
+			mismatch[i] = new DoubleAdder();
+		}
+
+		int[] order = new int[this.classifiers.length];
+		Arrays.setAll(order, i -> i);
+
+		this.boundSlack = 1e-6 * (totalWeight + 1); // covers scores slightly above 1 and fp rounding
+		this.state = new State(order, weights);
+
+		resetProfile();
+	}
+
+	/**
+	 * Decide whether the next pair evaluation should record statistics, updating the order periodically.
+	 */
+	boolean sample() {
+		if (ThreadLocalRandom.current().nextInt(sampleRate) != 0) return false;
+
+		if (samples.incrementAndGet() % reorderInterval == 0) reorder();
+
+		return true;
+	}
+
+	void record(int idx, long time, double cMismatch) {
+		nanos[idx].add(time);
+		evaluations[idx].increment();
+		mismatch[idx].add(cMismatch);
+	}
+
+	Counters[] getProfile() {
+		return profile;
+	}
+
+	long getProfiledPairs() {
+		return profiledPairs.sum();
+	}
+
+	void recordProfiledPair() {
+		profiledPairs.increment();
+	}
+
+	void resetProfile() {
+		Counters[] profile = new Counters[classifiers.length];
+
+		for (int i = 0; i < profile.length; i++) {
+			profile[i] = new Counters();
+		}
+
+		this.profile = profile;
+		profiledPairs.reset();
+	}
+
+	private void reorder() {
+		int count = classifiers.length;
+		Integer[] order = new Integer[count];
+		double[] priority = new double[count];
+
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+
+			long time = nanos[i].sum();
+
+			if (evaluations[i].sum() == 0) { // not measured yet, run early to get measured
+				priority[i] = Double.POSITIVE_INFINITY;
+			} else {
+				priority[i] = mismatch[i].sum() / Math.max(time, 1);
+			}
+		}
+
+		Arrays.sort(order, (a, b) -> Double.compare(priority[b], priority[a]));
+
+		int[] newOrder = new int[count];
+
+		for (int i = 0; i < count; i++) {
+			newOrder[i] = order[i];
+		}
+
+		state = new State(newOrder, weights);
+	}
+
+	static final class State {
+		State(int[] order, double[] weights) {
+			this.order = order;
+			this.remainingWeights = new double[order.length + 1];
+
+			for (int i = order.length - 1; i >= 0; i--) {
+				remainingWeights[i] = remainingWeights[i + 1] + weights[order[i]];
+			}
+		}
+
+		final int[] order;
+		final double[] remainingWeights; // weight of the classifiers from order index i on
+	}
+
+	private static final int sampleRate = 32;
+	private static final int reorderInterval = 256;
+
+	final MatchType type;
+	final ClassifierLevel level;
+	final IClassifier<T>[] classifiers;
+	final double[] weights;
+	final double boundSlack;
+	volatile State state;
+	private final LongAdder[] nanos;
+	private final LongAdder[] evaluations;
+	private final DoubleAdder[] mismatch;
+	private final AtomicLong samples = new AtomicLong();
+	private volatile Counters[] profile;
+	private final LongAdder profiledPairs = new LongAdder();
+}
@@ -6,40 +6,33 @@ import java.util.Collection;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiFunction;
 import java.util.function.BiPredicate;
+import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.function.ToIntBiFunction;
 import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
 
-import org.objectweb.asm.Handle;
-import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
-import org.objectweb.asm.tree.FieldInsnNode;
-import org.objectweb.asm.tree.IincInsnNode;
 import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.IntInsnNode;
-import org.objectweb.asm.tree.InvokeDynamicInsnNode;
-import org.objectweb.asm.tree.JumpInsnNode;
 import org.objectweb.asm.tree.LdcInsnNode;
-import org.objectweb.asm.tree.LookupSwitchInsnNode;
-import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
 import org.objectweb.asm.tree.MultiANewArrayInsnNode;
-import org.objectweb.asm.tree.TableSwitchInsnNode;
-import org.objectweb.asm.tree.TypeInsnNode;
-import org.objectweb.asm.tree.VarInsnNode;
 
 import matcher.Util;
+import matcher.classifier.ClassifierProfiler.Counters;
 import matcher.classifier.MatchingCache.CacheToken;
 import matcher.type.ClassEnvironment;
 import matcher.type.ClassInstance;
 import matcher.type.FieldInstance;
 import matcher.type.IMatchable;
+import matcher.type.MatchType;
 import matcher.type.MethodInstance;
 import matcher.type.MethodVarInstance;
 
@@ -149,6 +142,49 @@ public class ClassifierUtil {
 		return total == 0 ? 1 : (double) matched / total;
 	}
 
+	/**
+	 * Compare like {@link #compareSets(Set, Set, boolean)} for sets stored as sorted distinct arrays.
+	 */
+	public static double compareSortedSets(int[] a, int[] b) {
+		int matched = 0;
+
+		for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+			if (a[i] < b[j]) {
+				i++;
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				matched++;
+				i++;
+				j++;
+			}
+		}
+
+		int total = a.length - matched + b.length;
+
+		return total == 0 ? 1 : (double) matched / total;
+	}
+
+	public static double compareSortedSets(long[] a, long[] b) {
+		int matched = 0;
+
+		for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+			if (a[i] < b[j]) {
+				i++;
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				matched++;
+				i++;
+				j++;
+			}
+		}
+
+		int total = a.length - matched + b.length;
+
+		return total == 0 ? 1 : (double) matched / total;
+	}
+
 	public static double compareClassSets(Set<ClassInstance> setA, Set<ClassInstance> setB, boolean readOnly) {
 		return compareIdentitySets(setA, setB, readOnly, ClassifierUtil::checkPotentialEquality);
 	}
@@ -166,10 +202,7 @@ public class ClassifierUtil {
 			return setA.isEmpty() && setB.isEmpty() ? 1 : 0;
 		}
 
-		if (readOnly) {
-			setA = Util.newIdentityHashSet(setA);
-			setB = Util.newIdentityHashSet(setB);
-		}
+		if (readOnly) return compareIdentitySetsReadOnly(setA, setB, comparator);
 
 		final int total = setA.size() + setB.size();
 		int unmatched = 0;
@@ -243,199 +276,226 @@ public class ClassifierUtil {
 		return (double) (total - unmatched) / total;
 	}
 
-	public static double compareClassLists(List<ClassInstance> listA, List<ClassInstance> listB) {
-		return compareLists(listA, listB, List::get, List::size, ClassifierUtil::checkPotentialEquality);
-	}
-
-	public static double compareInsns(InsnList listA, InsnList listB, ClassEnvironment env) {
-		return compareLists(listA, listB, InsnList::get, InsnList::size, (inA, inB) -> compareInsns(inA, inB, listA, listB, (list, item) -> list.indexOf(item), env));
-	}
-
-	public static double compareInsns(List<AbstractInsnNode> listA, List<AbstractInsnNode> listB, ClassEnvironment env) {
-		return compareLists(listA, listB, List::get, List::size, (inA, inB) -> compareInsns(inA, inB, listA, listB, (list, item) -> list.indexOf(item), env));
-	}
-
-	private static <T> boolean compareInsns(AbstractInsnNode insnA, AbstractInsnNode insnB, T listA, T listB, ToIntBiFunction<T, AbstractInsnNode> posProvider, ClassEnvironment env) {
-		if (insnA.getOpcode() != insnB.getOpcode()) return false;
+	/**
+	 * Same result as the consuming comparison in compareIdentitySets without copying or modifying the sets.
+	 *
+	 * <p>The entries still present after the precise match passes are tracked in local bitsets by iteration index.
+	 */
+	private static <T extends IMatchable<T>> double compareIdentitySetsReadOnly(Set<T> setA, Set<T> setB, BiPredicate<T, T> comparator) {
+		final int total = setA.size() + setB.size();
+		int unmatched = 0;
+		long[] remainingA = new long[(setA.size() + 63) >>> 6];
+		long[] remainingB = new long[(setB.size() + 63) >>> 6];
+		int idx = 0;
 
-		switch (insnA.getType()) {
-		case AbstractInsnNode.INT_INSN: {
-			IntInsnNode a = (IntInsnNode) insnA;
-			IntInsnNode b = (IntInsnNode) insnB;
+		// precise matches, nameObfuscated a
+		for (T a : setA) {
+			if (!setB.contains(a)) {
+				T match = a.getMatch();
 
-			return a.operand == b.operand;
-		}
-		case AbstractInsnNode.VAR_INSN: {
-			VarInsnNode a = (VarInsnNode) insnA;
-			VarInsnNode b = (VarInsnNode) insnB;
+				if (match != null) {
+					if (!setB.contains(match)) unmatched++;
+				} else if (assumeBothOrNoneObfuscated && !a.isNameObfuscated()) {
+					unmatched++;
+				} else {
+					remainingA[idx >>> 6] |= 1L << idx;
+				}
+			}
 
-			return a.var == b.var;
+			idx++;
 		}
-		case AbstractInsnNode.TYPE_INSN: {
-			TypeInsnNode a = (TypeInsnNode) insnA;
-			TypeInsnNode b = (TypeInsnNode) insnB;
-			ClassInstance clsA = env.getClsByNameA(a.desc);
-			ClassInstance clsB = env.getClsByNameB(b.desc);
 
-			return checkPotentialEqualityNullable(clsA, clsB);
-		}
-		case AbstractInsnNode.FIELD_INSN: {
-			FieldInsnNode a = (FieldInsnNode) insnA;
-			FieldInsnNode b = (FieldInsnNode) insnB;
-			ClassInstance clsA = env.getClsByNameA(a.owner);
-			ClassInstance clsB = env.getClsByNameB(b.owner);
+		// nameObfuscated b, b is gone if it was in setA or the match of an a that wasn't in setB
+		idx = 0;
 
-			if (clsA == null && clsB == null) return true;
-			if (clsA == null || clsB == null) return false;
+		for (T b : setB) {
+			T match;
 
-			FieldInstance fieldA = clsA.resolveField(a.name, a.desc);
-			FieldInstance fieldB = clsB.resolveField(b.name, b.desc);
+			if (!setA.contains(b)
+					&& ((match = b.getMatch()) == null || !setA.contains(match) || setB.contains(match))) {
+				if (assumeBothOrNoneObfuscated && !b.isNameObfuscated()) {
+					unmatched++;
+				} else {
+					remainingB[idx >>> 6] |= 1L << idx;
+				}
+			}
 
-			return checkPotentialEqualityNullable(fieldA, fieldB);
+			idx++;
 		}
-		case AbstractInsnNode.METHOD_INSN: {
-			MethodInsnNode a = (MethodInsnNode) insnA;
-			MethodInsnNode b = (MethodInsnNode) insnB;
 
-			return compareMethods(a.owner, a.name, a.desc, Util.isCallToInterface(a),
-					b.owner, b.name, b.desc, Util.isCallToInterface(b),
-					env);
-		}
-		case AbstractInsnNode.INVOKE_DYNAMIC_INSN: {
-			InvokeDynamicInsnNode a = (InvokeDynamicInsnNode) insnA;
-			InvokeDynamicInsnNode b = (InvokeDynamicInsnNode) insnB;
+		int idxA = 0;
 
-			if (!a.bsm.equals(b.bsm)) return false;
+		for (T a : setA) {
+			if ((remainingA[idxA >>> 6] & 1L << idxA) != 0) {
+				boolean found = false;
+				int idxB = 0;
 
-			if (Util.isJavaLambdaMetafactory(a.bsm)) {
-				Handle implA = (Handle) a.bsmArgs[1];
-				Handle implB = (Handle) b.bsmArgs[1];
+				for (T b : setB) {
+					if ((remainingB[idxB >>> 6] & 1L << idxB) != 0 && comparator.test(a, b)) {
+						found = true;
+						break;
+					}
 
-				if (implA.getTag() != implB.getTag()) return false;
+					idxB++;
+				}
 
-				switch (implA.getTag()) {
-				case Opcodes.H_INVOKEVIRTUAL:
-				case Opcodes.H_INVOKESTATIC:
-				case Opcodes.H_INVOKESPECIAL:
-				case Opcodes.H_NEWINVOKESPECIAL:
-				case Opcodes.H_INVOKEINTERFACE:
-					return compareMethods(implA.getOwner(), implA.getName(), implA.getDesc(), Util.isCallToInterface(implA),
-							implB.getOwner(), implB.getName(), implB.getDesc(), Util.isCallToInterface(implB),
-							env);
-				default:
-					System.out.println("unexpected impl tag: "+implA.getTag());
+				if (!found) {
+					unmatched++;
+					remainingA[idxA >>> 6] &= ~(1L << idxA);
 				}
-			} else {
-				System.out.printf("unknown invokedynamic bsm: %s/%s%s (tag=%d iif=%b)%n", a.bsm.getOwner(), a.bsm.getName(), a.bsm.getDesc(), a.bsm.getTag(), a.bsm.isInterface());
 			}
 
-			// TODO: implement
-			break;
-		}
-		case AbstractInsnNode.JUMP_INSN: {
-			JumpInsnNode a = (JumpInsnNode) insnA;
-			JumpInsnNode b = (JumpInsnNode) insnB;
-
-			// check if the 2 jumps have the same direction
-			return Integer.signum(posProvider.applyAsInt(listA, a.label) - posProvider.applyAsInt(listA, a)) == Integer.signum(posProvider.applyAsInt(listB, b.label) - posProvider.applyAsInt(listB, b));
+			idxA++;
 		}
-		case AbstractInsnNode.LABEL: {
-			// TODO: implement
-			break;
-		}
-		case AbstractInsnNode.LDC_INSN: {
-			LdcInsnNode a = (LdcInsnNode) insnA;
-			LdcInsnNode b = (LdcInsnNode) insnB;
-			Class<?> typeClsA = a.cst.getClass();
 
-			if (typeClsA != b.cst.getClass()) return false;
+		int idxB = 0;
 
-			if (typeClsA == Type.class) {
-				Type typeA = (Type) a.cst;
-				Type typeB = (Type) b.cst;
+		for (T b : setB) {
+			if ((remainingB[idxB >>> 6] & 1L << idxB) != 0) {
+				boolean found = false;
+				idxA = 0;
 
-				if (typeA.getSort() != typeB.getSort()) return false;
+				for (T a : setA) {
+					if ((remainingA[idxA >>> 6] & 1L << idxA) != 0 && comparator.test(a, b)) {
+						found = true;
+						break;
+					}
 
-				switch (typeA.getSort()) {
-				case Type.ARRAY:
-				case Type.OBJECT:
-					return checkPotentialEqualityNullable(env.getClsByIdA(typeA.getDescriptor()), env.getClsByIdB(typeB.getDescriptor()));
-				case Type.METHOD:
-					// TODO: implement
-					break;
+					idxA++;
 				}
-			} else {
-				return a.cst.equals(b.cst);
+
+				if (!found) unmatched++;
 			}
 
-			break;
+			idxB++;
 		}
-		case AbstractInsnNode.IINC_INSN: {
-			IincInsnNode a = (IincInsnNode) insnA;
-			IincInsnNode b = (IincInsnNode) insnB;
 
-			return a.var == b.var && a.incr == b.incr;
-		}
-		case AbstractInsnNode.TABLESWITCH_INSN: {
-			TableSwitchInsnNode a = (TableSwitchInsnNode) insnA;
-			TableSwitchInsnNode b = (TableSwitchInsnNode) insnB;
+		assert unmatched <= total;
 
-			return a.min == b.min && a.max == b.max;
-		}
-		case AbstractInsnNode.LOOKUPSWITCH_INSN: {
-			LookupSwitchInsnNode a = (LookupSwitchInsnNode) insnA;
-			LookupSwitchInsnNode b = (LookupSwitchInsnNode) insnB;
+		return (double) (total - unmatched) / total;
+	}
 
-			return a.keys.equals(b.keys);
-		}
-		case AbstractInsnNode.MULTIANEWARRAY_INSN: {
-			MultiANewArrayInsnNode a = (MultiANewArrayInsnNode) insnA;
-			MultiANewArrayInsnNode b = (MultiANewArrayInsnNode) insnB;
+	public static double compareClassLists(List<ClassInstance> listA, List<ClassInstance> listB) {
+		return compareLists(listA, listB, List::get, List::size, ClassifierUtil::checkPotentialEquality);
+	}
 
-			if (a.dims != b.dims) return false;
+	public static double compareInsns(InsnList listA, InsnList listB, ClassEnvironment env) {
+		return compareInsns(InsnTokens.create(listA, env.getEnvA()), InsnTokens.create(listB, env.getEnvB()));
+	}
 
-			ClassInstance clsA = env.getClsByNameA(a.desc);
-			ClassInstance clsB = env.getClsByNameB(b.desc);
+	public static double compareInsns(List<AbstractInsnNode> listA, List<AbstractInsnNode> listB, ClassEnvironment env) {
+		return compareInsns(InsnTokens.create(listA, env.getEnvA()), InsnTokens.create(listB, env.getEnvB()));
+	}
 
-			return checkPotentialEqualityNullable(clsA, clsB);
-		}
-		case AbstractInsnNode.FRAME: {
-			// TODO: implement
-			break;
-		}
-		case AbstractInsnNode.LINE: {
-			// TODO: implement
-			break;
-		}
-		}
+	/**
+	 * Compare the code of 2 methods that both have an asm node.
+	 */
+	public static double compareInsns(MethodInstance a, MethodInstance b) {
+		return compareInsns(a.getInsnTokens(), b.getInsnTokens());
+	}
 
-		return true;
+	public static double compareInsns(InsnTokens tokensA, InsnTokens tokensB) {
+		return compareLists(tokensA.size(), tokensB.size(), (idxA, idxB) -> InsnTokens.compare(tokensA, idxA, tokensB, idxB));
 	}
 
-	private static boolean compareMethods(String ownerA, String nameA, String descA, boolean toIfA, String ownerB, String nameB, String descB, boolean toIfB, ClassEnvironment env) {
-		ClassInstance clsA = env.getClsByNameA(ownerA);
-		ClassInstance clsB = env.getClsByNameB(ownerB);
+	/**
+	 * Compare the code of 2 methods that both have an asm node, see {@link #compareInsns(InsnTokens, InsnTokens, double)}.
+	 *
+	 * <p>Pairs whose opcode histograms already rule out minScore are rejected without aligning any instructions.
+	 */
+	public static double compareInsns(MethodInstance a, MethodInstance b, double minScore) {
+		double maxScore = OpcodeHistogram.getMaxSimilarity(a.getOpcodeHistogram(), b.getOpcodeHistogram());
+		if (maxScore < minScore) return maxScore;
 
-		if (clsA == null && clsB == null) return true;
-		if (clsA == null || clsB == null) return false;
+		return compareInsns(a.getInsnTokens(), b.getInsnTokens(), minScore);
+	}
 
-		return compareMethods(clsA, nameA, descA, toIfA, clsB, nameB, descB, toIfB);
+	/**
+	 * Compare instructions like {@link #compareInsns(InsnTokens, InsnTokens)}, but only determine the exact result
+	 * if it is at least minScore.
+	 *
+	 * <p>Lower results are detected through a banded edit distance that only evaluates instruction pairs within the
+	 * tolerable distance of the diagonal, an upper bound below minScore gets returned for them.
+	 */
+	public static double compareInsns(InsnTokens tokensA, InsnTokens tokensB, double minScore) {
+		return compareLists(tokensA.size(), tokensB.size(), (idxA, idxB) -> InsnTokens.compare(tokensA, idxA, tokensB, idxB), minScore);
+	}
+
+	private static <T, U> double compareLists(T listA, T listB, ListElementRetriever<T, U> elementRetriever, ListSizeRetriever<T> sizeRetriever, BiPredicate<U, U> elementComparator) {
+		return compareLists(sizeRetriever.apply(listA), sizeRetriever.apply(listB), (idxA, idxB) -> elementComparator.test(elementRetriever.apply(listA, idxA), elementRetriever.apply(listB, idxB)));
 	}
 
-	private static boolean compareMethods(ClassInstance ownerA, String nameA, String descA, boolean toIfA, ClassInstance ownerB, String nameB, String descB, boolean toIfB) {
-		MethodInstance methodA = ownerA.resolveMethod(nameA, descA, toIfA);
-		MethodInstance methodB = ownerB.resolveMethod(nameB, descB, toIfB);
+	private static double compareLists(final int sizeA, final int sizeB, ElementComparator elementComparator, double minScore) {
+		int upperBound = Math.max(sizeA, sizeB);
+		// highest distance still scoring at least minScore, rounded up to stay conservative
+		double maxDistance = Math.max(0, Math.ceil((1 - minScore) * upperBound));
+		if (!(maxDistance < upperBound)) return compareLists(sizeA, sizeB, elementComparator);
 
-		if (methodA == null && methodB == null) return true;
-		if (methodA == null || methodB == null) return false;
+		int distance = getBoundedDistance(sizeA, sizeB, elementComparator, (int) maxDistance);
 
-		return checkPotentialEquality(methodA, methodB);
+		return 1 - (double) distance / upperBound;
 	}
 
-	private static <T, U> double compareLists(T listA, T listB, ListElementRetriever<T, U> elementRetriever, ListSizeRetriever<T> sizeRetriever, BiPredicate<U, U> elementComparator) {
-		final int sizeA = sizeRetriever.apply(listA);
-		final int sizeB = sizeRetriever.apply(listB);
+	/**
+	 * Determine the levenshtein distance if it is at most maxDistance, maxDistance + 1 otherwise.
+	 *
+	 * <p>Only the cells within maxDistance of the diagonal can hold a distance up to maxDistance (Ukkonen), the
+	 * computation stops once a whole row exceeds maxDistance.
+	 */
+	private static int getBoundedDistance(final int sizeA, final int sizeB, ElementComparator elementComparator, final int maxDistance) {
+		final int limit = maxDistance + 1;
+		if (Math.abs(sizeA - sizeB) >= limit) return limit;
+
+		if (sizeA == sizeB) {
+			boolean match = true;
+
+			for (int i = 0; i < sizeA; i++) {
+				if (!elementComparator.test(i, i)) {
+					match = false;
+					break;
+				}
+			}
+
+			if (match) return 0;
+		}
+
+		int[] v0 = new int[sizeB + 1];
+		int[] v1 = new int[sizeB + 1];
+
+		for (int j = 0; j < v0.length; j++) {
+			v0[j] = Math.min(j, limit);
+		}
+
+		for (int i = 0; i < sizeA; i++) {
+			// row i + 1 covers the columns j + 1 for j in [start, end)
+			int start = Math.max(0, i - maxDistance);
+			int end = Math.min(sizeB, i + 1 + maxDistance);
+			int rowMin = limit;
 
+			v1[start] = start == 0 ? Math.min(i + 1, limit) : limit;
+			if (start == 0) rowMin = v1[0];
+
+			for (int j = start; j < end; j++) {
+				int cost = elementComparator.test(i, j) ? 0 : 1;
+				int v = Math.min(Math.min(v1[j] + 1, v0[j + 1] + 1), v0[j] + cost);
+				if (v > limit) v = limit;
+
+				v1[j + 1] = v;
+				if (v < rowMin) rowMin = v;
+			}
+
+			if (rowMin >= limit) return limit;
+			if (end < sizeB) v1[end + 1] = limit; // right of the band for the next row
+
+			int[] tmp = v0;
+			v0 = v1;
+			v1 = tmp;
+		}
+
+		return v0[sizeB];
+	}
+
+	private static double compareLists(final int sizeA, final int sizeB, ElementComparator elementComparator) {
 		if (sizeA == 0 && sizeB == 0) return 1;
 		if (sizeA == 0 || sizeB == 0) return 0;
 
@@ -443,7 +503,7 @@ public class ClassifierUtil {
 			boolean match = true;
 
 			for (int i = 0; i < sizeA; i++) {
-				if (!elementComparator.test(elementRetriever.apply(listA, i), elementRetriever.apply(listB, i))) {
+				if (!elementComparator.test(i, i)) {
 					match = false;
 					break;
 				}
@@ -464,7 +524,7 @@ public class ClassifierUtil {
 			v1[0] = i + 1;
 
 			for (int j = 0; j < sizeB; j++) {
-				int cost = elementComparator.test(elementRetriever.apply(listA, i), elementRetriever.apply(listB, j)) ? 0 : 1;
+				int cost = elementComparator.test(i, j) ? 0 : 1;
 				v1[j + 1] = Math.min(Math.min(v1[j] + 1, v0[j + 1] + 1), v0[j] + cost);
 			}
 
@@ -486,21 +546,96 @@ public class ClassifierUtil {
 		InsnList ilA = a.getAsmNode().instructions;
 		InsnList ilB = b.getAsmNode().instructions;
 
-		if (ilA.size() * ilB.size() < 1000) {
-			return mapInsns(ilA, ilB, a.getEnv().getGlobal());
+		if ((long) ilA.size() * ilB.size() < 1000) {
+			return mapInsns(a.getInsnTokens(), b.getInsnTokens());
 		} else {
-			return a.getEnv().getGlobal().getCache().compute(ilMapCacheToken, a, b, (mA, mB) -> mapInsns(mA.getAsmNode().instructions, mB.getAsmNode().instructions, mA.getEnv().getGlobal()));
+			return a.getEnv().getGlobal().getCache().compute(ilMapCacheToken, a, b,
+					(mA, mB) -> mapInsns(mA.getInsnTokens(), mB.getInsnTokens()),
+					ClassifierUtil::getInsnDependencies);
 		}
 	}
 
+	/**
+	 * Determine the entities whose match state affects compareInsns results for the method's instructions.
+	 */
+	static Collection<IMatchable<?>> getInsnDependencies(MethodInstance method) {
+		Set<IMatchable<?>> ret = Util.newIdentityHashSet();
+
+		for (ClassInstance cls : method.getClassRefs()) {
+			addClassDependency(cls, ret);
+		}
+
+		for (MethodInstance m : method.getRefsOut()) {
+			ret.add(m);
+			addClassDependency(m.getCls(), ret);
+		}
+
+		for (FieldInstance f : method.getFieldReadRefs()) {
+			ret.add(f);
+			addClassDependency(f.getCls(), ret);
+		}
+
+		for (FieldInstance f : method.getFieldWriteRefs()) {
+			ret.add(f);
+			addClassDependency(f.getCls(), ret);
+		}
+
+		// class refs not recorded by the feature extractor
+
+		for (Iterator<AbstractInsnNode> it = method.getAsmNode().instructions.iterator(); it.hasNext(); ) {
+			AbstractInsnNode ain = it.next();
+			ClassInstance cls;
+
+			if (ain.getType() == AbstractInsnNode.LDC_INSN && ((LdcInsnNode) ain).cst instanceof Type) {
+				Type type = (Type) ((LdcInsnNode) ain).cst;
+				if (type.getSort() != Type.ARRAY && type.getSort() != Type.OBJECT) continue;
+
+				cls = method.getEnv().getClsById(type.getDescriptor());
+			} else if (ain.getType() == AbstractInsnNode.MULTIANEWARRAY_INSN) {
+				cls = method.getEnv().getClsByName(((MultiANewArrayInsnNode) ain).desc);
+			} else {
+				continue;
+			}
+
+			if (cls != null) addClassDependency(cls, ret);
+		}
+
+		return ret;
+	}
+
+	private static void addClassDependency(ClassInstance cls, Set<IMatchable<?>> out) {
+		out.add(cls);
+		if (cls.isArray()) out.add(cls.getElementClass());
+	}
+
 	public static int[] mapInsns(InsnList listA, InsnList listB, ClassEnvironment env) {
-		return mapLists(listA, listB, InsnList::get, InsnList::size, (inA, inB) -> compareInsns(inA, inB, listA, listB, (list, item) -> list.indexOf(item), env));
+		return mapInsns(InsnTokens.create(listA, env.getEnvA()), InsnTokens.create(listB, env.getEnvB()));
+	}
+
+	/**
+	 * Map the instructions of a to the best matching instructions of b, null if the alignment doesn't fit into the
+	 * alignment memory budget.
+	 *
+	 * @return index into b for every instruction of a, -1 if unmatched
+	 */
+	public static int[] mapInsns(InsnTokens tokensA, InsnTokens tokensB) {
+		return mapLists(tokensA.size(), tokensB.size(), (idxA, idxB) -> InsnTokens.compare(tokensA, idxA, tokensB, idxB));
+	}
+
+	public static long getAlignmentMemoryBudget() {
+		return alignmentMemoryBudget;
 	}
 
-	private static <T, U> int[] mapLists(T listA, T listB, ListElementRetriever<T, U> elementRetriever, ListSizeRetriever<T> sizeRetriever, BiPredicate<U, U> elementComparator) {
-		final int sizeA = sizeRetriever.apply(listA);
-		final int sizeB = sizeRetriever.apply(listB);
+	/**
+	 * Set the memory in bytes a single instruction alignment may use, larger alignments get skipped by mapInsns.
+	 */
+	public static void setAlignmentMemoryBudget(long bytes) {
+		if (bytes <= 0) throw new IllegalArgumentException("invalid alignment memory budget: "+bytes);
 
+		alignmentMemoryBudget = bytes;
+	}
+
+	private static int[] mapLists(final int sizeA, final int sizeB, ElementComparator elementComparator) {
 		if (sizeA == 0 && sizeB == 0) return new int[0];
 
 		final int[] ret = new int[sizeA];
@@ -515,7 +650,7 @@ public class ClassifierUtil {
 			boolean match = true;
 
 			for (int i = 0; i < sizeA; i++) {
-				if (!elementComparator.test(elementRetriever.apply(listA, i), elementRetriever.apply(listB, i))) {
+				if (!elementComparator.test(i, i)) {
 					match = false;
 					break;
 				}
@@ -531,68 +666,111 @@ public class ClassifierUtil {
 		}
 
 		// levenshtein distance as per wp (https://en.wikipedia.org/wiki/Levenshtein_distance#Iterative_with_two_matrix_rows)
-		int size = sizeA + 1;
-		int[] v = new int[size * (sizeB + 1)];
+		// the full matrix is only kept if it fits into the memory budget, otherwise every blockSize-th row gets stored
+		// and the rows in between are recomputed block by block while backtracking, yielding the same mapping
 
-		for (int i = 1; i <= sizeA; i++) {
-			v[i + 0] = i;
-		}
+		final int size = sizeA + 1;
+		final long maxCells = alignmentMemoryBudget / Integer.BYTES;
+		final int blockSize;
+		final int[] checkpoints;
+		int[] v;
 
-		for (int j = 1; j <= sizeB; j++) {
-			v[0 + j * size] = j;
-		}
+		if ((long) size * (sizeB + 1) <= maxCells) {
+			blockSize = sizeB;
+			checkpoints = null;
+			v = new int[size * (sizeB + 1)];
 
-		for (int j = 1; j <= sizeB; j++) {
-			for (int i = 1; i <= sizeA; i++) {
-				int cost = elementComparator.test(elementRetriever.apply(listA, i - 1), elementRetriever.apply(listB, j - 1)) ? 0 : 1;
+			initAlignmentRow(v, sizeA);
 
-				v[i + j * size] = Math.min(Math.min(v[i - 1 + j * size] + 1, v[i + (j - 1) * size] + 1), v[i - 1 + (j - 1) * size] + cost);
+			for (int j = 1; j <= sizeB; j++) {
+				fillAlignmentRow(v, (j - 1) * size, v, j * size, j, sizeA, elementComparator);
 			}
-		}
+		} else {
+			blockSize = (int) Math.ceil(Math.sqrt(sizeB));
+			int checkpointCount = sizeB / blockSize + 1;
+			if (((long) checkpointCount + blockSize + 1) * size > maxCells) return null;
 
-		/*for (int j = 0; j <= sizeB; j++) {
-			for (int i = 0; i <= sizeA; i++) {
-				System.out.print(v[i + j * size]+" ");
-			}
+			checkpoints = new int[checkpointCount * size];
+			v = new int[(blockSize + 1) * size];
+
+			initAlignmentRow(checkpoints, sizeA);
+			System.arraycopy(checkpoints, 0, v, 0, size);
 
-			System.out.println();
-		}*/
+			for (int j = 1; j <= sizeB; j++) {
+				int prevOffset = (j - 1) % 2 * size;
+				int offset = j % 2 * size;
+
+				fillAlignmentRow(v, prevOffset, v, offset, j, sizeA, elementComparator);
+				if (j % blockSize == 0) System.arraycopy(v, offset, checkpoints, j / blockSize * size, size);
+			}
+		}
 
 		int i = sizeA;
 		int j = sizeB;
+		int blockEnd = sizeB;
 
 		for (;;) {
-			int c = v[i + j * size];
-
-			if (i > 0 && v[i - 1 + j * size] + 1 == c) {
-				//System.out.println(i+"/"+j+" del "+elementRetriever.apply(listA, i - 1));
-				ret[i - 1] = -1;
-				i--;
-			} else if (j > 0 && v[i + (j - 1) * size] + 1 == c) {
-				//System.out.println(i+"/"+j+" ins "+elementRetriever.apply(listB, j - 1));
-				ret[i - 1] = -1;
-				j--;
-			} else if (i > 0 && j > 0) {
-				int dist = c - v[i - 1 + (j - 1) * size];
-
-				if (dist == 1) {
-					//System.out.println(i+"/"+j+" rep "+elementRetriever.apply(listA, i - 1)+" -> "+elementRetriever.apply(listB, j - 1));
-					ret[i - 1] = -1;
-				} else {
-					assert dist == 0;
+			// rows blockStart to blockEnd are available in v, starting at offset 0
+			int blockStart = checkpoints == null ? 0 : (blockEnd - 1) / blockSize * blockSize;
 
-					//System.out.println(i+"/"+j+" eq");
-					ret[i - 1] = j - 1;
+			if (checkpoints != null) {
+				System.arraycopy(checkpoints, blockStart / blockSize * size, v, 0, size);
+
+				for (int row = blockStart + 1; row <= blockEnd; row++) {
+					fillAlignmentRow(v, (row - 1 - blockStart) * size, v, (row - blockStart) * size, row, sizeA, elementComparator);
 				}
+			}
 
-				i--;
-				j--;
-			} else {
-				break;
+			while (j > blockStart || blockStart == 0) {
+				int pos = i + (j - blockStart) * size;
+				int c = v[pos];
+
+				if (i > 0 && v[pos - 1] + 1 == c) {
+					//System.out.println(i+"/"+j+" del "+(i - 1));
+					ret[i - 1] = -1;
+					i--;
+				} else if (j > 0 && v[pos - size] + 1 == c) {
+					//System.out.println(i+"/"+j+" ins "+(j - 1));
+					if (i > 0) ret[i - 1] = -1;
+					j--;
+				} else if (i > 0 && j > 0) {
+					int dist = c - v[pos - size - 1];
+
+					if (dist == 1) {
+						//System.out.println(i+"/"+j+" rep "+(i - 1)+" -> "+(j - 1));
+						ret[i - 1] = -1;
+					} else {
+						assert dist == 0;
+
+						//System.out.println(i+"/"+j+" eq");
+						ret[i - 1] = j - 1;
+					}
+
+					i--;
+					j--;
+				} else {
+					return ret;
+				}
 			}
+
+			blockEnd = blockStart;
 		}
+	}
 
-		return ret;
+	private static void initAlignmentRow(int[] v, int sizeA) {
+		for (int i = 0; i <= sizeA; i++) {
+			v[i] = i;
+		}
+	}
+
+	private static void fillAlignmentRow(int[] prev, int prevOffset, int[] v, int offset, int j, int sizeA, ElementComparator elementComparator) {
+		v[offset] = j;
+
+		for (int i = 1; i <= sizeA; i++) {
+			int cost = elementComparator.test(i - 1, j - 1) ? 0 : 1;
+
+			v[offset + i] = Math.min(Math.min(v[offset + i - 1] + 1, prev[prevOffset + i] + 1), prev[prevOffset + i - 1] + cost);
+		}
 	}
 
 	private static interface ListElementRetriever<T, U> {
@@ -603,11 +781,17 @@ public class ClassifierUtil {
 		int apply(T list);
 	}
 
-	public static <T extends IMatchable<T>> List<RankResult<T>> rank(T src, T[] dsts, Collection<IClassifier<T>> classifiers, BiPredicate<T, T> potentialEqualityCheck, ClassEnvironment env, double maxMismatch) {
+	private static interface ElementComparator {
+		boolean test(int idxA, int idxB);
+	}
+
+	public static <T extends IMatchable<T>> List<RankResult<T>> rank(T src, T[] dsts, Collection<IClassifier<T>> classifiers, ClassifierLevel level, BiPredicate<T, T> potentialEqualityCheck, ClassEnvironment env, double maxMismatch) {
+		ClassifierSchedule<T> schedule = getSchedule(classifiers, level, src);
+		double[] scores = new double[schedule.classifiers.length];
 		List<RankResult<T>> ret = new ArrayList<>(dsts.length);
 
 		for (T dst : dsts) {
-			RankResult<T> result = rank(src, dst, classifiers, potentialEqualityCheck, env, maxMismatch);
+			RankResult<T> result = rank(src, dst, schedule, potentialEqualityCheck, env, maxMismatch, scores);
 			if (result != null) ret.add(result);
 		}
 
@@ -616,39 +800,201 @@ public class ClassifierUtil {
 		return ret;
 	}
 
-	public static <T extends IMatchable<T>> List<RankResult<T>> rankParallel(T src, T[] dsts, Collection<IClassifier<T>> classifiers, BiPredicate<T, T> potentialEqualityCheck, ClassEnvironment env, double maxMismatch) {
+	/**
+	 * Rank like {@link #rank(IMatchable, IMatchable[], Collection, ClassifierLevel, BiPredicate, ClassEnvironment, double)}, but
+	 * only determine the first maxResults entries of the ranking.
+	 *
+	 * <p>Once maxResults candidates are known, a destination is dropped as soon as its score plus the weight of the
+	 * remaining classifiers can't exceed the lowest of them anymore. The returned entries are equal to the start of
+	 * the full ranking.
+	 */
+	public static <T extends IMatchable<T>> List<RankResult<T>> rank(T src, T[] dsts, Collection<IClassifier<T>> classifiers, ClassifierLevel level, BiPredicate<T, T> potentialEqualityCheck, ClassEnvironment env, double maxMismatch, int maxResults) {
+		if (maxResults <= 0) throw new IllegalArgumentException("invalid result count: "+maxResults);
+
+		ClassifierSchedule<T> schedule = getSchedule(classifiers, level, src);
+		double[] scores = new double[schedule.classifiers.length];
+		@SuppressWarnings({ "rawtypes", "unchecked" }) // generic array creation, only holds RankResult<T>
+		RankResult<T>[] top = new RankResult[maxResults];
+		int count = 0;
+
+		for (T dst : dsts) {
+			assert src.getEnv() != dst.getEnv();
+
+			if (!potentialEqualityCheck.test(src, dst)) continue;
+
+			double minScore = count == maxResults ? top[count - 1].getScore() : Double.NEGATIVE_INFINITY;
+			double score = getScore(src, dst, schedule, env, maxMismatch, minScore, scores);
+			if (Double.isNaN(score)) continue;
+			if (count == maxResults && score <= minScore) continue; // equal scores keep the dsts order like the full ranking
+
+			int pos = Math.min(count, maxResults - 1);
+
+			while (pos > 0 && top[pos - 1].getScore() < score) {
+				top[pos] = top[pos - 1];
+				pos--;
+			}
+
+			top[pos] = new RankResult<>(dst, score, getResults(schedule, scores));
+			if (count < maxResults) count++;
+		}
+
+		return new ArrayList<>(Arrays.asList(top).subList(0, count));
+	}
+
+	public static <T extends IMatchable<T>> List<RankResult<T>> rankParallel(T src, T[] dsts, Collection<IClassifier<T>> classifiers, ClassifierLevel level, BiPredicate<T, T> potentialEqualityCheck, ClassEnvironment env, double maxMismatch) {
+		ClassifierSchedule<T> schedule = getSchedule(classifiers, level, src);
+
 		return Arrays.stream(dsts)
 				.parallel()
-				.map(dst -> rank(src, dst, classifiers, potentialEqualityCheck, env, maxMismatch))
+				.map(dst -> rank(src, dst, schedule, potentialEqualityCheck, env, maxMismatch, new double[schedule.classifiers.length]))
 				.filter(Objects::nonNull)
 				.sorted(Comparator.<RankResult<T>, Double>comparing(RankResult::getScore).reversed())
 				.collect(Collectors.toList());
 	}
 
-	private static <T extends IMatchable<T>> RankResult<T> rank(T src, T dst, Collection<IClassifier<T>> classifiers, BiPredicate<T, T> potentialEqualityCheck, ClassEnvironment env, double maxMismatch) {
+	private static <T extends IMatchable<T>> RankResult<T> rank(T src, T dst, ClassifierSchedule<T> schedule, BiPredicate<T, T> potentialEqualityCheck, ClassEnvironment env, double maxMismatch, double[] scores) {
 		assert src.getEnv() != dst.getEnv();
 
 		if (!potentialEqualityCheck.test(src, dst)) return null;
 
+		double score = getScore(src, dst, schedule, env, maxMismatch, Double.NEGATIVE_INFINITY, scores);
+		if (Double.isNaN(score)) return null;
+
+		return new RankResult<>(dst, score, getResults(schedule, scores));
+	}
+
+	/**
+	 * Score a pair, NaN if it gets rejected by maxMismatch or can't reach above minScore.
+	 *
+	 * <p>The classifiers run in the schedule's order, rejecting with some slack for the different summation order.
+	 * The returned score and the maxMismatch check are then computed exactly as if the classifiers ran in
+	 * registration order. The individual classifier scores get stored in scores, in registration order.
+	 */
+	private static <T extends IMatchable<T>> double getScore(T src, T dst, ClassifierSchedule<T> schedule, ClassEnvironment env, double maxMismatch, double minScore, double[] scores) {
+		IClassifier<T>[] classifiers = schedule.classifiers;
+		double[] weights = schedule.weights;
+		ClassifierSchedule.State state = schedule.state;
+		int[] order = state.order;
+		double slack = schedule.boundSlack;
+		boolean sample = schedule.sample();
+		Counters[] profile = ClassifierProfiler.isEnabled() ? schedule.getProfile() : null;
+		long time = sample || profile != null ? System.nanoTime() : 0;
 		double score = 0;
+
+		if (profile != null) schedule.recordProfiledPair();
 		double mismatch = 0;
-		List<ClassifierResult<T>> results = new ArrayList<>(classifiers.size());
 
-		for (IClassifier<T> classifier : classifiers) {
-			double cScore = classifier.getScore(src, dst, env);
+		for (int i = 0; i < order.length; i++) {
+			int idx = order[i];
+			IClassifier<T> classifier = classifiers[idx];
+			double weight = weights[idx];
+			// lowest score not exceeding maxMismatch, with extra slack to stay conservative in registration order
+			double cMinScore = 1 - (maxMismatch + 2 * slack - mismatch) / weight;
+			double cScore = classifier.getScore(src, dst, env, cMinScore);
 			assert cScore > -epsilon && cScore < 1 + epsilon : "invalid score from "+classifier.getName()+": "+cScore;
 
-			double weight = classifier.getWeight();
 			double weightedScore = cScore * weight;
 
+			if (sample || profile != null) {
+				long now = System.nanoTime();
+				if (sample) schedule.record(idx, now - time, weight - weightedScore);
+				if (profile != null) profile[idx].record(now - time);
+				time = now;
+			}
+
+			scores[idx] = cScore;
 			mismatch += weight - weightedScore;
-			if (mismatch >= maxMismatch) return null;
+
+			if (mismatch >= maxMismatch + slack || cScore < cMinScore) {
+				if (profile != null) profile[idx].maxMismatchExits.increment();
+				return Double.NaN;
+			}
 
 			score += weightedScore;
-			results.add(new ClassifierResult<>(classifier, cScore));
+
+			if (score + state.remainingWeights[i + 1] + slack < minScore) {
+				if (profile != null) profile[idx].boundExits.increment();
+				return Double.NaN;
+			}
+		}
+
+		// exact result in registration order
+
+		score = 0;
+		mismatch = 0;
+
+		for (int i = 0; i < classifiers.length; i++) {
+			double weight = weights[i];
+			double weightedScore = scores[i] * weight;
+
+			mismatch += weight - weightedScore;
+
+			if (mismatch >= maxMismatch) {
+				if (profile != null) profile[i].maxMismatchExits.increment();
+				return Double.NaN;
+			}
+
+			score += weightedScore;
+		}
+
+		return score;
+	}
+
+	private static <T> List<ClassifierResult<T>> getResults(ClassifierSchedule<T> schedule, double[] scores) {
+		List<ClassifierResult<T>> ret = new ArrayList<>(scores.length);
+
+		for (int i = 0; i < scores.length; i++) {
+			ret.add(new ClassifierResult<>(schedule.classifiers[i], scores[i]));
+		}
+
+		return ret;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> ClassifierSchedule<T> getSchedule(Collection<IClassifier<T>> classifiers, ClassifierLevel level, T src) {
+		return (ClassifierSchedule<T>) schedules.computeIfAbsent(new ScheduleKey(classifiers, level), key -> new ClassifierSchedule<>(classifiers, getMatchType(src), level));
+	}
+
+	private static MatchType getMatchType(Object entity) {
+		if (entity instanceof ClassInstance) {
+			return MatchType.Class;
+		} else if (entity instanceof MethodInstance) {
+			return MatchType.Method;
+		} else if (entity instanceof FieldInstance) {
+			return MatchType.Field;
+		} else if (entity instanceof MethodVarInstance) {
+			return MatchType.MethodArg;
+		} else {
+			throw new IllegalArgumentException("unknown entity: "+entity);
+		}
+	}
+
+	static void forEachSchedule(Consumer<ClassifierSchedule<?>> consumer) {
+		schedules.values().forEach(consumer);
+	}
+
+	private static final class ScheduleKey {
+		ScheduleKey(Collection<?> classifiers, ClassifierLevel level) {
+			this.classifiers = classifiers;
+			this.level = level;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ScheduleKey)) return false;
+
+			ScheduleKey o = (ScheduleKey) obj;
+
+			return classifiers == o.classifiers && level == o.level;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(classifiers) * 31 + level.hashCode();
 		}
 
-		return new RankResult<>(dst, score, results);
+		private final Collection<?> classifiers;
+		private final ClassifierLevel level;
 	}
 
 	public static void extractStrings(InsnList il, Set<String> out) {
@@ -770,6 +1116,8 @@ public class ClassifierUtil {
 
 	private static final boolean assumeBothOrNoneObfuscated = true;
 	private static final double epsilon = 1e-6;
+	private static final Map<ScheduleKey, ClassifierSchedule<?>> schedules = new ConcurrentHashMap<>();
 
 	private static final CacheToken<int[]> ilMapCacheToken = new CacheToken<>();
+	private static volatile long alignmentMemoryBudget = 64L << 20;
 }
@@ -0,0 +1,96 @@
+package matcher.classifier;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+
+/**
+ * MinHash sketches over opcode n-grams of method code.
+ *
+ * <p>The fraction of equal sketch entries estimates the Jaccard similarity of two methods' n-gram sets.
+ */
+public class CodeSketch {
+	/**
+	 * Create the sketch for the given instructions, null if there are no real instructions.
+	 */
+	public static int[] create(InsnList il) {
+		int[] opcodes = new int[il.size()];
+		int count = 0;
+
+		for (Iterator<AbstractInsnNode> it = il.iterator(); it.hasNext(); ) {
+			int opcode = it.next().getOpcode();
+			if (opcode >= 0) opcodes[count++] = opcode; // skip labels, line numbers and frames
+		}
+
+		if (count == 0) return null;
+
+		// tokenize into distinct n-grams, shorter code yields a single token of all opcodes
+
+		int tokenCount = Math.max(1, count - ngramSize + 1);
+		int[] tokens = new int[tokenCount];
+
+		for (int i = 0; i < tokenCount; i++) {
+			int token = 0;
+
+			for (int j = i, max = Math.min(i + ngramSize, count); j < max; j++) {
+				token = token << 8 | opcodes[j];
+			}
+
+			tokens[i] = token;
+		}
+
+		Arrays.sort(tokens);
+
+		int[] ret = new int[size];
+		Arrays.fill(ret, Integer.MAX_VALUE);
+
+		for (int i = 0; i < tokenCount; i++) {
+			int token = tokens[i];
+			if (i > 0 && token == tokens[i - 1]) continue;
+
+			for (int j = 0; j < size; j++) {
+				int hash = mix(token ^ seeds[j]);
+				if (hash < ret[j]) ret[j] = hash;
+			}
+		}
+
+		return ret;
+	}
+
+	public static double estimateSimilarity(int[] sketchA, int[] sketchB) {
+		if (sketchA == null || sketchB == null) return sketchA == sketchB ? 1 : 0;
+
+		int equal = 0;
+
+		for (int i = 0; i < size; i++) {
+			if (sketchA[i] == sketchB[i]) equal++;
+		}
+
+		return (double) equal / size;
+	}
+
+	private static int mix(int h) {
+		// murmur3 finalizer
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+
+		return h;
+	}
+
+	public static final int size = 32;
+	private static final int ngramSize = 3;
+	private static final int[] seeds = new int[size];
+
+	static {
+		int seed = 0x9e3779b9;
+
+		for (int i = 0; i < size; i++) {
+			seeds[i] = seed = mix(seed + i);
+		}
+	}
+}
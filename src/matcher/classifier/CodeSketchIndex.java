@@ -0,0 +1,116 @@
+package matcher.classifier;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import matcher.Util;
+import matcher.type.ClassInstance;
+import matcher.type.MethodInstance;
+
+/**
+ * Locality sensitive hashing index over the code sketches of methods.
+ *
+ * <p>Methods are bucketed by bands of their sketch, methods colliding in any band are likely similar. The lookup
+ * is approximate, similar methods may be missed. Buckets holding a large share of all methods, typically from
+ * trivial code like plain constructors, are ignored as they don't tell anything about similarity.
+ */
+public class CodeSketchIndex {
+	public CodeSketchIndex(ClassInstance[] classes) {
+		for (int i = 0; i < bandCount; i++) {
+			bands.add(new HashMap<>());
+		}
+
+		for (ClassInstance cls : classes) {
+			for (MethodInstance method : cls.getMethods()) {
+				int[] sketch = method.getCodeSketch();
+				if (sketch == null) continue;
+
+				for (int i = 0; i < bandCount; i++) {
+					bands.get(i).computeIfAbsent(getBandKey(sketch, i), ignore -> new ArrayList<>()).add(method);
+				}
+
+				methodCount++;
+			}
+		}
+
+		maxBucketSize = Math.max(minMaxBucketSize, methodCount / 100);
+	}
+
+	/**
+	 * Get the indexed methods similar to method, null if the method's code isn't distinctive enough.
+	 */
+	public Set<MethodInstance> getSimilarMethods(MethodInstance method) {
+		Set<MethodInstance> ret = Util.newIdentityHashSet();
+		if (!addSimilarMethods(method.getCodeSketch(), ret)) return null;
+
+		return ret;
+	}
+
+	/**
+	 * Get the indexed classes with at least one method similar to any of cls' methods, null if none of cls'
+	 * methods has distinctive enough code.
+	 */
+	public Set<ClassInstance> getSimilarClasses(ClassInstance cls) {
+		Set<MethodInstance> methods = Util.newIdentityHashSet();
+		boolean distinctive = false;
+
+		for (MethodInstance method : cls.getMethods()) {
+			distinctive |= addSimilarMethods(method.getCodeSketch(), methods);
+		}
+
+		if (!distinctive) return null;
+
+		Set<ClassInstance> ret = Util.newIdentityHashSet();
+
+		for (MethodInstance method : methods) {
+			ret.add(method.getCls());
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Collect the methods colliding with the sketch in any band, ignoring oversized buckets.
+	 *
+	 * @return whether there was any band with a bucket below the size limit
+	 */
+	private boolean addSimilarMethods(int[] sketch, Set<MethodInstance> out) {
+		if (sketch == null) return false;
+
+		boolean ret = false;
+
+		for (int i = 0; i < bandCount; i++) {
+			List<MethodInstance> methods = bands.get(i).get(getBandKey(sketch, i));
+
+			if (methods == null) {
+				ret = true;
+			} else if (methods.size() <= maxBucketSize) {
+				out.addAll(methods);
+				ret = true;
+			}
+		}
+
+		return ret;
+	}
+
+	private static int getBandKey(int[] sketch, int band) {
+		int ret = 1;
+
+		for (int i = band * rowCount, max = i + rowCount; i < max; i++) {
+			ret = 31 * ret + sketch[i];
+		}
+
+		return ret;
+	}
+
+	private static final int rowCount = 4;
+	private static final int bandCount = CodeSketch.size / rowCount;
+	private static final int minMaxBucketSize = 20;
+
+	private final List<Map<Integer, List<MethodInstance>>> bands = new ArrayList<>(bandCount);
+	private final int maxBucketSize;
+	private int methodCount;
+}
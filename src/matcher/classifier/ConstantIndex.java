@@ -0,0 +1,167 @@
+package matcher.classifier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import matcher.Util;
+import matcher.type.ClassInstance;
+
+/**
+ * Inverted index from string and numeric constants to the classes using them.
+ *
+ * <p>The constants are taken from the classes' sorted string ids and {@link NumericConstants}, each kind is
+ * indexed separately, so constants of different numeric types never collide, consistent with the numeric
+ * constants classifier.
+ */
+public class ConstantIndex {
+	public ConstantIndex(Collection<ClassInstance> classes) {
+		for (int kind = 0; kind < kindCount; kind++) {
+			index.add(new HashMap<>());
+		}
+
+		int count = 0;
+
+		for (ClassInstance cls : classes) {
+			if (cls.getUri() == null) continue;
+
+			boolean hasConstants = false;
+
+			for (int kind = 0; kind < intKindCount; kind++) {
+				for (int value : getIntConstants(cls, kind)) {
+					add(kind, value, cls);
+					hasConstants = true;
+				}
+			}
+
+			for (int kind = intKindCount; kind < kindCount; kind++) {
+				for (long value : getLongConstants(cls, kind)) {
+					add(kind, value, cls);
+					hasConstants = true;
+				}
+			}
+
+			if (hasConstants) count++;
+		}
+
+		classCount = count;
+	}
+
+	private void add(int kind, long value, ClassInstance cls) {
+		index.get(kind).computeIfAbsent(value, ignore -> new ArrayList<>()).add(cls);
+	}
+
+	/**
+	 * Create a test whether an indexed class uses any of src's constants.
+	 *
+	 * <p>Rare constants are resolved through the index up front, common ones get checked against the tested class.
+	 */
+	public Predicate<ClassInstance> getSharingTest(ClassInstance src) {
+		int maxRareFrequency = Math.max(minRareFrequency, classCount / 64);
+		Set<ClassInstance> rareMatches = Util.newIdentityHashSet();
+		int constantCount = 0;
+
+		for (int kind = 0; kind < intKindCount; kind++) {
+			constantCount += getIntConstants(src, kind).length;
+		}
+
+		for (int kind = intKindCount; kind < kindCount; kind++) {
+			constantCount += getLongConstants(src, kind).length;
+		}
+
+		int[] commonKinds = new int[constantCount];
+		long[] commonValues = new long[constantCount];
+		int commonCount = 0;
+
+		for (int kind = 0; kind < intKindCount; kind++) {
+			for (int value : getIntConstants(src, kind)) {
+				if (isCommon(kind, value, maxRareFrequency, rareMatches)) {
+					commonKinds[commonCount] = kind;
+					commonValues[commonCount++] = value;
+				}
+			}
+		}
+
+		for (int kind = intKindCount; kind < kindCount; kind++) {
+			for (long value : getLongConstants(src, kind)) {
+				if (isCommon(kind, value, maxRareFrequency, rareMatches)) {
+					commonKinds[commonCount] = kind;
+					commonValues[commonCount++] = value;
+				}
+			}
+		}
+
+		if (commonCount == 0) return rareMatches::contains;
+
+		int[] kinds = commonKinds;
+		long[] values = commonValues;
+		int size = commonCount;
+
+		return cls -> {
+			if (rareMatches.contains(cls)) return true;
+			if (cls.getUri() == null) return false;
+
+			for (int i = 0; i < size; i++) {
+				int kind = kinds[i];
+				boolean found = kind < intKindCount
+						? Arrays.binarySearch(getIntConstants(cls, kind), (int) values[i]) >= 0
+						: Arrays.binarySearch(getLongConstants(cls, kind), values[i]) >= 0;
+
+				if (found) return true;
+			}
+
+			return false;
+		};
+	}
+
+	/**
+	 * Check whether a constant is used by too many classes to resolve it through the index, otherwise add its users
+	 * to rareMatches.
+	 */
+	private boolean isCommon(int kind, long value, int maxRareFrequency, Set<ClassInstance> rareMatches) {
+		List<ClassInstance> classes = index.get(kind).get(value);
+		if (classes == null) return false;
+
+		if (classes.size() <= maxRareFrequency) {
+			rareMatches.addAll(classes);
+			return false;
+		} else {
+			return true;
+		}
+	}
+
+	private static int[] getIntConstants(ClassInstance cls, int kind) {
+		switch (kind) {
+		case stringKind: return cls.getStringIds();
+		case intKind: return cls.getFeatures().getNumericConstants().ints;
+		case floatKind: return cls.getFeatures().getNumericConstants().floatBits;
+		default: throw new IllegalArgumentException("invalid int constant kind: "+kind);
+		}
+	}
+
+	private static long[] getLongConstants(ClassInstance cls, int kind) {
+		switch (kind) {
+		case longKind: return cls.getFeatures().getNumericConstants().longs;
+		case doubleKind: return cls.getFeatures().getNumericConstants().doubleBits;
+		default: throw new IllegalArgumentException("invalid long constant kind: "+kind);
+		}
+	}
+
+	// the kinds stored as int arrays come first
+	private static final int stringKind = 0;
+	private static final int intKind = 1;
+	private static final int floatKind = 2;
+	private static final int longKind = 3;
+	private static final int doubleKind = 4;
+	private static final int intKindCount = 3;
+	private static final int kindCount = 5;
+	private static final int minRareFrequency = 32;
+
+	private final List<Map<Long, List<ClassInstance>>> index = new ArrayList<>(kindCount);
+	private final int classCount;
+}
@@ -56,7 +56,11 @@ public class FieldClassifier {
 	}
 
 	public static List<RankResult<FieldInstance>> rank(FieldInstance src, FieldInstance[] dsts, ClassifierLevel level, ClassEnvironment env, double maxMismatch) {
-		return ClassifierUtil.rank(src, dsts, classifiers.getOrDefault(level, Collections.emptyList()), ClassifierUtil::checkPotentialEquality, env, maxMismatch);
+		return ClassifierUtil.rank(src, dsts, classifiers.getOrDefault(level, Collections.emptyList()), level, ClassifierUtil::checkPotentialEquality, env, maxMismatch);
+	}
+
+	public static List<RankResult<FieldInstance>> rank(FieldInstance src, FieldInstance[] dsts, ClassifierLevel level, ClassEnvironment env, double maxMismatch, int maxResults) {
+		return ClassifierUtil.rank(src, dsts, classifiers.getOrDefault(level, Collections.emptyList()), level, ClassifierUtil::checkPotentialEquality, env, maxMismatch, maxResults);
 	}
 
 	private static final Map<ClassifierLevel, List<IClassifier<FieldInstance>>> classifiers = new IdentityHashMap<>();
@@ -171,13 +175,18 @@ public class FieldClassifier {
 	private static AbstractClassifier initCode = new AbstractClassifier("init code") {
 		@Override
 		public double getScore(FieldInstance fieldA, FieldInstance fieldB, ClassEnvironment env) {
-			List<AbstractInsnNode> initA = fieldA.getInitializer();
-			List<AbstractInsnNode> initB = fieldB.getInitializer();
+			return getScore(fieldA, fieldB, env, Double.NEGATIVE_INFINITY);
+		}
+
+		@Override
+		public double getScore(FieldInstance fieldA, FieldInstance fieldB, ClassEnvironment env, double minScore) {
+			InsnTokens initA = fieldA.getInitializerTokens();
+			InsnTokens initB = fieldB.getInitializerTokens();
 
 			if (initA == null && initB == null) return 1;
 			if (initA == null || initB == null) return 0;
 
-			return ClassifierUtil.compareInsns(initA, initB, env);
+			return ClassifierUtil.compareInsns(initA, initB, minScore);
 		}
 	};
 
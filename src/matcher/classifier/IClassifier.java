@@ -6,4 +6,12 @@ public interface IClassifier<T> {
 	String getName();
 	double getWeight();
 	double getScore(T a, T b, ClassEnvironment env);
-}
\ No newline at end of file
+
+	/**
+	 * Score like {@link #getScore(Object, Object, ClassEnvironment)}, but any score below minScore is acceptable if the
+	 * exact score is below minScore since the pair gets rejected then.
+	 */
+	default double getScore(T a, T b, ClassEnvironment env, double minScore) {
+		return getScore(a, b, env);
+	}
+}
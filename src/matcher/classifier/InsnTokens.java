@@ -0,0 +1,286 @@
+package matcher.classifier;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import matcher.Util;
+import matcher.type.ClassEnv;
+import matcher.type.ClassInstance;
+import matcher.type.FieldInstance;
+import matcher.type.MethodInstance;
+
+/**
+ * Instruction list pre-encoded for ClassifierUtil.compareInsns and mapInsns.
+ *
+ * <p>Every instruction is reduced to a head combining its opcode and operand kind, a primitive operand value and
+ * the entity its operand resolves to. Only the entity comparison depends on the match state, everything else is
+ * resolved once when encoding.
+ */
+public final class InsnTokens {
+	public static InsnTokens create(InsnList il, ClassEnv env) {
+		InsnTokens ret = new InsnTokens(il.size());
+		int idx = 0;
+
+		for (AbstractInsnNode ain = il.getFirst(); ain != null; ain = ain.getNext()) {
+			ret.add(idx++, ain, label -> il.indexOf(label), env);
+		}
+
+		return ret;
+	}
+
+	public static InsnTokens create(List<AbstractInsnNode> insns, ClassEnv env) {
+		InsnTokens ret = new InsnTokens(insns.size());
+		Map<AbstractInsnNode, Integer> positions = new IdentityHashMap<>(insns.size());
+
+		for (int i = 0; i < insns.size(); i++) {
+			positions.putIfAbsent(insns.get(i), i);
+		}
+
+		for (int i = 0; i < insns.size(); i++) {
+			ret.add(i, insns.get(i), label -> positions.getOrDefault(label, -1), env);
+		}
+
+		return ret;
+	}
+
+	private InsnTokens(int size) {
+		heads = new int[size];
+		values = new long[size];
+		refs = new Object[size];
+	}
+
+	private void add(int idx, AbstractInsnNode ain, PositionProvider posProvider, ClassEnv env) {
+		int kind = KIND_NONE;
+		int variant = 0;
+		long value = 0;
+		Object ref = null;
+
+		switch (ain.getType()) {
+		case AbstractInsnNode.INT_INSN:
+			kind = KIND_VALUE;
+			value = ((IntInsnNode) ain).operand;
+			break;
+		case AbstractInsnNode.VAR_INSN:
+			kind = KIND_VALUE;
+			value = ((VarInsnNode) ain).var;
+			break;
+		case AbstractInsnNode.TYPE_INSN:
+			kind = KIND_CLASS;
+			ref = env.getClsByName(((TypeInsnNode) ain).desc);
+			break;
+		case AbstractInsnNode.FIELD_INSN: {
+			FieldInsnNode in = (FieldInsnNode) ain;
+			ClassInstance owner = env.getClsByName(in.owner);
+			kind = KIND_FIELD;
+
+			if (owner != null) {
+				value = 1;
+				ref = owner.resolveField(in.name, in.desc);
+			}
+
+			break;
+		}
+		case AbstractInsnNode.METHOD_INSN: {
+			MethodInsnNode in = (MethodInsnNode) ain;
+			kind = KIND_METHOD;
+			ref = resolveMethod(in.owner, in.name, in.desc, Util.isCallToInterface(in), env);
+			value = ref == unknownOwner ? 0 : 1;
+			if (ref == unknownOwner) ref = null;
+			break;
+		}
+		case AbstractInsnNode.INVOKE_DYNAMIC_INSN: {
+			InvokeDynamicInsnNode in = (InvokeDynamicInsnNode) ain;
+
+			if (Util.isJavaLambdaMetafactory(in.bsm)) {
+				Handle impl = (Handle) in.bsmArgs[1];
+				// the lambda metafactories only differ in name and interface flag
+				kind = KIND_METHOD;
+				value = (long) impl.getTag() << 3 | (in.bsm.getName().equals("metafactory") ? 4 : 0) | (in.bsm.isInterface() ? 2 : 0);
+
+				switch (impl.getTag()) {
+				case Opcodes.H_INVOKEVIRTUAL:
+				case Opcodes.H_INVOKESTATIC:
+				case Opcodes.H_INVOKESPECIAL:
+				case Opcodes.H_NEWINVOKESPECIAL:
+				case Opcodes.H_INVOKEINTERFACE:
+					ref = resolveMethod(impl.getOwner(), impl.getName(), impl.getDesc(), Util.isCallToInterface(impl), env);
+
+					if (ref == unknownOwner) {
+						ref = null;
+					} else {
+						value |= 1;
+					}
+
+					break;
+				default:
+					System.out.println("unexpected impl tag: "+impl.getTag());
+				}
+			} else {
+				System.out.printf("unknown invokedynamic bsm: %s/%s%s (tag=%d iif=%b)%n", in.bsm.getOwner(), in.bsm.getName(), in.bsm.getDesc(), in.bsm.getTag(), in.bsm.isInterface());
+				variant = 1;
+				kind = KIND_OBJECT;
+				ref = in.bsm;
+			}
+
+			break;
+		}
+		case AbstractInsnNode.JUMP_INSN: {
+			JumpInsnNode in = (JumpInsnNode) ain;
+			// only the jump direction is compared
+			kind = KIND_VALUE;
+			value = Integer.signum(posProvider.getPosition(in.label) - posProvider.getPosition(in));
+			break;
+		}
+		case AbstractInsnNode.LDC_INSN: {
+			Object cst = ((LdcInsnNode) ain).cst;
+
+			if (cst instanceof Integer) {
+				kind = KIND_VALUE;
+				variant = 1;
+				value = (Integer) cst;
+			} else if (cst instanceof Float) {
+				kind = KIND_VALUE;
+				variant = 2;
+				value = Float.floatToIntBits((Float) cst);
+			} else if (cst instanceof Long) {
+				kind = KIND_VALUE;
+				variant = 3;
+				value = (Long) cst;
+			} else if (cst instanceof Double) {
+				kind = KIND_VALUE;
+				variant = 4;
+				value = Double.doubleToLongBits((Double) cst);
+			} else if (cst instanceof String) {
+				kind = KIND_VALUE;
+				variant = 5;
+				value = env.getGlobal().getStringDictionary().getId((String) cst);
+			} else if (cst instanceof Type) {
+				Type type = (Type) cst;
+				kind = KIND_VALUE_CLASS;
+				variant = 6;
+				value = type.getSort();
+
+				if (type.getSort() == Type.ARRAY || type.getSort() == Type.OBJECT) {
+					ref = env.getClsById(type.getDescriptor());
+				}
+			} else {
+				kind = KIND_OBJECT;
+				variant = 7;
+				ref = cst;
+			}
+
+			break;
+		}
+		case AbstractInsnNode.IINC_INSN: {
+			IincInsnNode in = (IincInsnNode) ain;
+			kind = KIND_VALUE;
+			value = (long) in.var << 32 | in.incr & 0xffffffffL;
+			break;
+		}
+		case AbstractInsnNode.TABLESWITCH_INSN: {
+			TableSwitchInsnNode in = (TableSwitchInsnNode) ain;
+			kind = KIND_VALUE;
+			value = (long) in.min << 32 | in.max & 0xffffffffL;
+			break;
+		}
+		case AbstractInsnNode.LOOKUPSWITCH_INSN:
+			kind = KIND_OBJECT;
+			ref = ((LookupSwitchInsnNode) ain).keys;
+			break;
+		case AbstractInsnNode.MULTIANEWARRAY_INSN: {
+			MultiANewArrayInsnNode in = (MultiANewArrayInsnNode) ain;
+			kind = KIND_VALUE_CLASS;
+			value = in.dims;
+			ref = env.getClsByName(in.desc);
+			break;
+		}
+		}
+
+		heads[idx] = (ain.getOpcode() + 1) | kind << 9 | variant << 12;
+		values[idx] = value;
+		refs[idx] = ref;
+	}
+
+	/**
+	 * Resolve a method reference, returning unknownOwner if the owner class doesn't exist.
+	 */
+	private static Object resolveMethod(String owner, String name, String desc, boolean toInterface, ClassEnv env) {
+		ClassInstance cls = env.getClsByName(owner);
+		if (cls == null) return unknownOwner;
+
+		return cls.resolveMethod(name, desc, toInterface);
+	}
+
+	public int size() {
+		return heads.length;
+	}
+
+	/**
+	 * Compare instruction idxA of a with instruction idxB of b under the current match state.
+	 */
+	static boolean compare(InsnTokens a, int idxA, InsnTokens b, int idxB) {
+		int head = a.heads[idxA];
+		if (head != b.heads[idxB]) return false;
+
+		switch (head >>> 9 & 7) {
+		case KIND_NONE:
+			return true;
+		case KIND_VALUE:
+			return a.values[idxA] == b.values[idxB];
+		case KIND_CLASS:
+			return ClassifierUtil.checkPotentialEqualityNullable((ClassInstance) a.refs[idxA], (ClassInstance) b.refs[idxB]);
+		case KIND_VALUE_CLASS:
+			return a.values[idxA] == b.values[idxB]
+					&& ClassifierUtil.checkPotentialEqualityNullable((ClassInstance) a.refs[idxA], (ClassInstance) b.refs[idxB]);
+		case KIND_FIELD: // value is 1 if the owner exists
+			if (a.values[idxA] != b.values[idxB]) return false;
+
+			return a.values[idxA] == 0 || ClassifierUtil.checkPotentialEqualityNullable((FieldInstance) a.refs[idxA], (FieldInstance) b.refs[idxB]);
+		case KIND_METHOD: // value bit 0 is 1 if the owner exists
+			if (a.values[idxA] != b.values[idxB]) return false;
+
+			return (a.values[idxA] & 1) == 0 || ClassifierUtil.checkPotentialEqualityNullable((MethodInstance) a.refs[idxA], (MethodInstance) b.refs[idxB]);
+		case KIND_OBJECT:
+			return a.refs[idxA].equals(b.refs[idxB]);
+		default:
+			throw new IllegalStateException();
+		}
+	}
+
+	private interface PositionProvider {
+		int getPosition(AbstractInsnNode ain);
+	}
+
+	private static final int KIND_NONE = 0; // no compared operand (plain insns, labels, frames, line numbers)
+	private static final int KIND_VALUE = 1;
+	private static final int KIND_CLASS = 2;
+	private static final int KIND_VALUE_CLASS = 3;
+	private static final int KIND_FIELD = 4;
+	private static final int KIND_METHOD = 5;
+	private static final int KIND_OBJECT = 6;
+
+	private static final Object unknownOwner = new Object();
+
+	private final int[] heads; // opcode + 1, kind and ldc constant type or indy variant
+	private final long[] values;
+	private final Object[] refs;
+}
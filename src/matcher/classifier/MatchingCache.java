@@ -1,53 +1,467 @@
 package matcher.classifier;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiFunction;
+import java.util.function.Function;
 
+import matcher.Util;
 import matcher.type.IMatchable;
 
+/**
+ * Cache for values computed from a pair of entities, bounded by an estimated memory budget.
+ *
+ * <p>The entries are spread over independently locked segments, each evicting its least recently used entries once
+ * its share of the budget is exceeded. Lookups compare token, a and b in place and don't allocate.
+ */
 public class MatchingCache {
+	public MatchingCache() {
+		segments = new Segment[segmentCount];
+
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment();
+		}
+
+		setMemoryBudget(Math.min(defaultMemoryBudget, Runtime.getRuntime().maxMemory() / 4));
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Set the estimated memory in bytes the cached values may use, evicting entries as needed.
+	 */
+	public void setMemoryBudget(long bytes) {
+		if (bytes <= 0) throw new IllegalArgumentException("invalid cache memory budget: "+bytes);
+
+		memoryBudget = bytes;
+		long segmentBudget = Math.max(1, bytes / segmentCount);
+
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.maxWeight = segmentBudget;
+				segment.evict(null);
+			}
+		}
+	}
+
 	@SuppressWarnings("unchecked")
 	public <T, U extends IMatchable<U>> T get(CacheToken<T> token, U a, U b) {
-		return (T) cache.get(new CacheKey<U>(token, a, b));
+		int hash = hash(token, a, b);
+		Segment segment = getSegment(hash);
+		Entry entry;
+
+		synchronized (segment) {
+			entry = segment.get(hash, token, a, b);
+		}
+
+		if (entry == null) {
+			misses.increment();
+			return null;
+		} else {
+			hits.increment();
+			return (T) entry.value;
+		}
 	}
 
-	@SuppressWarnings("unchecked")
+	/**
+	 * Compute a value that may depend on the match state of arbitrary entities.
+	 *
+	 * <p>The entry will be evicted by any invalidation.
+	 */
 	public <T, U extends IMatchable<U>> T compute(CacheToken<T> token, U a, U b, BiFunction<U, U, T> f) {
-		return (T) cache.computeIfAbsent(new CacheKey<U>(token, a, b), k -> f.apply((U) k.a, (U) k.b));
+		return compute(token, a, b, f, null);
+	}
+
+	/**
+	 * Compute a value that only depends on the match state of the entities supplied by dependencyProvider.
+	 *
+	 * <p>dependencyProvider is applied to both a and b, the entry will be evicted once any of the returned
+	 * entities gets invalidated.
+	 *
+	 * <p>f runs without holding a lock, concurrent calls for the same key may compute the value more than once.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T, U extends IMatchable<U>> T compute(CacheToken<T> token, U a, U b, BiFunction<U, U, T> f, Function<U, Collection<? extends IMatchable<?>>> dependencyProvider) {
+		int hash = hash(token, a, b);
+		Segment segment = getSegment(hash);
+		Entry entry;
+
+		synchronized (segment) {
+			entry = segment.get(hash, token, a, b);
+		}
+
+		if (entry != null) {
+			hits.increment();
+			return (T) entry.value;
+		}
+
+		misses.increment();
+		T value = f.apply(a, b);
+		long weight = getWeight(value);
+		if (weight > segment.maxWeight) return value; // would evict the whole segment
+
+		IMatchable<?>[] dependencies;
+
+		if (dependencyProvider == null) {
+			dependencies = null;
+		} else {
+			Set<IMatchable<?>> deps = Util.newIdentityHashSet(dependencyProvider.apply(a));
+			deps.addAll(dependencyProvider.apply(b));
+			dependencies = deps.toArray(new IMatchable<?>[0]);
+		}
+
+		entry = new Entry(hash, token, a, b, value, weight, dependencies);
+		Entry prev;
+
+		synchronized (segment) {
+			prev = segment.get(hash, token, a, b);
+
+			if (prev == null) {
+				segment.add(entry);
+
+				// register before evict so a concurrently evicted entry can't leave stale dependents behind
+				if (dependencies == null) {
+					untracked.add(entry);
+				} else {
+					for (IMatchable<?> dep : dependencies) {
+						register(dep, entry);
+					}
+				}
+
+				segment.evict(entry);
+			}
+		}
+
+		return prev != null ? (T) prev.value : value;
+	}
+
+	/**
+	 * Evict all entries depending on the match state of the supplied entities.
+	 *
+	 * <p>Has to be called whenever the match state of an entity changes, must not run concurrently with compute.
+	 */
+	public void invalidate(IMatchable<?>... entities) {
+		for (IMatchable<?> entity : entities) {
+			if (entity == null) continue;
+
+			Set<Entry> entries = dependents.remove(entity);
+			if (entries == null) continue;
+
+			for (Entry entry : entries) {
+				remove(entry);
+			}
+		}
+
+		if (!untracked.isEmpty()) {
+			for (Entry entry : untracked) {
+				remove(entry);
+			}
+
+			untracked.clear();
+		}
+	}
+
+	private void remove(Entry entry) {
+		Segment segment = getSegment(entry.hash);
+
+		synchronized (segment) {
+			if (!segment.remove(entry)) return;
+		}
+
+		unregister(entry);
+	}
+
+	private void register(IMatchable<?> dep, Entry entry) {
+		// atomic per key so a concurrent unregister can't drop the set while the entry is being added
+		dependents.compute(dep, (ignore, entries) -> {
+			if (entries == null) entries = Collections.newSetFromMap(new ConcurrentHashMap<>());
+			entries.add(entry);
+
+			return entries;
+		});
+	}
+
+	private void unregister(Entry entry) {
+		if (entry.dependencies == null) {
+			untracked.remove(entry);
+		} else {
+			for (IMatchable<?> dep : entry.dependencies) {
+				// drop emptied sets, otherwise every entity ever seen would keep its key
+				dependents.computeIfPresent(dep, (ignore, entries) -> entries.remove(entry) && entries.isEmpty() ? null : entries);
+			}
+		}
 	}
 
 	public void clear() {
-		cache.clear();
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+
+		dependents.clear();
+		untracked.clear();
 	}
 
-	public static final class CacheToken<t> {}
+	public Stats getStats() {
+		int entryCount = 0;
+		long weight = 0;
 
-	private static class CacheKey<T extends IMatchable<T>> {
-		public CacheKey(CacheToken<?> token, T a, T b) {
-			this.token = token;
-			this.a = a;
-			this.b = b;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				entryCount += segment.size;
+				weight += segment.weight;
+			}
 		}
 
-		@Override
-		public int hashCode() {
-			return token.hashCode() ^ a.hashCode() ^ b.hashCode();
+		return new Stats(hits.sum(), misses.sum(), evictions.sum(), entryCount, weight, memoryBudget);
+	}
+
+	public void resetStats() {
+		hits.reset();
+		misses.reset();
+		evictions.reset();
+	}
+
+	private Segment getSegment(int hash) {
+		return segments[hash >>> (32 - segmentBits)];
+	}
+
+	/**
+	 * Mix token, a and b asymmetrically so swapped or similar pairs don't collide.
+	 */
+	private static int hash(CacheToken<?> token, Object a, Object b) {
+		long h = token.id * 0x9e3779b97f4a7c15L + System.identityHashCode(a);
+		h = h * 0x9e3779b97f4a7c15L + System.identityHashCode(b);
+		h = (h ^ h >>> 33) * 0xff51afd7ed558ccdL;
+		h = (h ^ h >>> 33) * 0xc4ceb9fe1a85ec53L;
+
+		return (int) (h ^ h >>> 33);
+	}
+
+	/**
+	 * Estimate the memory used by a value and its entry in bytes.
+	 */
+	private static long getWeight(Object value) {
+		long ret = entryOverhead;
+
+		if (value instanceof int[]) {
+			ret += arrayOverhead + (long) ((int[]) value).length * Integer.BYTES;
+		} else if (value instanceof long[]) {
+			ret += arrayOverhead + (long) ((long[]) value).length * Long.BYTES;
+		} else if (value instanceof double[]) {
+			ret += arrayOverhead + (long) ((double[]) value).length * Double.BYTES;
+		} else if (value instanceof Object[]) {
+			ret += arrayOverhead + (long) ((Object[]) value).length * referenceSize;
+		} else if (value != null) {
+			ret += objectOverhead;
+		}
+
+		return ret;
+	}
+
+	public static final class CacheToken<t> {
+		final int id = nextTokenId.getAndIncrement();
+	}
+
+	public static final class Stats {
+		Stats(long hits, long misses, long evictions, int entryCount, long weight, long memoryBudget) {
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.entryCount = entryCount;
+			this.weight = weight;
+			this.memoryBudget = memoryBudget;
 		}
 
 		@Override
-		public boolean equals(Object obj) {
-			if (obj.getClass() != CacheKey.class) return false;
+		public String toString() {
+			return "hits="+hits+" misses="+misses+" evictions="+evictions+" entries="+entryCount+" weight="+weight+"/"+memoryBudget;
+		}
+
+		public final long hits;
+		public final long misses;
+		public final long evictions;
+		public final int entryCount;
+		public final long weight; // estimated bytes
+		public final long memoryBudget;
+	}
+
+	private final class Segment {
+		Entry get(int hash, CacheToken<?> token, Object a, Object b) {
+			for (Entry e = table[hash & (table.length - 1)]; e != null; e = e.next) {
+				if (e.hash == hash && e.token == token && e.a == a && e.b == b) {
+					// move to the most recently used end
+					if (e != tail) {
+						unlink(e);
+						link(e);
+					}
+
+					return e;
+				}
+			}
+
+			return null;
+		}
+
+		void add(Entry entry) {
+			if (size >= table.length * 3 / 4) resize();
+
+			int idx = entry.hash & (table.length - 1);
+			entry.next = table[idx];
+			table[idx] = entry;
+			link(entry);
+			size++;
+			weight += entry.weight;
+		}
+
+		boolean remove(Entry entry) {
+			int idx = entry.hash & (table.length - 1);
+			Entry prev = null;
 
-			CacheKey<?> o = (CacheKey<?>) obj;
+			for (Entry e = table[idx]; e != null; prev = e, e = e.next) {
+				if (e == entry) {
+					if (prev == null) {
+						table[idx] = e.next;
+					} else {
+						prev.next = e.next;
+					}
 
-			return token == o.token && a == o.a && b == o.b;
+					unlink(e);
+					size--;
+					weight -= e.weight;
+
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		/**
+		 * Evict the least recently used entries until the segment fits its budget, keeping the supplied entry.
+		 */
+		void evict(Entry keep) {
+			while (weight > maxWeight && head != null) {
+				Entry victim = head;
+
+				if (victim == keep) {
+					if (victim.after == null) break;
+					victim = victim.after;
+				}
+
+				remove(victim);
+				unregister(victim);
+				evictions.increment();
+			}
+		}
+
+		void clear() {
+			table = new Entry[initialCapacity];
+			head = tail = null;
+			size = 0;
+			weight = 0;
 		}
 
+		private void resize() {
+			Entry[] newTable = new Entry[table.length * 2];
+
+			for (Entry e : table) {
+				while (e != null) {
+					Entry next = e.next;
+					int idx = e.hash & (newTable.length - 1);
+					e.next = newTable[idx];
+					newTable[idx] = e;
+					e = next;
+				}
+			}
+
+			table = newTable;
+		}
+
+		private void link(Entry e) {
+			e.before = tail;
+			e.after = null;
+
+			if (tail == null) {
+				head = e;
+			} else {
+				tail.after = e;
+			}
+
+			tail = e;
+		}
+
+		private void unlink(Entry e) {
+			if (e.before == null) {
+				head = e.after;
+			} else {
+				e.before.after = e.after;
+			}
+
+			if (e.after == null) {
+				tail = e.before;
+			} else {
+				e.after.before = e.before;
+			}
+
+			e.before = e.after = null;
+		}
+
+		Entry[] table = new Entry[initialCapacity];
+		Entry head; // least recently used
+		Entry tail; // most recently used
+		int size;
+		long weight;
+		volatile long maxWeight; // written under the segment lock, read by compute without it
+	}
+
+	private static final class Entry {
+		Entry(int hash, CacheToken<?> token, Object a, Object b, Object value, long weight, IMatchable<?>[] dependencies) {
+			this.hash = hash;
+			this.token = token;
+			this.a = a;
+			this.b = b;
+			this.value = value;
+			this.weight = weight;
+			this.dependencies = dependencies;
+		}
+
+		final int hash;
 		final CacheToken<?> token;
-		final T a;
-		final T b;
+		final Object a;
+		final Object b;
+		final Object value;
+		final long weight;
+		final IMatchable<?>[] dependencies; // null if the entry depends on everything
+
+		Entry next; // hash chain
+		Entry before; // lru order
+		Entry after;
 	}
 
-	private final Map<CacheKey<?>, Object> cache = new ConcurrentHashMap<>();
+	private static final int segmentBits = 4;
+	private static final int segmentCount = 1 << segmentBits;
+	private static final int initialCapacity = 16;
+	private static final long defaultMemoryBudget = 256L << 20;
+	private static final long entryOverhead = 96; // entry object, dependency registration
+	private static final long objectOverhead = 32;
+	private static final long arrayOverhead = 16;
+	private static final long referenceSize = 4;
+	private static final AtomicInteger nextTokenId = new AtomicInteger();
+
+	private final Segment[] segments;
+	private volatile long memoryBudget;
+	private final Map<IMatchable<?>, Set<Entry>> dependents = new ConcurrentHashMap<>();
+	private final Set<Entry> untracked = Collections.newSetFromMap(new ConcurrentHashMap<>());
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
 }
@@ -4,7 +4,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -53,6 +52,16 @@ public class MethodClassifier {
 		}
 	}
 
+	/**
+	 * Register the opcode histogram classifier, which isn't part of the default set so the default scores stay as they are.
+	 *
+	 * <p>It is a cheap upper bound of the code similarity, e.g. for the levels before Full. Has to be called after init
+	 * and before ranking.
+	 */
+	public static void addOpcodesClassifier(double weight, ClassifierLevel... levels) {
+		addClassifier(opcodes, weight, levels);
+	}
+
 	public static double getMaxScore(ClassifierLevel level) {
 		return maxScore.getOrDefault(level, 0.);
 	}
@@ -62,9 +71,23 @@ public class MethodClassifier {
 	}
 
 	public static List<RankResult<MethodInstance>> rank(MethodInstance src, MethodInstance[] dsts, ClassifierLevel level, ClassEnvironment env, double maxMismatch) {
+		dsts = getRankDsts(src, dsts);
+		if (dsts.length == 0) return Collections.emptyList();
+
+		return ClassifierUtil.rank(src, dsts, classifiers.getOrDefault(level, Collections.emptyList()), level, ClassifierUtil::checkPotentialEquality, env, maxMismatch);
+	}
+
+	public static List<RankResult<MethodInstance>> rank(MethodInstance src, MethodInstance[] dsts, ClassifierLevel level, ClassEnvironment env, double maxMismatch, int maxResults) {
+		dsts = getRankDsts(src, dsts);
+		if (dsts.length == 0) return Collections.emptyList();
+
+		return ClassifierUtil.rank(src, dsts, classifiers.getOrDefault(level, Collections.emptyList()), level, ClassifierUtil::checkPotentialEquality, env, maxMismatch, maxResults);
+	}
+
+	private static MethodInstance[] getRankDsts(MethodInstance src, MethodInstance[] dsts) {
 		if (src.getMatch() != null) { // already matched,  limit dsts to the match
 			if (!Arrays.asList(dsts).contains(src.getMatch())) {
-				return Collections.emptyList();
+				return new MethodInstance[0];
 			} else if (dsts.length != 1) {
 				dsts = new MethodInstance[] { src.getMatch() };
 			}
@@ -84,14 +107,13 @@ public class MethodClassifier {
 					}
 				}
 
-				if (writeIdx == 0) return Collections.emptyList();
 				if (writeIdx < newDsts.length) newDsts = Arrays.copyOf(newDsts, writeIdx);
 
 				dsts = newDsts;
 			}
 		}
 
-		return ClassifierUtil.rank(src, dsts, classifiers.getOrDefault(level, Collections.emptyList()), ClassifierUtil::checkPotentialEquality, env, maxMismatch);
+		return dsts;
 	}
 
 	private static final Map<ClassifierLevel, List<IClassifier<MethodInstance>>> classifiers = new EnumMap<>(ClassifierLevel.class);
@@ -175,12 +197,7 @@ public class MethodClassifier {
 		public double getScore(MethodInstance methodA, MethodInstance methodB, ClassEnvironment env) {
 			if (!checkAsmNodes(methodA, methodB)) return compareAsmNodes(methodA, methodB);
 
-			Set<String> stringsA = new HashSet<>();
-			ClassifierUtil.extractStrings(methodA.getAsmNode().instructions, stringsA);
-			Set<String> stringsB = new HashSet<>();
-			ClassifierUtil.extractStrings(methodB.getAsmNode().instructions, stringsB);
-
-			return ClassifierUtil.compareSets(stringsA, stringsB, false);
+			return ClassifierUtil.compareSortedSets(methodA.getStringIds(), methodB.getStringIds());
 		}
 	};
 
@@ -189,22 +206,7 @@ public class MethodClassifier {
 		public double getScore(MethodInstance methodA, MethodInstance methodB, ClassEnvironment env) {
 			if (!checkAsmNodes(methodA, methodB)) return compareAsmNodes(methodA, methodB);
 
-			Set<Integer> intsA = new HashSet<>();
-			Set<Integer> intsB = new HashSet<>();
-			Set<Long> longsA = new HashSet<>();
-			Set<Long> longsB = new HashSet<>();
-			Set<Float> floatsA = new HashSet<>();
-			Set<Float> floatsB = new HashSet<>();
-			Set<Double> doublesA = new HashSet<>();
-			Set<Double> doublesB = new HashSet<>();
-
-			ClassifierUtil.extractNumbers(methodA.getAsmNode(), intsA, longsA, floatsA, doublesA);
-			ClassifierUtil.extractNumbers(methodB.getAsmNode(), intsB, longsB, floatsB, doublesB);
-
-			return (ClassifierUtil.compareSets(intsA, intsB, false)
-					+ ClassifierUtil.compareSets(longsA, longsB, false)
-					+ ClassifierUtil.compareSets(floatsA, floatsB, false)
-					+ ClassifierUtil.compareSets(doublesA, doublesB, false)) / 4;
+			return NumericConstants.compare(methodA.getNumericConstants(), methodB.getNumericConstants());
 		}
 	};
 
@@ -257,12 +259,26 @@ public class MethodClassifier {
 		}
 	};
 
+	private static AbstractClassifier opcodes = new AbstractClassifier("opcodes") {
+		@Override
+		public double getScore(MethodInstance methodA, MethodInstance methodB, ClassEnvironment env) {
+			if (!checkAsmNodes(methodA, methodB)) return compareAsmNodes(methodA, methodB);
+
+			return OpcodeHistogram.getMaxSimilarity(methodA.getOpcodeHistogram(), methodB.getOpcodeHistogram());
+		}
+	};
+
 	private static AbstractClassifier code = new AbstractClassifier("code") {
 		@Override
 		public double getScore(MethodInstance methodA, MethodInstance methodB, ClassEnvironment env) {
+			return getScore(methodA, methodB, env, Double.NEGATIVE_INFINITY);
+		}
+
+		@Override
+		public double getScore(MethodInstance methodA, MethodInstance methodB, ClassEnvironment env, double minScore) {
 			if (!checkAsmNodes(methodA, methodB)) return compareAsmNodes(methodA, methodB);
 
-			return ClassifierUtil.compareInsns(methodA.getAsmNode().instructions, methodB.getAsmNode().instructions, env);
+			return ClassifierUtil.compareInsns(methodA, methodB, minScore);
 		}
 	};
 
@@ -0,0 +1,367 @@
+package matcher.classifier;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import matcher.type.ClassEnv;
+import matcher.type.ClassInstance;
+import matcher.type.FieldInstance;
+import matcher.type.MethodInstance;
+
+/**
+ * 64 bit hashes of classes and members that are equal for byte identical code apart from obfuscated names.
+ *
+ * <p>Opcodes, operands, constants, control flow and the names of non-obfuscated classes and members are hashed,
+ * obfuscated names are replaced by a placeholder. Labels, line numbers and frames are ignored, jump targets are
+ * hashed as the index of the next real instruction. Member hashes are combined order independently for classes.
+ */
+public final class NormalizedHash {
+	public static long get(ClassInstance cls) {
+		Hasher hasher = new Hasher();
+
+		hasher.add(cls.getAccess());
+		addClass(cls.getSuperClass(), hasher);
+		hasher.add(getSortedHashes(cls.getInterfaces().stream().mapToLong(NormalizedHash::getClassToken).toArray()));
+		hasher.add(getSortedHashes(Arrays.stream(cls.getMethods()).mapToLong(NormalizedHash::get).toArray()));
+		hasher.add(getSortedHashes(Arrays.stream(cls.getFields()).mapToLong(NormalizedHash::get).toArray()));
+
+		return hasher.get();
+	}
+
+	public static long get(MethodInstance method) {
+		Hasher hasher = new Hasher();
+
+		hasher.add(method.getAccess());
+		addName(method.getName(), method.isNameObfuscated(), hasher);
+		addDesc(Type.getMethodType(method.getDesc()), method.getEnv(), hasher);
+
+		MethodNode asmNode = method.getAsmNode();
+
+		if (asmNode == null) {
+			hasher.add(-1);
+		} else {
+			addCode(asmNode, method.getEnv(), hasher);
+		}
+
+		return hasher.get();
+	}
+
+	public static long get(FieldInstance field) {
+		Hasher hasher = new Hasher();
+
+		hasher.add(field.getAccess());
+		addName(field.getName(), field.isNameObfuscated(), hasher);
+		addClass(field.getType(), hasher);
+
+		FieldNode asmNode = field.getAsmNode();
+		addConstant(asmNode != null ? asmNode.value : null, field.getEnv(), hasher);
+
+		return hasher.get();
+	}
+
+	/**
+	 * Get the number of real instructions hashed for the method, ignoring labels, line numbers and frames.
+	 */
+	public static int getInsnCount(MethodInstance method) {
+		MethodNode asmNode = method.getAsmNode();
+		if (asmNode == null) return 0;
+
+		int ret = 0;
+
+		for (AbstractInsnNode ain = asmNode.instructions.getFirst(); ain != null; ain = ain.getNext()) {
+			if (ain.getOpcode() >= 0) ret++;
+		}
+
+		return ret;
+	}
+
+	private static void addCode(MethodNode asmNode, ClassEnv env, Hasher hasher) {
+		InsnList il = asmNode.instructions;
+		Map<LabelNode, Integer> labelPositions = new IdentityHashMap<>();
+		int pos = 0;
+
+		for (AbstractInsnNode ain = il.getFirst(); ain != null; ain = ain.getNext()) {
+			if (ain.getType() == AbstractInsnNode.LABEL) {
+				labelPositions.put((LabelNode) ain, pos);
+			} else if (ain.getOpcode() >= 0) {
+				pos++;
+			}
+		}
+
+		hasher.add(pos);
+
+		for (AbstractInsnNode ain = il.getFirst(); ain != null; ain = ain.getNext()) {
+			int opcode = ain.getOpcode();
+			if (opcode < 0) continue;
+
+			hasher.add(opcode);
+
+			switch (ain.getType()) {
+			case AbstractInsnNode.INT_INSN:
+				hasher.add(((IntInsnNode) ain).operand);
+				break;
+			case AbstractInsnNode.VAR_INSN:
+				hasher.add(((VarInsnNode) ain).var);
+				break;
+			case AbstractInsnNode.TYPE_INSN:
+				addClass(env.getClsByName(((TypeInsnNode) ain).desc), ((TypeInsnNode) ain).desc, hasher);
+				break;
+			case AbstractInsnNode.FIELD_INSN: {
+				FieldInsnNode in = (FieldInsnNode) ain;
+				ClassInstance owner = env.getClsByName(in.owner);
+				FieldInstance field = owner != null ? owner.resolveField(in.name, in.desc) : null;
+
+				addClass(owner, in.owner, hasher);
+				addName(in.name, field != null ? field.isNameObfuscated() : owner != null && owner.isNameObfuscated(), hasher);
+				addDesc(Type.getType(in.desc), env, hasher);
+				break;
+			}
+			case AbstractInsnNode.METHOD_INSN: {
+				MethodInsnNode in = (MethodInsnNode) ain;
+
+				addMethodRef(in.owner, in.name, in.desc, in.itf, env, hasher);
+				break;
+			}
+			case AbstractInsnNode.INVOKE_DYNAMIC_INSN: {
+				InvokeDynamicInsnNode in = (InvokeDynamicInsnNode) ain;
+
+				// the name is the implemented interface method's, which may be obfuscated
+				addDesc(Type.getMethodType(in.desc), env, hasher);
+				addConstant(in.bsm, env, hasher);
+				hasher.add(in.bsmArgs.length);
+
+				for (Object arg : in.bsmArgs) {
+					addConstant(arg, env, hasher);
+				}
+
+				break;
+			}
+			case AbstractInsnNode.JUMP_INSN:
+				addLabel(((JumpInsnNode) ain).label, labelPositions, hasher);
+				break;
+			case AbstractInsnNode.LDC_INSN:
+				addConstant(((LdcInsnNode) ain).cst, env, hasher);
+				break;
+			case AbstractInsnNode.IINC_INSN:
+				hasher.add(((IincInsnNode) ain).var);
+				hasher.add(((IincInsnNode) ain).incr);
+				break;
+			case AbstractInsnNode.TABLESWITCH_INSN: {
+				TableSwitchInsnNode in = (TableSwitchInsnNode) ain;
+
+				hasher.add(in.min);
+				hasher.add(in.max);
+				addLabel(in.dflt, labelPositions, hasher);
+
+				for (LabelNode label : in.labels) {
+					addLabel(label, labelPositions, hasher);
+				}
+
+				break;
+			}
+			case AbstractInsnNode.LOOKUPSWITCH_INSN: {
+				LookupSwitchInsnNode in = (LookupSwitchInsnNode) ain;
+
+				addLabel(in.dflt, labelPositions, hasher);
+				hasher.add(in.keys.size());
+
+				for (int i = 0; i < in.keys.size(); i++) {
+					hasher.add(in.keys.get(i));
+					addLabel(in.labels.get(i), labelPositions, hasher);
+				}
+
+				break;
+			}
+			case AbstractInsnNode.MULTIANEWARRAY_INSN:
+				addClass(env.getClsByName(((MultiANewArrayInsnNode) ain).desc), ((MultiANewArrayInsnNode) ain).desc, hasher);
+				hasher.add(((MultiANewArrayInsnNode) ain).dims);
+				break;
+			}
+		}
+
+		hasher.add(asmNode.tryCatchBlocks.size());
+
+		for (TryCatchBlockNode tcb : asmNode.tryCatchBlocks) {
+			addLabel(tcb.start, labelPositions, hasher);
+			addLabel(tcb.end, labelPositions, hasher);
+			addLabel(tcb.handler, labelPositions, hasher);
+
+			if (tcb.type == null) {
+				hasher.add(-1);
+			} else {
+				addClass(env.getClsByName(tcb.type), tcb.type, hasher);
+			}
+		}
+	}
+
+	private static void addLabel(LabelNode label, Map<LabelNode, Integer> labelPositions, Hasher hasher) {
+		hasher.add(labelPositions.getOrDefault(label, -1));
+	}
+
+	private static void addMethodRef(String owner, String name, String desc, boolean toInterface, ClassEnv env, Hasher hasher) {
+		ClassInstance cls = env.getClsByName(owner);
+		MethodInstance method = cls != null ? cls.resolveMethod(name, desc, toInterface) : null;
+
+		addClass(cls, owner, hasher);
+		addName(name, method != null ? method.isNameObfuscated() : cls != null && cls.isNameObfuscated(), hasher);
+		addDesc(Type.getMethodType(desc), env, hasher);
+	}
+
+	private static void addConstant(Object value, ClassEnv env, Hasher hasher) {
+		if (value == null) {
+			hasher.add(0);
+		} else if (value instanceof Integer) {
+			hasher.add(1);
+			hasher.add((Integer) value);
+		} else if (value instanceof Float) {
+			hasher.add(2);
+			hasher.add(Float.floatToIntBits((Float) value));
+		} else if (value instanceof Long) {
+			hasher.add(3);
+			hasher.add((Long) value);
+		} else if (value instanceof Double) {
+			hasher.add(4);
+			hasher.add(Double.doubleToLongBits((Double) value));
+		} else if (value instanceof String) {
+			hasher.add(5);
+			hasher.add((String) value);
+		} else if (value instanceof Type) {
+			hasher.add(6);
+			addDesc((Type) value, env, hasher);
+		} else if (value instanceof Handle) {
+			Handle handle = (Handle) value;
+
+			hasher.add(7);
+			hasher.add(handle.getTag());
+
+			if (handle.getDesc().startsWith("(")) {
+				addMethodRef(handle.getOwner(), handle.getName(), handle.getDesc(), handle.isInterface(), env, hasher);
+			} else {
+				ClassInstance owner = env.getClsByName(handle.getOwner());
+				FieldInstance field = owner != null ? owner.resolveField(handle.getName(), handle.getDesc()) : null;
+
+				addClass(owner, handle.getOwner(), hasher);
+				addName(handle.getName(), field != null ? field.isNameObfuscated() : owner != null && owner.isNameObfuscated(), hasher);
+				addDesc(Type.getType(handle.getDesc()), env, hasher);
+			}
+		} else { // ConstantDynamic, rare enough to only hash its type
+			hasher.add(8);
+			hasher.add(value.getClass().getName());
+		}
+	}
+
+	private static void addDesc(Type type, ClassEnv env, Hasher hasher) {
+		switch (type.getSort()) {
+		case Type.METHOD:
+			for (Type argType : type.getArgumentTypes()) {
+				addDesc(argType, env, hasher);
+			}
+
+			hasher.add(')');
+			addDesc(type.getReturnType(), env, hasher);
+			break;
+		case Type.ARRAY:
+		case Type.OBJECT:
+			addClass(env.getClsById(type.getDescriptor()), type.getDescriptor(), hasher);
+			break;
+		default:
+			hasher.add(type.getDescriptor());
+		}
+	}
+
+	private static void addClass(ClassInstance cls, String name, Hasher hasher) {
+		if (cls != null) {
+			addClass(cls, hasher);
+		} else {
+			hasher.add(name);
+		}
+	}
+
+	private static void addClass(ClassInstance cls, Hasher hasher) {
+		hasher.add(cls != null ? getClassToken(cls) : 0);
+	}
+
+	private static long getClassToken(ClassInstance cls) {
+		if (cls.isArray()) return getClassToken(cls.getElementClass()) * 31 + cls.getArrayDimensions();
+
+		return cls.isNameObfuscated() ? obfuscatedToken : new Hasher().add(cls.getId()).get();
+	}
+
+	private static void addName(String name, boolean obfuscated, Hasher hasher) {
+		if (obfuscated) {
+			hasher.add(obfuscatedToken);
+		} else {
+			hasher.add(name);
+		}
+	}
+
+	private static long getSortedHashes(long[] hashes) {
+		Arrays.sort(hashes);
+
+		Hasher hasher = new Hasher();
+		hasher.add(hashes.length);
+
+		for (long hash : hashes) {
+			hasher.add(hash);
+		}
+
+		return hasher.get();
+	}
+
+	private static final class Hasher {
+		Hasher add(long value) {
+			state = (state ^ value) * 0x100000001b3L; // FNV-1a over 64 bit words
+			state ^= state >>> 29;
+
+			return this;
+		}
+
+		Hasher add(String str) {
+			add(str.length());
+
+			for (int i = 0; i < str.length(); i++) {
+				add(str.charAt(i));
+			}
+
+			return this;
+		}
+
+		long get() {
+			// murmur3 64 bit finalizer
+			long h = state;
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			h *= 0xc4ceb9fe1a85ec53L;
+			h ^= h >>> 33;
+
+			return h;
+		}
+
+		private long state = 0xcbf29ce484222325L;
+	}
+
+	private static final long obfuscatedToken = 0x6f62663f6f62663fL;
+}
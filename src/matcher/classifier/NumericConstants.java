@@ -0,0 +1,80 @@
+package matcher.classifier;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.objectweb.asm.tree.MethodNode;
+
+import matcher.type.ClassInstance;
+
+/**
+ * Distinct numeric constants of a method or class as sorted primitive arrays.
+ *
+ * <p>Floats and doubles are stored by their canonical bit patterns, matching the equality of the boxed types.
+ */
+public final class NumericConstants {
+	public static NumericConstants create(MethodNode node) {
+		Set<Integer> ints = new HashSet<>();
+		Set<Long> longs = new HashSet<>();
+		Set<Float> floats = new HashSet<>();
+		Set<Double> doubles = new HashSet<>();
+
+		ClassifierUtil.extractNumbers(node, ints, longs, floats, doubles);
+
+		return create(ints, longs, floats, doubles);
+	}
+
+	/**
+	 * Create the constants of all methods and field initializers of a class.
+	 */
+	public static NumericConstants create(ClassInstance cls) {
+		Set<Integer> ints = new HashSet<>();
+		Set<Long> longs = new HashSet<>();
+		Set<Float> floats = new HashSet<>();
+		Set<Double> doubles = new HashSet<>();
+
+		ClassClassifier.extractNumbers(cls, ints, longs, floats, doubles);
+
+		return create(ints, longs, floats, doubles);
+	}
+
+	private static NumericConstants create(Set<Integer> ints, Set<Long> longs, Set<Float> floats, Set<Double> doubles) {
+		if (ints.isEmpty() && longs.isEmpty() && floats.isEmpty() && doubles.isEmpty()) return empty;
+
+		return new NumericConstants(ints.stream().mapToInt(Integer::intValue).sorted().toArray(),
+				longs.stream().mapToLong(Long::longValue).sorted().toArray(),
+				floats.stream().mapToInt(Float::floatToIntBits).sorted().toArray(),
+				doubles.stream().mapToLong(Double::doubleToLongBits).sorted().toArray());
+	}
+
+	private NumericConstants(int[] ints, long[] longs, int[] floatBits, long[] doubleBits) {
+		this.ints = ints;
+		this.longs = longs;
+		this.floatBits = floatBits;
+		this.doubleBits = doubleBits;
+	}
+
+	/**
+	 * Compare like ClassifierUtil.compareSets on each number type, averaged over the 4 types.
+	 */
+	public static double compare(NumericConstants a, NumericConstants b) {
+		return (ClassifierUtil.compareSortedSets(a.ints, b.ints)
+				+ ClassifierUtil.compareSortedSets(a.longs, b.longs)
+				+ ClassifierUtil.compareSortedSets(a.floatBits, b.floatBits)
+				+ ClassifierUtil.compareSortedSets(a.doubleBits, b.doubleBits)) / 4;
+	}
+
+	/**
+	 * Get the number of number types with at least one constant.
+	 */
+	public int getTypeCount() {
+		return (ints.length > 0 ? 1 : 0) + (longs.length > 0 ? 1 : 0) + (floatBits.length > 0 ? 1 : 0) + (doubleBits.length > 0 ? 1 : 0);
+	}
+
+	private static final NumericConstants empty = new NumericConstants(new int[0], new long[0], new int[0], new long[0]);
+
+	final int[] ints;
+	final long[] longs;
+	final int[] floatBits;
+	final long[] doubleBits;
+}
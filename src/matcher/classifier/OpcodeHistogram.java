@@ -0,0 +1,94 @@
+package matcher.classifier;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+
+/**
+ * Opcode frequencies of an instruction list, stored sparsely as sorted (opcode, count) entries.
+ *
+ * <p>Instructions can only match in compareInsns if their opcodes are equal, so the histograms bound the edit
+ * distance from below without looking at any operands.
+ */
+public final class OpcodeHistogram {
+	public static OpcodeHistogram create(InsnList il) {
+		int[] counts = new int[opcodeCount];
+
+		for (AbstractInsnNode ain = il.getFirst(); ain != null; ain = ain.getNext()) {
+			counts[ain.getOpcode() + 1]++; // labels, frames and line numbers share opcode -1
+		}
+
+		int entryCount = 0;
+
+		for (int count : counts) {
+			if (count > 0) entryCount++;
+		}
+
+		int[] entries = new int[entryCount];
+		entryCount = 0;
+
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0) entries[entryCount++] = i << countBits | counts[i];
+		}
+
+		return new OpcodeHistogram(entries, il.size());
+	}
+
+	private OpcodeHistogram(int[] entries, int size) {
+		this.entries = entries;
+		this.size = size;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Get the lowest possible levenshtein distance between the instruction lists, the length of the longer list
+	 * minus the instructions with a partner of the same opcode.
+	 */
+	public static int getMinDistance(OpcodeHistogram a, OpcodeHistogram b) {
+		return Math.max(a.size, b.size) - getCommonCount(a, b);
+	}
+
+	/**
+	 * Get the highest compareInsns result the instruction lists can achieve.
+	 */
+	public static double getMaxSimilarity(OpcodeHistogram a, OpcodeHistogram b) {
+		int upperBound = Math.max(a.size, b.size);
+		if (upperBound == 0) return 1;
+
+		return 1 - (double) getMinDistance(a, b) / upperBound;
+	}
+
+	private static int getCommonCount(OpcodeHistogram a, OpcodeHistogram b) {
+		int[] entriesA = a.entries;
+		int[] entriesB = b.entries;
+		int ret = 0;
+		int posA = 0;
+		int posB = 0;
+
+		while (posA < entriesA.length && posB < entriesB.length) {
+			int keyA = entriesA[posA] >>> countBits;
+			int keyB = entriesB[posB] >>> countBits;
+
+			if (keyA < keyB) {
+				posA++;
+			} else if (keyA > keyB) {
+				posB++;
+			} else {
+				ret += Math.min(entriesA[posA] & countMask, entriesB[posB] & countMask);
+				posA++;
+				posB++;
+			}
+		}
+
+		return ret;
+	}
+
+	private static final int opcodeCount = 256; // opcode + 1, jvm opcodes end at 201
+	private static final int countBits = 23; // enough for all labels, frames and line numbers of 64k bytes of code
+	private static final int countMask = (1 << countBits) - 1;
+
+	private final int[] entries; // opcode + 1 << countBits | count
+	private final int size;
+}
@@ -0,0 +1,229 @@
+package matcher.classifier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import matcher.Util;
+import matcher.type.ClassEnvironment;
+import matcher.type.ClassInstance;
+import matcher.type.FieldInstance;
+import matcher.type.IMatchable;
+import matcher.type.MatchType;
+import matcher.type.MethodInstance;
+import matcher.type.MethodVarInstance;
+import matcher.type.Signature.ClassSignature;
+import matcher.type.Signature.FieldSignature;
+import matcher.type.Signature.MethodSignature;
+
+/**
+ * Tracks which class and member rankings may have changed since the previous run of an auto match pass.
+ *
+ * <p>The classifiers only read the match state of a neighborhood around the ranked entity: the class hierarchy,
+ * outer and inner classes, member types, references in and out, positional siblings and the dependencies of the
+ * compared instructions. Every input class gets a conservative neighborhood covering its own and its members'
+ * rankings at any level, a match change marks all classes with the changed entity in their neighborhood as dirty.
+ * A pass only has to re-rank dirty classes and members of dirty classes, everything else yields the same results
+ * as in the previous run of the pass at the same level.
+ *
+ * <p>The neighborhoods have to be kept in sync with the classifiers, a missing dependency would skip rankings whose
+ * result changed.
+ */
+public class RankingWorklist {
+	public RankingWorklist(ClassEnvironment env) {
+		Map<MethodInstance, Collection<IMatchable<?>>> insnDependencies = new IdentityHashMap<>();
+		Set<IMatchable<?>> dependencies = Util.newIdentityHashSet();
+
+		for (Collection<ClassInstance> classes : Arrays.asList(env.getClassesA(), env.getClassesB())) {
+			for (ClassInstance cls : classes) {
+				if (cls.getUri() == null) continue;
+
+				addClassDependencies(cls, insnDependencies, dependencies);
+
+				for (IMatchable<?> dependency : dependencies) {
+					dependents.computeIfAbsent(dependency, ignore -> new ArrayList<>()).add(cls);
+				}
+
+				dependencies.clear();
+			}
+		}
+	}
+
+	/**
+	 * Get the state for the auto match pass of the given type and level.
+	 *
+	 * <p>Results only carry over between runs at the same level, the state gets reset when the level changes.
+	 */
+	public Pass getPass(MatchType type, ClassifierLevel level) {
+		Pass ret = passes.get(type);
+
+		if (ret == null || ret.level != level) {
+			ret = new Pass(level);
+			passes.put(type, ret);
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Record match state changes of the supplied entities, marking their dependent classes dirty for every pass.
+	 */
+	public void invalidate(Collection<? extends IMatchable<?>> entities) {
+		for (IMatchable<?> entity : entities) {
+			List<ClassInstance> classes = dependents.get(entity);
+			if (classes == null) continue;
+
+			for (Pass pass : passes.values()) {
+				pass.dirty.addAll(classes);
+			}
+		}
+	}
+
+	private static void addClassDependencies(ClassInstance cls, Map<MethodInstance, Collection<IMatchable<?>>> insnDependencies, Set<IMatchable<?>> out) {
+		Set<MethodInstance> codeMethods = Util.newIdentityHashSet(); // methods whose instructions get compared
+
+		addClass(cls, out);
+		if (cls.getSuperClass() != null) addClass(cls.getSuperClass(), out);
+		addClasses(cls.getInterfaces(), out);
+		addClasses(cls.getChildClasses(), out);
+		addClasses(cls.getImplementers(), out);
+		if (cls.getOuterClass() != null) addClass(cls.getOuterClass(), out);
+		addClasses(cls.getInnerClasses(), out);
+
+		ClassSignature signature = cls.getSignature();
+		if (signature != null) addSignatureClasses(signature::addClasses, out);
+
+		for (MethodInstance method : cls.getMethodTypeRefs()) {
+			addMember(method, out);
+			codeMethods.add(method); // in refs (bci)
+		}
+
+		for (FieldInstance field : cls.getFieldTypeRefs()) {
+			addMember(field, out);
+		}
+
+		for (MethodInstance method : cls.getMethods()) {
+			addMember(method, out);
+			addClass(method.getRetType(), out);
+
+			for (MethodVarInstance arg : method.getArgs()) {
+				addClass(arg.getType(), out);
+			}
+
+			MethodSignature methodSignature = method.getSignature();
+			if (methodSignature != null) addSignatureClasses(methodSignature::addClasses, out);
+
+			addClasses(method.getClassRefs(), out);
+			addMembers(method.getAllHierarchyMembers(), out);
+			addMembers(method.getParents(), out);
+			addMembers(method.getChildren(), out);
+			addMembers(method.getRefsOut(), out);
+			addMembers(method.getRefsIn(), out);
+			addMembers(method.getFieldReadRefs(), out);
+			addMembers(method.getFieldWriteRefs(), out);
+
+			codeMethods.add(method);
+			codeMethods.addAll(method.getRefsIn()); // in refs (bci)
+		}
+
+		for (FieldInstance field : cls.getFields()) {
+			addMember(field, out);
+			addClass(field.getType(), out);
+
+			FieldSignature fieldSignature = field.getSignature();
+			if (fieldSignature != null) addSignatureClasses(fieldSignature::addClasses, out);
+
+			addMembers(field.getReadRefs(), out);
+			addMembers(field.getWriteRefs(), out);
+
+			codeMethods.addAll(field.getWriteRefs()); // the initializer is part of a writing method
+			codeMethods.addAll(field.getReadRefs()); // read refs (bci)
+		}
+
+		for (MethodInstance method : codeMethods) {
+			if (method.getAsmNode() != null) out.addAll(insnDependencies.computeIfAbsent(method, ClassifierUtil::getInsnDependencies));
+		}
+	}
+
+	private static void addClass(ClassInstance cls, Set<IMatchable<?>> out) {
+		out.add(cls);
+		if (cls.isArray()) out.add(cls.getElementClass());
+	}
+
+	private static void addClasses(Collection<ClassInstance> classes, Set<IMatchable<?>> out) {
+		for (ClassInstance cls : classes) {
+			addClass(cls, out);
+		}
+	}
+
+	private static void addSignatureClasses(Consumer<Collection<ClassInstance>> signature, Set<IMatchable<?>> out) {
+		List<ClassInstance> classes = new ArrayList<>();
+		signature.accept(classes);
+		addClasses(classes, out);
+	}
+
+	/**
+	 * Add a member with its owner, which gets checked along with the member by the potential equality checks.
+	 */
+	private static void addMember(IMatchable<?> member, Set<IMatchable<?>> out) {
+		if (!out.add(member)) return;
+
+		if (member instanceof MethodInstance) {
+			addClass(((MethodInstance) member).getCls(), out);
+		} else {
+			addClass(((FieldInstance) member).getCls(), out);
+		}
+	}
+
+	private static void addMembers(Collection<? extends IMatchable<?>> members, Set<IMatchable<?>> out) {
+		for (IMatchable<?> member : members) {
+			addMember(member, out);
+		}
+	}
+
+	public static final class Pass {
+		Pass(ClassifierLevel level) {
+			this.level = level;
+		}
+
+		/**
+		 * Start a run of the pass.
+		 *
+		 * @return the classes whose rankings may have changed since the previous run, null if there was none
+		 */
+		public Set<ClassInstance> begin() {
+			Set<ClassInstance> ret = ran ? dirty : null;
+
+			dirty = Util.newIdentityHashSet();
+			ran = true;
+
+			return ret;
+		}
+
+		/**
+		 * Get the class ranking recorded by the previous run of the pass, null if there is none.
+		 */
+		public List<RankResult<ClassInstance>> getClassRanking(ClassInstance cls) {
+			return classRankings.get(cls);
+		}
+
+		public void putClassRanking(ClassInstance cls, List<RankResult<ClassInstance>> ranking) {
+			classRankings.put(cls, ranking);
+		}
+
+		final ClassifierLevel level;
+		private Set<ClassInstance> dirty = Util.newIdentityHashSet();
+		private boolean ran;
+		private final Map<ClassInstance, List<RankResult<ClassInstance>>> classRankings = new ConcurrentHashMap<>();
+	}
+
+	private final Map<IMatchable<?>, List<ClassInstance>> dependents = new IdentityHashMap<>();
+	private final Map<MatchType, Pass> passes = new EnumMap<>(MatchType.class);
+}
@@ -9,6 +9,8 @@ import java.util.function.Function;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 
+import matcher.type.ParseDepth;
+
 public class Config {
 	public static void init() {
 		Preferences prefs = Preferences.userRoot(); // in ~/.java/.userPrefs
@@ -20,6 +22,10 @@ public class Config {
 				if (prefs.nodeExists(lastProjectSetupKey)) setProjectConfig(new ProjectConfig(prefs.node(lastProjectSetupKey)));
 				setInputDirs(loadList(prefs, lastInputDirsKey, Config::deserializePath));
 				setVerifyInputFiles(prefs.getBoolean(lastVerifyInputFilesKey, true));
+				setSnapshotDir(deserializeOptionalPath(prefs.get(snapshotDirKey, "")));
+				setHashCacheFile(deserializeOptionalPath(prefs.get(hashCacheFileKey, "")));
+				setRuntimeDigestDir(deserializeOptionalPath(prefs.get(runtimeDigestDirKey, "")));
+				setSharedClassPathParseDepth(ParseDepth.valueOf(prefs.get(sharedClassPathParseDepthKey, sharedClassPathParseDepth.name())));
 				setUidConfig(new UidConfig(prefs));
 			}
 		} catch (BackingStoreException e) { }
@@ -39,6 +45,31 @@ public class Config {
 		return inputDirs;
 	}
 
+	/**
+	 * Get the directory for environment snapshots, null if disabled.
+	 */
+	public static Path getSnapshotDir() {
+		return snapshotDir;
+	}
+
+	/**
+	 * Get the file persisting input hashes across sessions, null if disabled.
+	 */
+	public static Path getHashCacheFile() {
+		return hashCacheFile;
+	}
+
+	/**
+	 * Get the directory persisting the runtime class digests, null if disabled.
+	 */
+	public static Path getRuntimeDigestDir() {
+		return runtimeDigestDir;
+	}
+
+	public static ParseDepth getSharedClassPathParseDepth() {
+		return sharedClassPathParseDepth;
+	}
+
 	public static UidConfig getUidConfig() {
 		return uidConfig;
 	}
@@ -60,6 +91,22 @@ public class Config {
 		verifyInputFiles = value;
 	}
 
+	public static void setSnapshotDir(Path dir) {
+		snapshotDir = dir;
+	}
+
+	public static void setHashCacheFile(Path file) {
+		hashCacheFile = file;
+	}
+
+	public static void setRuntimeDigestDir(Path dir) {
+		runtimeDigestDir = dir;
+	}
+
+	public static void setSharedClassPathParseDepth(ParseDepth depth) {
+		sharedClassPathParseDepth = depth;
+	}
+
 	public static boolean setUidConfig(UidConfig config) {
 		if (!config.isValid()) return false;
 
@@ -75,6 +122,10 @@ public class Config {
 			if (projectConfig.isValid()) projectConfig.save(root.node(lastProjectSetupKey));
 			saveList(root.node(lastInputDirsKey), inputDirs);
 			root.putBoolean(lastVerifyInputFilesKey, verifyInputFiles);
+			root.put(snapshotDirKey, snapshotDir != null ? snapshotDir.toString() : "");
+			root.put(hashCacheFileKey, hashCacheFile != null ? hashCacheFile.toString() : "");
+			root.put(runtimeDigestDirKey, runtimeDigestDir != null ? runtimeDigestDir.toString() : "");
+			root.put(sharedClassPathParseDepthKey, sharedClassPathParseDepth.name());
 			uidConfig.save(root);
 
 			root.flush();
@@ -109,13 +160,25 @@ public class Config {
 		return Paths.get(path);
 	}
 
+	static Path deserializeOptionalPath(String path) {
+		return path.isEmpty() ? null : Paths.get(path);
+	}
+
 	private static final String userPrefFolder = "player-obf-matcher";
 	private static final String lastProjectSetupKey = "last-project-setup";
 	private static final String lastInputDirsKey = "last-input-dirs";
 	private static final String lastVerifyInputFilesKey = "last-verify-input-files";
+	private static final String snapshotDirKey = "snapshot-dir";
+	private static final String hashCacheFileKey = "hash-cache-file";
+	private static final String runtimeDigestDirKey = "runtime-digest-dir";
+	private static final String sharedClassPathParseDepthKey = "shared-class-path-parse-depth";
 
 	private static ProjectConfig projectConfig = new ProjectConfig();
 	private static final List<Path> inputDirs = new ArrayList<>();
 	private static boolean verifyInputFiles = true;
+	private static Path snapshotDir;
+	private static Path hashCacheFile;
+	private static Path runtimeDigestDir;
+	private static ParseDepth sharedClassPathParseDepth = ParseDepth.MEMBERS;
 	private static UidConfig uidConfig = new UidConfig();
 }
\ No newline at end of file
@@ -36,9 +36,12 @@ import javafx.stage.Stage;
 import javafx.stage.StageStyle;
 import javafx.stage.Window;
 import matcher.Matcher;
+import matcher.config.Config;
 import matcher.gui.menu.MainMenuBar;
 import matcher.type.ClassEnvironment;
+import matcher.type.InputFile;
 import matcher.type.MatchType;
+import matcher.type.RuntimeClassIndex;
 
 public class Gui extends Application {
 	@Override
@@ -46,6 +49,10 @@ public class Gui extends Application {
 		Matcher.init();
 
 		env = new ClassEnvironment();
+		env.setSnapshotDir(Config.getSnapshotDir());
+		env.setSharedClassPathParseDepth(Config.getSharedClassPathParseDepth());
+		InputFile.setHashCacheFile(Config.getHashCacheFile());
+		RuntimeClassIndex.setDigestDir(Config.getRuntimeDigestDir());
 		matcher = new Matcher(env);
 
 		GridPane border = new GridPane();
@@ -1,13 +1,16 @@
 package matcher.gui.menu;
 
 import java.util.EnumSet;
+import java.util.List;
 
 import javafx.scene.control.Alert.AlertType;
+import javafx.scene.control.CheckMenuItem;
 import javafx.scene.control.Menu;
 import javafx.scene.control.MenuItem;
 import javafx.scene.control.SeparatorMenuItem;
 
 import matcher.Matcher.MatchingStatus;
+import matcher.classifier.ClassifierProfiler;
 import matcher.gui.Gui;
 import matcher.type.MatchType;
 
@@ -73,6 +76,13 @@ public class MatchingMenu extends Menu {
 
 		getItems().add(new SeparatorMenuItem());
 
+		CheckMenuItem checkMenuItem = new CheckMenuItem("Profile classifiers");
+		checkMenuItem.setSelected(ClassifierProfiler.isEnabled());
+		checkMenuItem.selectedProperty().addListener((observable, oldValue, newValue) -> {
+			if (newValue != null) ClassifierProfiler.setEnabled(newValue);
+		});
+		getItems().add(checkMenuItem);
+
 		menuItem = new MenuItem("Status");
 		getItems().add(menuItem);
 		menuItem.setOnAction(event -> showMatchingStatus());
@@ -88,8 +98,30 @@ public class MatchingMenu extends Menu {
 						status.matchedFieldCount, status.totalFieldCount, (status.totalFieldCount == 0 ? 0 : 100. * status.matchedFieldCount / status.totalFieldCount),
 						status.matchedMethodArgCount, status.totalMethodArgCount, (status.totalMethodArgCount == 0 ? 0 : 100. * status.matchedMethodArgCount / status.totalMethodArgCount),
 						status.matchedMethodVarCount, status.totalMethodVarCount, (status.totalMethodVarCount == 0 ? 0 : 100. * status.matchedMethodVarCount / status.totalMethodVarCount)
-						));
+						)
+				+ getClassifierProfile());
+	}
+
+	private static String getClassifierProfile() {
+		List<ClassifierProfiler.Entry> entries = ClassifierProfiler.getEntries();
+		if (entries.isEmpty()) return "";
+
+		long totalNanos = ClassifierProfiler.getTotalNanos(entries);
+		StringBuilder ret = new StringBuilder(String.format("%n%nClassifier time: %.1f ms, most expensive:", totalNanos / 1e6));
+
+		for (int i = 0; i < Math.min(entries.size(), maxProfileEntries); i++) {
+			ClassifierProfiler.Entry entry = entries.get(i);
+
+			ret.append(String.format("%n%s %s %s: %.1f ms (%.1f%%), %d calls, p50 %.1f us, p99 %.1f us, %.1f%% exits",
+					entry.type, entry.level, entry.name,
+					entry.totalNanos / 1e6, 100. * entry.totalNanos / totalNanos, entry.calls,
+					entry.p50Nanos / 1e3, entry.p99Nanos / 1e3, 100 * entry.getExitShare()));
+		}
+
+		return ret.toString();
 	}
 
+	private static final int maxProfileEntries = 15;
+
 	private final Gui gui;
 }
@@ -11,8 +11,14 @@ import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 import java.util.function.DoubleConsumer;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import matcher.Matcher;
@@ -40,7 +46,17 @@ public class MatchesIo {
 			String nonObfuscatedMemberPatternA = "";
 			String nonObfuscatedMemberPatternB = "";
 			ClassInstance currentClass = null;
+			ClassInstance currentClassMatch = null;
 			MethodInstance currentMethod = null;
+			MethodInstance currentMethodMatch = null;
+			// later lines override earlier conflicting ones like applying the matches in file order would
+			MatchCollector<MethodVarInstance> varMatches = new MatchCollector<>("method var", null);
+			MatchCollector<MethodInstance> methodMatches = new MatchCollector<>("method", method -> varMatches.removeIf(var -> var.getMethod() == method));
+			MatchCollector<FieldInstance> fieldMatches = new MatchCollector<>("field", null);
+			MatchCollector<ClassInstance> classMatches = new MatchCollector<>("class", cls -> {
+				methodMatches.removeIf(method -> method.getCls() == cls);
+				fieldMatches.removeIf(field -> field.getCls() == cls);
+			});
 			String line;
 
 			while ((line = reader.readLine()) != null) {
@@ -145,15 +161,14 @@ public class MatchesIo {
 						String idB = line.substring(pos + 1);
 						currentClass = env.getLocalClsByIdA(idA);
 						currentMethod = null;
-						ClassInstance target;
 
 						if (currentClass == null) {
 							System.err.println("Unknown a class "+idA);
-						} else if ((target = env.getLocalClsByIdB(idB)) == null) {
+						} else if ((currentClassMatch = env.getLocalClsByIdB(idB)) == null) {
 							System.err.println("Unknown b class "+idA);
 							currentClass = null;
 						} else {
-							matcher.match(currentClass, target);
+							classMatches.put(currentClass, currentClassMatch);
 						}
 					} else if (line.startsWith("\tm\t") || line.startsWith("\tf\t")) { // method or field
 						if (currentClass != null) {
@@ -164,14 +179,14 @@ public class MatchesIo {
 
 							if (line.charAt(1) == 'm') {
 								MethodInstance a = currentMethod = currentClass.getMethod(idA);
-								MethodInstance b;
+								MethodInstance b = currentMethodMatch = null;
 
 								if (a == null) {
 									System.err.println("Unknown a method "+idA+" in class "+currentClass);
-								} else if ((b = currentClass.getMatch().getMethod(idB)) == null) {
-									System.err.println("Unknown b method "+idB+" in class "+currentClass.getMatch());
+								} else if ((b = currentClassMatch.getMethod(idB)) == null) {
+									System.err.println("Unknown b method "+idB+" in class "+currentClassMatch);
 								} else {
-									matcher.match(a, b);
+									methodMatches.put(a, currentMethodMatch = b);
 								}
 							} else {
 								currentMethod = null;
@@ -180,10 +195,10 @@ public class MatchesIo {
 
 								if (a == null) {
 									System.err.println("Unknown a field "+idA+" in class "+currentClass);
-								} else if ((b = currentClass.getMatch().getField(idB)) == null) {
-									System.err.println("Unknown b field "+idB+" in class "+currentClass.getMatch());
+								} else if ((b = currentClassMatch.getField(idB)) == null) {
+									System.err.println("Unknown b field "+idB+" in class "+currentClassMatch);
 								} else {
-									matcher.match(a, b);
+									fieldMatches.put(a, b);
 								}
 							}
 						}
@@ -194,7 +209,7 @@ public class MatchesIo {
 
 							int idxA = Integer.parseInt(line.substring(5, pos));
 							int idxB = Integer.parseInt(line.substring(pos + 1));
-							MethodInstance matchedMethod = currentMethod.getMatch();
+							MethodInstance matchedMethod = currentMethodMatch;
 
 							if (matchedMethod == null) {
 								System.err.println("Arg for unmatched method "+currentMethod);
@@ -217,7 +232,7 @@ public class MatchesIo {
 								} else if (idxB < 0 || idxB >= varsB.length) {
 									System.err.println("Unknown b method "+type+" "+idxB+" in method "+matchedMethod);
 								} else {
-									matcher.match(varsA[idxA], varsB[idxB]);
+									varMatches.put(varsA[idxA], varsB[idxB]);
 								}
 							}
 						}
@@ -226,6 +241,11 @@ public class MatchesIo {
 			}
 
 			if (state != ParserState.CONTENT) throw new IOException("invalid matches file");
+
+			matcher.matchClasses(classMatches.matches);
+			matcher.matchMethods(methodMatches.matches);
+			matcher.matchFields(fieldMatches.matches);
+			matcher.matchMethodVars(varMatches.matches);
 		} catch (IOException e) {
 			throw new UncheckedIOException(e);
 		}
@@ -353,6 +373,55 @@ public class MatchesIo {
 		out.write('\n');
 	}
 
+	/**
+	 * Unique a to b matches, a later match to the same b drops the earlier one together with its dependent matches.
+	 */
+	private static final class MatchCollector<T> {
+		MatchCollector(String type, Consumer<T> dependentsRemover) {
+			this.type = type;
+			this.dependentsRemover = dependentsRemover;
+		}
+
+		void put(T a, T b) {
+			T prevA = matchesB.get(b);
+
+			if (prevA != null && prevA != a) {
+				System.err.println("Duplicate b "+type+" "+b+", unmatching a "+type+" "+prevA);
+				matches.remove(prevA);
+				removeDependents(prevA);
+			}
+
+			T prevB = matches.put(a, b);
+
+			if (prevB != null && prevB != b) { // rematched, the dependents belonged to the old match
+				matchesB.remove(prevB);
+				removeDependents(a);
+			}
+
+			matchesB.put(b, a);
+		}
+
+		void removeIf(Predicate<T> filter) {
+			for (Iterator<Map.Entry<T, T>> it = matches.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry<T, T> entry = it.next();
+				if (!filter.test(entry.getKey())) continue;
+
+				it.remove();
+				matchesB.remove(entry.getValue());
+				removeDependents(entry.getKey());
+			}
+		}
+
+		private void removeDependents(T a) {
+			if (dependentsRemover != null) dependentsRemover.accept(a);
+		}
+
+		final String type;
+		final Consumer<T> dependentsRemover;
+		final Map<T, T> matches = new LinkedHashMap<>();
+		final Map<T, T> matchesB = new HashMap<>();
+	}
+
 	private static enum ParserState {
 		START, HEADER, FILES_A, FILES_B, CP_FILES, CP_FILES_A, CP_FILES_B, CONTENT;
 	}
@@ -1,32 +1,32 @@
 package matcher.type;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UncheckedIOException;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.URL;
+import java.net.URLConnection;
 import java.nio.file.FileSystem;
-import java.nio.file.FileSystemNotFoundException;
-import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.function.DoubleConsumer;
 import java.util.regex.Pattern;
 
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.FieldNode;
@@ -35,6 +35,7 @@ import org.objectweb.asm.tree.MethodNode;
 
 import matcher.Util;
 import matcher.classifier.ClassifierUtil;
+import matcher.classifier.ConstantIndex;
 import matcher.classifier.MatchingCache;
 import matcher.config.ProjectConfig;
 import matcher.srcprocess.Cfr;
@@ -43,16 +44,47 @@ import matcher.type.Signature.ClassSignature;
 
 public class ClassEnvironment implements ClassEnv {
 	public void init(ProjectConfig config, DoubleConsumer progressReceiver) {
-		final double cpInitCost = 0.05;
-		final double classReadCost = 0.2;
-		double progress = 0;
-
 		inputsBeforeClassPath = config.hasInputsBeforeClassPath();
 		nonObfuscatedClassPatternA = config.getNonObfuscatedClassPatternA().isEmpty() ? null : Pattern.compile(config.getNonObfuscatedClassPatternA());
 		nonObfuscatedClassPatternB = config.getNonObfuscatedClassPatternB().isEmpty() ? null : Pattern.compile(config.getNonObfuscatedClassPatternB());
 		nonObfuscatedMemberPatternA = config.getNonObfuscatedMemberPatternA().isEmpty() ? null : Pattern.compile(config.getNonObfuscatedMemberPatternA());
 		nonObfuscatedMemberPatternB = config.getNonObfuscatedMemberPatternB().isEmpty() ? null : Pattern.compile(config.getNonObfuscatedMemberPatternB());
 
+		try {
+			prefetchInputFiles(config);
+
+			byte[] snapshotKey = null;
+			Path snapshotFile = null;
+
+			if (snapshotDir != null) {
+				snapshotKey = EnvironmentSnapshot.getKey(config, this);
+				snapshotFile = snapshotDir.resolve(EnvironmentSnapshot.getFileName(snapshotKey));
+
+				if (restoreSnapshot(snapshotFile, snapshotKey, config)) {
+					progressReceiver.accept(1);
+					return;
+				}
+
+				classBytes = new ConcurrentHashMap<>();
+			}
+
+			extract(config, progressReceiver);
+
+			if (snapshotFile != null) saveSnapshot(snapshotFile, snapshotKey);
+		} finally {
+			classBytes = null;
+			inputFileCache.clear();
+			RuntimeClassIndex.save();
+		}
+
+		progressReceiver.accept(1);
+	}
+
+	private void extract(ProjectConfig config, DoubleConsumer progressReceiver) {
+		final double cpInitCost = 0.05;
+		final double classReadCost = 0.2;
+		double progress = 0;
+
 		try {
 			for (int i = 0; i < 2; i++) {
 				if ((i == 0) != inputsBeforeClassPath) {
@@ -73,11 +105,18 @@ public class ClassEnvironment implements ClassEnv {
 				progressReceiver.accept(progress);
 			}
 
-			// synchronous feature extraction
-			extractorA.process(nonObfuscatedMemberPatternA);
+			// feature extraction, the per class passes run concurrently for both sides
+			CompletableFuture.allOf(
+					CompletableFuture.runAsync(() -> extractorA.processMembers(nonObfuscatedMemberPatternA)),
+					CompletableFuture.runAsync(() -> extractorB.processMembers(nonObfuscatedMemberPatternB))).get();
+			progressReceiver.accept(0.7);
+
+			// the hierarchy passes link members of shared classes across both sides and stay ordered
+			extractorA.processHierarchy();
 			progressReceiver.accept(0.8);
 
-			extractorB.process(nonObfuscatedMemberPatternB);
+			extractorB.processHierarchy();
+			constantIndexB = new ConstantIndex(extractorB.getClasses());
 			progressReceiver.accept(0.98);
 		} catch (InterruptedException | ExecutionException | IOException e) {
 			throw new RuntimeException(e);
@@ -86,13 +125,42 @@ public class ClassEnvironment implements ClassEnv {
 			openFileSystems.forEach(Util::closeSilently);
 			openFileSystems.clear();
 		}
+	}
 
-		progressReceiver.accept(1);
+	private boolean restoreSnapshot(Path file, byte[] key, ProjectConfig config) {
+		if (!Files.isRegularFile(file)) return false;
+
+		try {
+			EnvironmentSnapshot.read(file, key, this, extractorA, extractorB);
+		} catch (IOException | RuntimeException e) {
+			System.err.println("discarding environment snapshot "+file+": "+e);
+			reset();
+
+			return false;
+		}
+
+		for (Path archive : config.getSharedClassPath()) {
+			cpFiles.add(getInputFile(archive));
+		}
+
+		extractorA.initRestored(config.getPathsA(), config.getClassPathA());
+		extractorB.initRestored(config.getPathsB(), config.getClassPathB());
+		constantIndexB = new ConstantIndex(extractorB.getClasses());
+
+		return true;
+	}
+
+	private void saveSnapshot(Path file, byte[] key) {
+		try {
+			EnvironmentSnapshot.write(file, key, this, extractorA, extractorB);
+		} catch (IOException | RuntimeException e) {
+			System.err.println("can't write environment snapshot "+file+": "+e);
+		}
 	}
 
 	private void initClassPath(Collection<Path> sharedClassPath, boolean checkExisting) throws IOException {
 		for (Path archive : sharedClassPath) {
-			cpFiles.add(new InputFile(archive));
+			cpFiles.add(getInputFile(archive));
 
 			openFileSystems.add(Util.iterateJar(archive, false, file -> {
 				String name = file.toAbsolutePath().toString();
@@ -109,13 +177,67 @@ public class ClassEnvironment implements ClassEnv {
 		}
 	}
 
+	/**
+	 * Hash all configured inputs in parallel, later lookups through getInputFile are served from inputFileCache.
+	 */
+	private void prefetchInputFiles(ProjectConfig config) {
+		Set<Path> paths = new LinkedHashSet<>();
+		paths.addAll(config.getPathsA());
+		paths.addAll(config.getPathsB());
+		paths.addAll(config.getSharedClassPath());
+		paths.addAll(config.getClassPathA());
+		paths.addAll(config.getClassPathB());
+
+		paths.parallelStream().forEach(this::getInputFile);
+		InputFile.saveHashCache();
+	}
+
+	/**
+	 * Get the directory for environment snapshots, null if disabled.
+	 */
+	public Path getSnapshotDir() {
+		return snapshotDir;
+	}
+
+	/**
+	 * Set the directory for environment snapshots, init restores a matching snapshot instead of extracting the
+	 * inputs and writes a new one otherwise. null disables snapshots.
+	 */
+	public void setSnapshotDir(Path dir) {
+		snapshotDir = dir;
+	}
+
+	public ParseDepth getSharedClassPathParseDepth() {
+		return sharedClassPathParseDepth;
+	}
+
+	/**
+	 * Set how much of the shared class path classes gets parsed. Inputs and the per side class paths, whose classes get
+	 * matched, are always parsed fully.
+	 *
+	 * <p>Partially parsed classes get their remaining content loaded once it's requested through
+	 * ClassInstance.accept, e.g. by the decompiler.
+	 */
+	public void setSharedClassPathParseDepth(ParseDepth depth) {
+		if (depth == null) throw new NullPointerException("null depth");
+
+		sharedClassPathParseDepth = depth;
+	}
+
+	InputFile getInputFile(Path path) {
+		return inputFileCache.computeIfAbsent(path, InputFile::new);
+	}
+
 	public void reset() {
 		cpFiles.clear();
 		sharedClasses.clear();
 		classPathIndex.clear();
 		extractorA.reset();
 		extractorB.reset();
+		constantIndexB = null;
 		cache.clear();
+		stringDictionary.clear();
+		partialNodes.clear();
 	}
 
 	public void addOpenFileSystem(FileSystem fs) {
@@ -326,18 +448,23 @@ public class ClassEnvironment implements ClassEnv {
 		ClassInstance ret = getSharedClsById(id);
 		if (ret != null) return ret;
 
-		if (id.charAt(0) == '[') { // array type
-			ClassInstance elementClass = getArrayCls(this, id);
-			ClassInstance cls = new ClassInstance(id, elementClass);
+		synchronized (structureSync) {
+			ret = getSharedClsById(id);
+			if (ret != null) return ret;
+
+			if (id.charAt(0) == '[') { // array type
+				ClassInstance elementClass = getArrayCls(this, id);
+				ClassInstance cls = new ClassInstance(id, elementClass);
 
-			assert elementClass.isShared();
-			ret = addSharedCls(cls);
+				assert elementClass.isShared();
+				ret = addSharedCls(cls);
 
-			if (ret == cls) { // cls was added
-				addSuperClass(ret, "java/lang/Object");
+				if (ret == cls) { // cls was added
+					addSuperClass(ret, "java/lang/Object");
+				}
+			} else {
+				ret = getMissingCls(id, createUnknown);
 			}
-		} else {
-			ret = getMissingCls(id, createUnknown);
 		}
 
 		return ret;
@@ -353,23 +480,32 @@ public class ClassEnvironment implements ClassEnv {
 		return env.getCreateClassInstance(elementId);
 	}
 
+	/**
+	 * Load or create a shared class, the caller has to hold structureSync.
+	 */
 	ClassInstance getMissingCls(String id, boolean createUnknown) {
+		assert Thread.holdsLock(structureSync);
+
 		if (id.length() > 1) {
 			String name = ClassInstance.getName(id);
 			Path file = getSharedClassLocation(name);
+			ClassInstance cls = null;
 
-			if (file == null) {
-				URL url = ClassLoader.getSystemResource(name+".class");
-
-				if (url != null) {
-					file = getPath(url);
+			if (file != null) {
+				ClassNode cn = loadClass(file, sharedClassPathParseDepth);
+				cls = new ClassInstance(ClassInstance.getId(cn.name), file.toUri(), this, cn);
+			} else {
+				RuntimeClassIndex.RuntimeClass runtimeCls = RuntimeClassIndex.get(name);
+
+				if (runtimeCls != null) {
+					partialNodes.add(runtimeCls.node); // digest nodes have no code, load it on demand like MEMBERS depth nodes
+					recordClassNode(runtimeCls.node);
+					cls = new ClassInstance(ClassInstance.getId(runtimeCls.node.name), runtimeCls.uri, this, runtimeCls.node);
 				}
 			}
 
-			if (file != null) {
-				ClassNode cn = readClass(file);
-				ClassInstance cls = new ClassInstance(ClassInstance.getId(cn.name), file.toUri(), this, cn);
-				if (!cls.getId().equals(id)) throw new RuntimeException("mismatched cls id "+id+" for "+file+", expected "+name);
+			if (cls != null) {
+				if (!cls.getId().equals(id)) throw new RuntimeException("mismatched cls id "+id+" for "+cls.getUri()+", expected "+name);
 
 				ClassInstance ret = addSharedCls(cls);
 
@@ -389,40 +525,126 @@ public class ClassEnvironment implements ClassEnv {
 		return ret;
 	}
 
-	private Path getPath(URL url) {
-		URI uri = null;
-
+	/**
+	 * Read a class path class file, keeping its bytes for the environment snapshot if one will be written.
+	 */
+	ClassNode loadClass(Path path, ParseDepth depth) {
 		try {
-			uri = url.toURI();
+			byte[] data = Files.readAllBytes(path);
+			ClassNode ret = readClass(data, depth);
+
+			if (depth == ParseDepth.FULL) {
+				recordClassBytes(ret, data);
+			} else {
+				partialNodes.add(ret);
+				recordClassNode(ret); // the snapshot restores the same partial content
+			}
 
-			return Paths.get(uri);
-		} catch (URISyntaxException e) {
-			throw new RuntimeException(e);
-		} catch (FileSystemNotFoundException e) {
-			try {
-				addOpenFileSystem(FileSystems.newFileSystem(uri, Collections.emptyMap()));
-
-				return Paths.get(uri);
-			} catch (FileSystemNotFoundException e2) {
-				throw new RuntimeException("can't find fs for "+url, e2);
-			} catch (IOException e2) {
-				throw new UncheckedIOException(e2);
+			return ret;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	boolean isPartialNode(ClassNode cn) {
+		return partialNodes.contains(cn);
+	}
+
+	void addPartialNode(ClassNode cn) {
+		partialNodes.add(cn);
+	}
+
+	/**
+	 * Complete the partially parsed asm nodes of a class path class by parsing its class file again.
+	 *
+	 * <p>The missing content is copied into the existing nodes, so the members keep referencing them.
+	 */
+	void completeAsmNodes(ClassInstance cls) {
+		if (partialNodes.isEmpty()) return;
+
+		ClassNode[] nodes = cls.getAsmNodes();
+		if (nodes == null) return;
+
+		for (ClassNode cn : nodes) {
+			if (!partialNodes.contains(cn)) continue;
+
+			synchronized (Util.asmNodeSync) {
+				if (!partialNodes.contains(cn)) continue;
+
+				try {
+					URLConnection conn = cls.getUri().toURL().openConnection();
+					conn.setUseCaches(false); // don't keep the jar open
+
+					try (InputStream is = conn.getInputStream()) {
+						copyCode(readClass(ClassFileReader.readFully(is, conn.getContentLengthLong()), ParseDepth.FULL), cn);
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+
+				partialNodes.remove(cn);
 			}
 		}
 	}
 
-	static ClassNode readClass(Path path) {
-		try {
-			ClassReader reader = new ClassReader(Files.readAllBytes(path));
-			ClassNode cn = new ClassNode();
-			reader.accept(cn, ClassReader.EXPAND_FRAMES);
+	private static void copyCode(ClassNode src, ClassNode dst) {
+		if (!src.name.equals(dst.name) || src.methods.size() != dst.methods.size()) throw new IllegalStateException("class file changed: "+dst.name);
 
-			return cn;
-		} catch (IOException e) {
-			throw new UncheckedIOException(e);
+		dst.sourceFile = src.sourceFile;
+		dst.sourceDebug = src.sourceDebug;
+
+		for (int i = 0; i < src.methods.size(); i++) {
+			MethodNode from = src.methods.get(i);
+			MethodNode to = dst.methods.get(i);
+			if (!from.name.equals(to.name) || !from.desc.equals(to.desc)) throw new IllegalStateException("class file changed: "+dst.name);
+
+			to.parameters = from.parameters;
+			to.instructions = from.instructions;
+			to.tryCatchBlocks = from.tryCatchBlocks;
+			to.maxStack = from.maxStack;
+			to.maxLocals = from.maxLocals;
+			to.localVariables = from.localVariables;
+			to.visibleLocalVariableAnnotations = from.visibleLocalVariableAnnotations;
+			to.invisibleLocalVariableAnnotations = from.invisibleLocalVariableAnnotations;
 		}
 	}
 
+	void recordClassBytes(ClassNode cn, byte[] data) {
+		Map<ClassNode, byte[]> classBytes = this.classBytes;
+		if (classBytes != null) classBytes.put(cn, data);
+	}
+
+	/**
+	 * Keep the class file data of a class node not read from a class file, if the environment snapshot needs it.
+	 */
+	private void recordClassNode(ClassNode cn) {
+		if (classBytes == null) return;
+
+		ClassWriter writer = new ClassWriter(0);
+		cn.accept(writer);
+		recordClassBytes(cn, writer.toByteArray());
+	}
+
+	byte[] getClassBytes(ClassNode cn) {
+		return classBytes.get(cn);
+	}
+
+	Collection<ClassInstance> getSharedClasses() {
+		return sharedClasses.values();
+	}
+
+	static ClassNode readClass(byte[] data) {
+		return readClass(data, ParseDepth.FULL);
+	}
+
+	static ClassNode readClass(byte[] data, ParseDepth depth) {
+		ClassReader reader = new ClassReader(data);
+		ClassNode cn = new ClassNode();
+		reader.accept(cn, depth.readerFlags);
+
+		return cn;
+	}
+
 	/**
 	 * 1st class processing pass, member+class hierarchy and signature initialization.
 	 *
@@ -431,29 +653,25 @@ public class ClassEnvironment implements ClassEnv {
 	static void processClassA(ClassInstance cls, Pattern nonObfuscatedMemberPattern) {
 		assert !cls.isInput() || !cls.isShared();
 
-		Set<String> strings = cls.strings;
+		StringDictionary dictionary = cls.getEnv().getGlobal().getStringDictionary();
+		Set<String> strings = new HashSet<>();
 
 		for (ClassNode cn : cls.getAsmNodes()) {
 			if (cls.isInput() && cls.getSignature() == null && cn.signature != null) {
 				cls.setSignature(ClassSignature.parse(cn.signature, cls.getEnv()));
 			}
 
-			boolean isEnum = (cn.access & Opcodes.ACC_ENUM) != 0;
-
 			for (int i = 0; i < cn.methods.size(); i++) {
 				MethodNode mn = cn.methods.get(i);
 
 				if (cls.getMethod(mn.name, mn.desc) == null) {
-					boolean nameObfuscated = cls.isInput()
-							&& !mn.name.equals("<clinit>")
-							&& !mn.name.equals("<init>")
-							&& (!mn.name.equals("main") || !mn.desc.equals("([Ljava/lang/String;)V") || mn.access != (Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC))
-							&& (!isEnum || !isStandardEnumMethod(cn.name, mn))
-							&& (nonObfuscatedMemberPattern == null || !nonObfuscatedMemberPattern.matcher(cn.name+"/"+mn.name+mn.desc).matches());
-
-					cls.addMethod(new MethodInstance(cls, mn.name, mn.desc, mn, nameObfuscated, i));
+					MethodInstance method = new MethodInstance(cls, mn.name, mn.desc, mn, isNameObfuscated(cls, cn, mn, nonObfuscatedMemberPattern), i);
+					cls.addMethod(method);
 
-					ClassifierUtil.extractStrings(mn.instructions, strings);
+					Set<String> methodStrings = new HashSet<>();
+					ClassifierUtil.extractStrings(mn.instructions, methodStrings);
+					method.stringIds = dictionary.getIds(methodStrings);
+					strings.addAll(methodStrings);
 				}
 			}
 
@@ -461,10 +679,7 @@ public class ClassEnvironment implements ClassEnv {
 				FieldNode fn = cn.fields.get(i);
 
 				if (cls.getField(fn.name, fn.desc) == null) {
-					boolean nameObfuscated = cls.isInput()
-							&& (nonObfuscatedMemberPattern == null || !nonObfuscatedMemberPattern.matcher(cn.name+"/"+fn.name+";;"+fn.desc).matches());
-
-					cls.addField(new FieldInstance(cls, fn.name, fn.desc, fn, nameObfuscated, i));
+					cls.addField(new FieldInstance(cls, fn.name, fn.desc, fn, isNameObfuscated(cls, cn, fn, nonObfuscatedMemberPattern), i));
 
 					if (fn.value instanceof String) {
 						strings.add((String) fn.value);
@@ -484,6 +699,25 @@ public class ClassEnvironment implements ClassEnv {
 				if (cls.interfaces.add(ifCls)) ifCls.implementers.add(cls);
 			}
 		}
+
+		cls.stringIds = StringDictionary.union(cls.stringIds, dictionary.getIds(strings));
+	}
+
+	/**
+	 * Determine the initial name obfuscation state of a method, before it gets combined across its hierarchy.
+	 */
+	static boolean isNameObfuscated(ClassInstance cls, ClassNode cn, MethodNode mn, Pattern nonObfuscatedMemberPattern) {
+		return cls.isInput()
+				&& !mn.name.equals("<clinit>")
+				&& !mn.name.equals("<init>")
+				&& (!mn.name.equals("main") || !mn.desc.equals("([Ljava/lang/String;)V") || mn.access != (Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC))
+				&& ((cn.access & Opcodes.ACC_ENUM) == 0 || !isStandardEnumMethod(cn.name, mn))
+				&& (nonObfuscatedMemberPattern == null || !nonObfuscatedMemberPattern.matcher(cn.name+"/"+mn.name+mn.desc).matches());
+	}
+
+	static boolean isNameObfuscated(ClassInstance cls, ClassNode cn, FieldNode fn, Pattern nonObfuscatedMemberPattern) {
+		return cls.isInput()
+				&& (nonObfuscatedMemberPattern == null || !nonObfuscatedMemberPattern.matcher(cn.name+"/"+fn.name+";;"+fn.desc).matches());
 	}
 
 	private static boolean isStandardEnumMethod(String clsName, MethodNode m) {
@@ -545,15 +779,34 @@ public class ClassEnvironment implements ClassEnv {
 		return cache;
 	}
 
+	public StringDictionary getStringDictionary() {
+		return stringDictionary;
+	}
+
+	/**
+	 * Get the constant index over the B input classes, available after init.
+	 */
+	public ConstantIndex getConstantIndexB() {
+		return constantIndexB;
+	}
+
 	private final List<InputFile> cpFiles = new ArrayList<>();
-	private final Map<String, ClassInstance> sharedClasses = new HashMap<>();
+	private final Map<Path, InputFile> inputFileCache = new ConcurrentHashMap<>(); // hashed inputs of the running init
+	private final Map<String, ClassInstance> sharedClasses = new ConcurrentHashMap<>();
 	private final List<FileSystem> openFileSystems = new ArrayList<>();
 	private final Map<String, Path> classPathIndex = new HashMap<>();
 	private final ClassFeatureExtractor extractorA = new ClassFeatureExtractor(this);
 	private final ClassFeatureExtractor extractorB = new ClassFeatureExtractor(this);
 	private final MatchingCache cache = new MatchingCache();
+	final Object structureSync = new Object(); // guards creating classes and synthetic members, lookup misses get re-checked with it held
+	private final StringDictionary stringDictionary = new StringDictionary();
 	private final Decompiler decompiler = new Cfr();
 
+	private Path snapshotDir;
+	private ParseDepth sharedClassPathParseDepth = ParseDepth.MEMBERS;
+	private final Set<ClassNode> partialNodes = Collections.newSetFromMap(new ConcurrentHashMap<>()); // class path nodes without code
+	private volatile Map<ClassNode, byte[]> classBytes; // class file data for the snapshot, only collected while writing one
+	private ConstantIndex constantIndexB;
 	private boolean inputsBeforeClassPath;
 	private Pattern nonObfuscatedClassPatternA;
 	private Pattern nonObfuscatedClassPatternB;
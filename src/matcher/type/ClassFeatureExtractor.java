@@ -5,6 +5,7 @@ import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -13,7 +14,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.regex.Pattern;
 
@@ -27,6 +30,8 @@ import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.TypeInsnNode;
 
 import matcher.Util;
+import matcher.classifier.CodeSketch;
+import matcher.classifier.NumericConstants;
 import matcher.type.Analysis.CommonClasses;
 
 public class ClassFeatureExtractor implements LocalClassEnv {
@@ -38,11 +43,11 @@ public class ClassFeatureExtractor implements LocalClassEnv {
 		Set<Path> uniqueInputs = new LinkedHashSet<>(inputs);
 		Predicate<ClassNode> obfuscatedCheck = cn -> isNameObfuscated(cn, nonObfuscatedClasses);
 
-		for (Path archive : uniqueInputs) {
-			inputFiles.add(new InputFile(archive));
+		for (Path input : uniqueInputs) {
+			inputFiles.add(env.getInputFile(input));
 
-			Util.iterateJar(archive, true, file -> {
-				ClassInstance cls = readClass(file, obfuscatedCheck);
+			ClassFileReader.read(input, (uri, cn, data) -> {
+				ClassInstance cls = new ClassInstance(ClassInstance.getId(cn.name), uri, this, cn, obfuscatedCheck.test(cn));
 				String id = cls.getId();
 				String name = cls.getName();
 
@@ -56,14 +61,18 @@ public class ClassFeatureExtractor implements LocalClassEnv {
 					classes.put(id, cls);
 				} else if (prev.isInput()) {
 					mergeClasses(cls, prev);
+				} else {
+					return;
 				}
+
+				env.recordClassBytes(cn, data);
 			});
 		}
 	}
 
 	public void processClassPath(Collection<Path> classPath, boolean checkExisting) {
 		for (Path archive : classPath) {
-			cpFiles.add(new InputFile(archive));
+			cpFiles.add(env.getInputFile(archive));
 
 			env.addOpenFileSystem(Util.iterateJar(archive, false, file -> {
 				String name = file.toAbsolutePath().toString();
@@ -84,41 +93,41 @@ public class ClassFeatureExtractor implements LocalClassEnv {
 		return pattern == null || !pattern.matcher(cn.name).matches();
 	}
 
-	private ClassInstance readClass(Path path, Predicate<ClassNode> nameObfuscated) {
-		ClassNode cn = ClassEnvironment.readClass(path);
-
-		return new ClassInstance(ClassInstance.getId(cn.name), path.toUri(), this, cn, nameObfuscated.test(cn));
-	}
-
 	private static void mergeClasses(ClassInstance from, ClassInstance to) {
 		assert from.getAsmNodes().length == 1;
 
 		to.addAsmNode(from.getAsmNodes()[0]);
 	}
 
-	public void process(Pattern nonObfuscatedMemberPattern) {
+	/**
+	 * Run the per class processing passes, in parallel across the classes.
+	 *
+	 * <p>Class path classes loaded on demand are collected separately while the passes read the class map and get
+	 * added afterwards, ordered by id.
+	 */
+	public void processMembers(Pattern nonObfuscatedMemberPattern) {
 		ClassInstance clo = getCreateClassInstance("Ljava/lang/Object;");
 		assert clo != null && clo.getAsmNodes() != null;
 
 		initStep++;
 		List<ClassInstance> initialClasses = new ArrayList<>(classes.values());
 
-		for (ClassInstance cls : initialClasses) {
-			ClassEnvironment.processClassA(cls, nonObfuscatedMemberPattern);
-		}
+		runParallel(initialClasses, cls -> ClassEnvironment.processClassA(cls, nonObfuscatedMemberPattern));
 
 		initStep++;
 		initialClasses.clear();
 		initialClasses.addAll(classes.values());
 		assert initialClasses.size() == new HashSet<>(initialClasses).size();
 
-		for (ClassInstance cls : initialClasses) {
-			processClassB(cls);
-		}
+		runParallel(initialClasses, this::processClassB);
+	}
 
+	/**
+	 * Run the hierarchy and naming passes after processMembers, sequentially.
+	 */
+	public void processHierarchy() {
 		initStep++;
-		initialClasses.clear();
-		initialClasses.addAll(classes.values());
+		List<ClassInstance> initialClasses = new ArrayList<>(classes.values());
 
 		for (ClassInstance cls : initialClasses) {
 			processClassC(cls);
@@ -147,9 +156,45 @@ public class ClassFeatureExtractor implements LocalClassEnv {
 			processClassE(cls, curClsIdx, vmIdx);
 		}
 
+		initialClasses.parallelStream().forEach(cls -> {
+			if (cls.getUri() == null || !cls.isInput()) return;
+
+			cls.features = new ClassFeatures(cls);
+		});
+
 		initStep++;
 	}
 
+	private void runParallel(List<ClassInstance> work, Consumer<ClassInstance> pass) {
+		concurrentClasses = new ConcurrentHashMap<>();
+
+		try {
+			work.parallelStream().forEach(pass);
+		} finally {
+			Map<String, ClassInstance> added = concurrentClasses;
+			concurrentClasses = null;
+
+			added.values().stream()
+			.sorted(Comparator.comparing(ClassInstance::getId))
+			.forEachOrdered(cls -> classes.put(cls.getId(), cls));
+		}
+	}
+
+	/**
+	 * Set up the input files and init state for classes restored from an environment snapshot.
+	 */
+	void initRestored(Collection<Path> inputs, Collection<Path> classPath) {
+		for (Path input : new LinkedHashSet<>(inputs)) {
+			inputFiles.add(env.getInputFile(input));
+		}
+
+		for (Path archive : classPath) {
+			cpFiles.add(env.getInputFile(archive));
+		}
+
+		initStep = completeInitStep;
+	}
+
 	public void reset() {
 		inputFiles.clear();
 		cpFiles.clear();
@@ -179,6 +224,11 @@ public class ClassFeatureExtractor implements LocalClassEnv {
 	private void processClassB(ClassInstance cls) {
 		for (MethodInstance method : cls.methods) {
 			processMethodInsns(method);
+
+			if (method.asmNode != null && cls.isInput()) {
+				method.codeSketch = CodeSketch.create(method.asmNode.instructions);
+				method.numericConstants = NumericConstants.create(method.asmNode);
+			}
 		}
 	}
 
@@ -205,8 +255,14 @@ public class ClassFeatureExtractor implements LocalClassEnv {
 				FieldInstance dst = owner.resolveField(in.name, in.desc);
 
 				if (dst == null) { // unknown field, create a synthetic one
-					dst = new FieldInstance(owner, in.name, in.desc, ain.getOpcode() == Opcodes.GETSTATIC || ain.getOpcode() == Opcodes.PUTSTATIC);
-					owner.addField(dst);
+					synchronized (env.structureSync) {
+						dst = owner.resolveField(in.name, in.desc); // may have been created concurrently
+
+						if (dst == null) {
+							dst = new FieldInstance(owner, in.name, in.desc, ain.getOpcode() == Opcodes.GETSTATIC || ain.getOpcode() == Opcodes.PUTSTATIC);
+							owner.addField(dst);
+						}
+					}
 				}
 
 				if (ain.getOpcode() == Opcodes.GETSTATIC || ain.getOpcode() == Opcodes.GETFIELD) {
@@ -261,10 +317,16 @@ public class ClassFeatureExtractor implements LocalClassEnv {
 		MethodInstance dst = owner.resolveMethod(name, desc, toInterface);
 
 		if (dst == null) { // presumably a method in (super)type missing from the configured class path
-			System.out.println("creating synthetic method "+rawOwner+"/"+name+desc);
+			synchronized (env.structureSync) {
+				dst = owner.resolveMethod(name, desc, toInterface); // may have been created concurrently
 
-			dst = new MethodInstance(owner, name, desc, isStatic);
-			owner.addMethod(dst);
+				if (dst == null) {
+					System.out.println("creating synthetic method "+rawOwner+"/"+name+desc);
+
+					dst = new MethodInstance(owner, name, desc, isStatic);
+					owner.addMethod(dst);
+				}
+			}
 		}
 
 		dst.refsIn.add(method);
@@ -448,10 +510,31 @@ public class ClassFeatureExtractor implements LocalClassEnv {
 		if (id.isEmpty()) throw new IllegalArgumentException("empty class name");
 		assert id.charAt(id.length() - 1) == ';' : id;
 
+		return getExistingLocalCls(id);
+	}
+
+	Collection<ClassInstance> getArrayClasses() {
+		return arrayClasses.values();
+	}
+
+	/**
+	 * Add a class restored from an environment snapshot.
+	 */
+	void addClass(ClassInstance cls) {
+		ClassInstance prev = (cls.isArray() ? arrayClasses : classes).putIfAbsent(cls.getId(), cls);
+		if (prev != null) throw new IllegalStateException("duplicate class "+cls);
+	}
+
+	private ClassInstance getExistingLocalCls(String id) {
 		if (id.charAt(0) == '[') { // array class
 			return arrayClasses.get(id);
 		} else {
-			return classes.get(id);
+			ClassInstance ret = classes.get(id);
+			if (ret != null) return ret;
+
+			Map<String, ClassInstance> concurrentClasses = this.concurrentClasses;
+
+			return concurrentClasses != null ? concurrentClasses.get(id) : null;
 		}
 	}
 
@@ -494,29 +577,32 @@ public class ClassFeatureExtractor implements LocalClassEnv {
 
 		ClassInstance ret;
 
-		if (id.charAt(0) == '[') { // array type
-			if ((ret = arrayClasses.get(id)) != null) return ret;
+		if ((ret = getExistingLocalCls(id)) != null) return ret;
+		if ((ret = env.getSharedClsById(id)) != null) return ret;
+
+		synchronized (env.structureSync) {
+			if ((ret = getExistingLocalCls(id)) != null) return ret;
 			if ((ret = env.getSharedClsById(id)) != null) return ret;
 
-			ClassInstance elementClass = ClassEnvironment.getArrayCls(this, id);
-			ClassInstance cls = new ClassInstance(id, elementClass);
+			if (id.charAt(0) == '[') { // array type
+				ClassInstance elementClass = ClassEnvironment.getArrayCls(this, id);
+				ClassInstance cls = new ClassInstance(id, elementClass);
 
-			if (elementClass.isShared()) {
-				ret = env.addSharedCls(cls);
+				if (elementClass.isShared()) {
+					ret = env.addSharedCls(cls);
+				} else {
+					ret = arrayClasses.putIfAbsent(id, cls);
+					if (ret == null) ret = cls;
+				}
+
+				if (ret == cls) { // cls was added
+					ClassEnvironment.addSuperClass(ret, "java/lang/Object");
+				}
 			} else {
-				ret = arrayClasses.putIfAbsent(id, cls);
-				if (ret == null) ret = cls;
-			}
+				if ((ret = createClassPathClass(id)) != null) return ret;
 
-			if (ret == cls) { // cls was added
-				ClassEnvironment.addSuperClass(ret, "java/lang/Object");
+				ret = env.getMissingCls(id, createUnknown);
 			}
-		} else {
-			if ((ret = classes.get(id)) != null) return ret;
-			if ((ret = env.getSharedClsById(id)) != null) return ret;
-			if ((ret = createClassPathClass(id)) != null) return ret;
-
-			ret = env.getMissingCls(id, createUnknown);
 		}
 
 		return ret;
@@ -530,11 +616,11 @@ public class ClassFeatureExtractor implements LocalClassEnv {
 		Path file = classPathIndex.get(name);
 		if (file == null) return null;
 
-		ClassNode cn = ClassEnvironment.readClass(file);
+		ClassNode cn = env.loadClass(file, ParseDepth.FULL);
 		ClassInstance cls = new ClassInstance(ClassInstance.getId(cn.name), file.toUri(), this, cn);
 		if (!cls.getId().equals(id)) throw new RuntimeException("mismatched cls id "+id+" for "+file+", expected "+name);
 
-		ClassInstance prev = classes.putIfAbsent(cls.getId(), cls);
+		ClassInstance prev = (concurrentClasses != null ? concurrentClasses : classes).putIfAbsent(cls.getId(), cls);
 		assert prev == null;
 
 		if (initStep > 0) ClassEnvironment.processClassA(cls, null);
@@ -550,13 +636,16 @@ public class ClassFeatureExtractor implements LocalClassEnv {
 		return env;
 	}
 
+	private static final int completeInitStep = 6; // initStep after processHierarchy
+
 	final ClassEnvironment env;
 	private final List<InputFile> inputFiles = new ArrayList<>();
 	private final List<InputFile> cpFiles = new ArrayList<>();
 	private final Map<String, Path> classPathIndex = new HashMap<>();
 	private final Map<String, ClassInstance> classes = new HashMap<>();
 	private final Map<String, ClassInstance> roClasses = Collections.unmodifiableMap(classes);
-	private final Map<String, ClassInstance> arrayClasses = new HashMap<>();
+	private final Map<String, ClassInstance> arrayClasses = new ConcurrentHashMap<>();
+	private volatile Map<String, ClassInstance> concurrentClasses; // class path classes loaded during a parallel pass
 
 	private int initStep;
 }
@@ -0,0 +1,98 @@
+package matcher.type;
+
+import java.util.Set;
+
+import matcher.Util;
+import matcher.classifier.NumericConstants;
+
+/**
+ * Summary of the class features aggregated over its members, used by the class classifiers.
+ *
+ * <p>The features only depend on the extracted class structure, not on the match state, and are computed once
+ * after extraction instead of for every ranked pair. The returned sets must not be modified.
+ */
+public final class ClassFeatures {
+	ClassFeatures(ClassInstance cls) {
+		for (MethodInstance method : cls.getMethods()) {
+			outRefs.addAll(method.getClassRefs());
+			methodOutRefs.addAll(method.getRefsOut());
+			methodInRefs.addAll(method.getRefsIn());
+			fieldReadRefs.addAll(method.getFieldReadRefs());
+			fieldWriteRefs.addAll(method.getFieldWriteRefs());
+		}
+
+		for (FieldInstance field : cls.getFields()) {
+			outRefs.add(field.getType());
+		}
+
+		for (MethodInstance method : cls.getMethodTypeRefs()) {
+			inRefs.add(method.getCls());
+		}
+
+		for (FieldInstance field : cls.getFieldTypeRefs()) {
+			inRefs.add(field.getCls());
+		}
+
+		int depth = 0;
+
+		for (ClassInstance c = cls.getSuperClass(); c != null; c = c.getSuperClass()) {
+			depth++;
+		}
+
+		hierarchyDepth = depth;
+		numericConstants = NumericConstants.create(cls);
+	}
+
+	/**
+	 * Get the classes referenced by the class' methods and used as field types.
+	 */
+	public Set<ClassInstance> getOutRefs() {
+		return outRefs;
+	}
+
+	/**
+	 * Get the classes declaring members that use the class as a type.
+	 */
+	public Set<ClassInstance> getInRefs() {
+		return inRefs;
+	}
+
+	public Set<MethodInstance> getMethodOutRefs() {
+		return methodOutRefs;
+	}
+
+	public Set<MethodInstance> getMethodInRefs() {
+		return methodInRefs;
+	}
+
+	public Set<FieldInstance> getFieldReadRefs() {
+		return fieldReadRefs;
+	}
+
+	public Set<FieldInstance> getFieldWriteRefs() {
+		return fieldWriteRefs;
+	}
+
+	/**
+	 * Get the number of super classes above the class.
+	 */
+	public int getHierarchyDepth() {
+		return hierarchyDepth;
+	}
+
+	/**
+	 * Get the numeric constants of all methods and field initializers.
+	 */
+	public NumericConstants getNumericConstants() {
+		return numericConstants;
+	}
+
+	private final Set<ClassInstance> outRefs = Util.newIdentityHashSet();
+	private final Set<ClassInstance> inRefs = Util.newIdentityHashSet();
+	private final Set<MethodInstance> methodOutRefs = Util.newIdentityHashSet();
+	private final Set<MethodInstance> methodInRefs = Util.newIdentityHashSet();
+	private final Set<FieldInstance> fieldReadRefs = Util.newIdentityHashSet();
+	private final Set<FieldInstance> fieldWriteRefs = Util.newIdentityHashSet();
+	private final int hierarchyDepth;
+	private final NumericConstants numericConstants;
+}
@@ -0,0 +1,178 @@
+package matcher.type;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.objectweb.asm.tree.ClassNode;
+
+/**
+ * Reads all class files of an input jar or class directory.
+ *
+ * <p>Jar entries are listed from the zip central directory. The class files get inflated and parsed on the common
+ * pool, at most maxPendingPerThread per thread ahead of the consumer. The consumer receives the classes
+ * sequentially in entry order, sorted by path for directories, along with the raw class file bytes.
+ */
+final class ClassFileReader {
+	static void read(Path input, ClassHandler handler) {
+		if (Files.isDirectory(input)) {
+			readDirectory(input, handler);
+		} else {
+			readArchive(input, handler);
+		}
+	}
+
+	private static void readArchive(Path archive, ClassHandler handler) {
+		try (ZipFile zip = new ZipFile(archive.toFile())) {
+			List<ZipEntry> entries = new ArrayList<>();
+
+			for (Enumeration<? extends ZipEntry> it = zip.entries(); it.hasMoreElements(); ) {
+				ZipEntry entry = it.nextElement();
+
+				if (!entry.isDirectory() && entry.getName().endsWith(".class")) {
+					entries.add(entry);
+				}
+			}
+
+			String archiveUri = archive.toUri().toString();
+
+			read(entries, entry -> {
+				try (InputStream is = zip.getInputStream(entry)) {
+					return readFully(is, entry.getSize());
+				}
+			}, entry -> getUri(archiveUri, entry.getName()), handler);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static URI getUri(String archiveUri, String entryName) {
+		try {
+			return new URI("jar", archiveUri+"!/"+entryName, null);
+		} catch (URISyntaxException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static byte[] readFully(InputStream is, long size) throws IOException {
+		byte[] ret = new byte[size >= 0 && size < Integer.MAX_VALUE ? (int) size : 8192];
+		int len = 0;
+		int read;
+
+		while ((read = is.read(ret, len, ret.length - len)) >= 0) {
+			len += read;
+
+			if (len == ret.length) {
+				int next = is.read();
+				if (next < 0) return ret; // exact size
+
+				ret = Arrays.copyOf(ret, ret.length * 2);
+				ret[len++] = (byte) next;
+			}
+		}
+
+		return len == ret.length ? ret : Arrays.copyOf(ret, len);
+	}
+
+	private static void readDirectory(Path dir, ClassHandler handler) {
+		read(getClassFiles(dir), Files::readAllBytes, Path::toUri, handler);
+	}
+
+	/**
+	 * Get the class files in a directory and its sub directories, sorted by path.
+	 */
+	static List<Path> getClassFiles(Path dir) {
+		try (Stream<Path> stream = Files.walk(dir)) {
+			return stream
+					.filter(file -> file.getFileName().toString().endsWith(".class") && Files.isRegularFile(file))
+					.sorted()
+					.collect(Collectors.toList());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static <T> void read(List<T> entries, EntryReader<T> reader, UriProvider<T> uriProvider, ClassHandler handler) {
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		int maxPending = Math.max(2, pool.getParallelism()) * maxPendingPerThread;
+		Queue<CompletableFuture<ReadClass>> pending = new ArrayDeque<>(maxPending);
+		int next = 0;
+
+		try {
+			for (T entry : entries) {
+				while (next < entries.size() && pending.size() < maxPending) {
+					T queued = entries.get(next++);
+
+					pending.add(CompletableFuture.supplyAsync(() -> {
+						try {
+							byte[] data = reader.read(queued);
+
+							return new ReadClass(data, ClassEnvironment.readClass(data));
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					}, pool));
+				}
+
+				ReadClass cls;
+
+				try {
+					cls = pending.poll().join();
+				} catch (CompletionException e) {
+					if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+					if (e.getCause() instanceof Error) throw (Error) e.getCause();
+
+					throw e;
+				}
+
+				handler.accept(uriProvider.getUri(entry), cls.node, cls.data);
+			}
+		} finally {
+			// let the remaining readers finish before the caller closes the archive
+			for (CompletableFuture<ReadClass> future : pending) {
+				future.handle((cls, exc) -> null).join();
+			}
+		}
+	}
+
+	interface ClassHandler {
+		void accept(URI uri, ClassNode cn, byte[] data);
+	}
+
+	private static final class ReadClass {
+		ReadClass(byte[] data, ClassNode node) {
+			this.data = data;
+			this.node = node;
+		}
+
+		final byte[] data;
+		final ClassNode node;
+	}
+
+	private interface EntryReader<T> {
+		byte[] read(T entry) throws IOException;
+	}
+
+	private interface UriProvider<T> {
+		URI getUri(T entry);
+	}
+
+	private static final int maxPendingPerThread = 4;
+}
@@ -6,13 +6,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Deque;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
@@ -672,8 +672,38 @@ public class ClassInstance implements IMatchable<ClassInstance> {
 		return fieldTypeRefs;
 	}
 
+	/**
+	 * Get the string constants used by the class' code and field initializers, resolved from the string ids.
+	 */
 	public Set<String> getStrings() {
-		return strings;
+		StringDictionary dictionary = env.getGlobal().getStringDictionary();
+		Set<String> ret = new HashSet<>(stringIds.length * 2);
+
+		for (int id : stringIds) {
+			ret.add(dictionary.get(id));
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Get the sorted ids of the class' string constants in the {@link StringDictionary}.
+	 */
+	public int[] getStringIds() {
+		return stringIds;
+	}
+
+	/**
+	 * Get the member derived feature summary, computed after extraction or on first use.
+	 */
+	public ClassFeatures getFeatures() {
+		ClassFeatures ret = features;
+
+		if (ret == null) {
+			features = ret = new ClassFeatures(this);
+		}
+
+		return ret;
 	}
 
 	public boolean isShared() {
@@ -899,6 +929,8 @@ public class ClassInstance implements IMatchable<ClassInstance> {
 		ClassNode cn = getMergedAsmNode();
 		if (cn == null) throw new IllegalArgumentException("cls without asm node: "+this);
 
+		env.getGlobal().completeAsmNodes(this);
+
 		synchronized (Util.asmNodeSync) {
 			if (mapped || tmpNamed) {
 				AsmClassRemapper.process(cn, new AsmRemapper(env, mapped, tmpNamed, unmatchedTmp), visitor);
@@ -968,25 +1000,26 @@ public class ClassInstance implements IMatchable<ClassInstance> {
 	final ClassInstance elementClass; // TODO: improve handling of array classes (references etc.)
 	private ClassSignature signature;
 
-	MethodInstance[] methods = noMethods;
-	FieldInstance[] fields = noFields;
-	final Map<String, MethodInstance> methodIdx = new HashMap<>();
-	final Map<String, FieldInstance> fieldIdx = new HashMap<>();
+	volatile MethodInstance[] methods = noMethods;
+	volatile FieldInstance[] fields = noFields;
+	final Map<String, MethodInstance> methodIdx = new ConcurrentHashMap<>();
+	final Map<String, FieldInstance> fieldIdx = new ConcurrentHashMap<>();
 
 	private ClassInstance[] arrays = noArrays;
 
 	ClassInstance outerClass;
-	final Set<ClassInstance> innerClasses = Util.newIdentityHashSet();
+	final Set<ClassInstance> innerClasses = Util.newConcurrentIdentityHashSet();
 
 	ClassInstance superClass;
-	final Set<ClassInstance> childClasses = Util.newIdentityHashSet();
+	final Set<ClassInstance> childClasses = Util.newConcurrentIdentityHashSet();
 	final Set<ClassInstance> interfaces = Util.newIdentityHashSet();
-	final Set<ClassInstance> implementers = Util.newIdentityHashSet();
+	final Set<ClassInstance> implementers = Util.newConcurrentIdentityHashSet();
 
-	final Set<MethodInstance> methodTypeRefs = Util.newIdentityHashSet();
-	final Set<FieldInstance> fieldTypeRefs = Util.newIdentityHashSet();
+	final Set<MethodInstance> methodTypeRefs = Util.newConcurrentIdentityHashSet();
+	final Set<FieldInstance> fieldTypeRefs = Util.newConcurrentIdentityHashSet();
 
-	final Set<String> strings = new HashSet<>();
+	int[] stringIds = StringDictionary.noIds;
+	volatile ClassFeatures features;
 
 	private String tmpName;
 	private int uid = -1;
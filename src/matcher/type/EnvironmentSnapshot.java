@@ -0,0 +1,795 @@
+package matcher.type;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.MethodNode;
+
+import matcher.Util;
+import matcher.classifier.CodeSketch;
+import matcher.classifier.NumericConstants;
+import matcher.config.ProjectConfig;
+import matcher.type.Signature.ClassSignature;
+
+/**
+ * Binary snapshot of an initialized class environment, restored by ClassEnvironment.init instead of extracting the
+ * inputs again.
+ *
+ * <p>A snapshot is keyed by the format version, the java runtime, the project settings, the class path parse depth
+ * and the paths, sizes and SHA-256 hashes of all inputs and class path entries. It gets written to a temporary file
+ * that is moved into place afterwards and is only ever mapped read-only, so several processes can share a snapshot
+ * directory.
+ *
+ * <p>The raw class files are stored along with the classes, members, hierarchy, references, hierarchy groups, string
+ * ids, tmp names and field initializers, partially parsed class path classes as class files without the skipped
+ * content. Restoring parses the class files in parallel and links the stored structure, only code sketches, numeric
+ * constants and class features get recomputed.
+ */
+final class EnvironmentSnapshot {
+	static byte[] getKey(ProjectConfig config, ClassEnvironment env) {
+		try {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(os);
+
+			out.writeInt(version);
+			out.writeUTF(System.getProperty("java.version"));
+			out.writeUTF(System.getProperty("java.home"));
+			out.writeBoolean(config.hasInputsBeforeClassPath());
+			out.writeUTF(env.getSharedClassPathParseDepth().name());
+			out.writeUTF(config.getNonObfuscatedClassPatternA());
+			out.writeUTF(config.getNonObfuscatedClassPatternB());
+			out.writeUTF(config.getNonObfuscatedMemberPatternA());
+			out.writeUTF(config.getNonObfuscatedMemberPatternB());
+			writeKeyFiles(config.getPathsA(), env, out);
+			writeKeyFiles(config.getPathsB(), env, out);
+			writeKeyFiles(config.getClassPathA(), env, out);
+			writeKeyFiles(config.getClassPathB(), env, out);
+			writeKeyFiles(config.getSharedClassPath(), env, out);
+
+			return MessageDigest.getInstance("SHA-256").digest(os.toByteArray());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void writeKeyFiles(List<Path> paths, ClassEnvironment env, DataOutputStream out) throws IOException {
+		out.writeInt(paths.size());
+
+		for (Path path : paths) {
+			InputFile file = env.getInputFile(path);
+
+			out.writeUTF(path.toAbsolutePath().normalize().toString()); // the class uris refer to it
+			out.writeLong(file.size);
+			out.write(file.sha256);
+		}
+	}
+
+	static String getFileName(byte[] key) {
+		StringBuilder ret = new StringBuilder(key.length * 2 + 9);
+
+		for (byte b : key) {
+			ret.append(Character.forDigit((b >>> 4) & 0xf, 16));
+			ret.append(Character.forDigit(b & 0xf, 16));
+		}
+
+		return ret.append(".snapshot").toString();
+	}
+
+	static void write(Path file, byte[] key, ClassEnvironment env, ClassFeatureExtractor extractorA, ClassFeatureExtractor extractorB) throws IOException {
+		EnvironmentSnapshot snapshot = new EnvironmentSnapshot();
+		snapshot.index(env, extractorA, extractorB);
+
+		Path dir = file.toAbsolutePath().getParent();
+		Files.createDirectories(dir);
+		Path tmpFile = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+
+		try {
+			int stringsOffset;
+
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+				out.writeInt(magic);
+				out.writeInt(version);
+				out.write(key);
+				out.writeInt(0); // strings offset, patched below
+				assert out.size() == bodyOffset;
+
+				snapshot.writeBody(env, out);
+				stringsOffset = out.size();
+				if (stringsOffset < 0) throw new IOException("snapshot too large");
+
+				snapshot.writeStrings(out);
+				out.writeInt(magic);
+			}
+
+			try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.WRITE)) {
+				ByteBuffer buffer = ByteBuffer.allocate(4).putInt(0, stringsOffset);
+				channel.write(buffer, bodyOffset - 4);
+			}
+
+			try {
+				Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmpFile);
+		}
+	}
+
+	/**
+	 * Restore the environment from a snapshot, the environment has to be empty.
+	 *
+	 * <p>Throws an exception if the snapshot is invalid or doesn't match key, the environment needs a reset then.
+	 */
+	static void read(Path file, byte[] key, ClassEnvironment env, ClassFeatureExtractor extractorA, ClassFeatureExtractor extractorB) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) throw new IOException("snapshot too large");
+
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != magic || buffer.getInt() != version) throw new IOException("unknown snapshot format");
+
+			byte[] storedKey = new byte[key.length];
+			buffer.get(storedKey);
+			if (!Arrays.equals(storedKey, key)) throw new IOException("mismatched snapshot key");
+
+			int stringsOffset = buffer.getInt();
+			EnvironmentSnapshot snapshot = new EnvironmentSnapshot();
+
+			buffer.position(stringsOffset);
+			snapshot.readStrings(buffer);
+			if (buffer.getInt() != magic) throw new IOException("truncated snapshot");
+
+			buffer.position(bodyOffset);
+			snapshot.readBody(buffer, env, extractorA, extractorB);
+			if (buffer.position() != stringsOffset) throw new IOException("invalid snapshot body size");
+		}
+	}
+
+	private EnvironmentSnapshot() { }
+
+	private void index(ClassEnvironment env, ClassFeatureExtractor extractorA, ClassFeatureExtractor extractorB) {
+		int sharedArrayCount = 0;
+
+		for (ClassInstance cls : env.getSharedClasses()) {
+			if (cls.isArray()) sharedArrayCount++;
+		}
+
+		indexClasses(env.getSharedClasses(), sharedArrayCount, envShared);
+		indexClasses(extractorA.getClasses(), extractorA.getArrayClasses().size(), envA);
+		indexClasses(extractorB.getClasses(), extractorB.getArrayClasses().size(), envB);
+
+		for (ClassInstance cls : classes) {
+			for (MethodInstance method : cls.methods) {
+				methodIndex.put(method, methods.size());
+				methods.add(method);
+			}
+
+			for (FieldInstance field : cls.fields) {
+				fieldIndex.put(field, fields.size());
+				fields.add(field);
+			}
+		}
+
+		for (MethodInstance method : methods) {
+			Set<MethodInstance> group = method.hierarchyMembers;
+
+			if (group != null && group.getClass() != singletonClass && !groupIndex.containsKey(group)) {
+				groupIndex.put(group, groups.size());
+				groups.add(group);
+			}
+		}
+	}
+
+	/**
+	 * Index the non-array classes in iteration order, followed by their arrays in creation order.
+	 */
+	private void indexClasses(Collection<ClassInstance> envClasses, int arrayCount, int env) {
+		int start = classes.size();
+
+		for (ClassInstance cls : envClasses) {
+			if (!cls.isArray()) indexClass(cls, env);
+		}
+
+		int end = classes.size();
+		int registeredArrays = 0;
+
+		for (int i = start; i < end; i++) {
+			ClassInstance cls = classes.get(i);
+
+			for (ClassInstance array : cls.getArrays()) {
+				indexClass(array, env);
+
+				if (cls.getEnv().getLocalClsById(array.id) == array) {
+					registeredArrays++;
+				} else {
+					detachedArrays.add(array);
+				}
+			}
+		}
+
+		if (registeredArrays != arrayCount) throw new IllegalStateException("array classes without indexed element class");
+	}
+
+	private void indexClass(ClassInstance cls, int env) {
+		if (classIndex.putIfAbsent(cls, classes.size()) != null) throw new IllegalStateException("duplicate class "+cls);
+
+		classes.add(cls);
+		classEnvs.add(env);
+	}
+
+	private void writeBody(ClassEnvironment env, DataOutputStream out) throws IOException {
+		StringDictionary dictionary = env.getStringDictionary();
+		int stringCount = dictionary.size();
+		out.writeInt(stringCount);
+
+		for (int i = 0; i < stringCount; i++) {
+			out.writeInt(getStringIndex(dictionary.get(i)));
+		}
+
+		out.writeInt(classes.size());
+
+		for (int i = 0; i < classes.size(); i++) {
+			ClassInstance cls = classes.get(i);
+			int kind = getKind(cls);
+
+			out.writeByte(classEnvs.get(i));
+			out.writeByte(kind);
+			out.writeInt(getStringIndex(cls.id));
+
+			if (kind == kindArray || kind == kindDetachedArray) {
+				out.writeInt(getIndex(cls.getElementClass(), classIndex));
+			} else if (kind != kindUnknown) {
+				out.writeInt(getStringIndex(cls.uri != null ? cls.uri.toString() : null));
+				out.writeBoolean(cls.nameObfuscated);
+				out.writeInt(cls.getAsmNodes().length);
+
+				for (ClassNode cn : cls.getAsmNodes()) {
+					byte[] data = env.getClassBytes(cn);
+					if (data == null) throw new IllegalStateException("missing class file data for "+cls);
+
+					out.writeBoolean(env.isPartialNode(cn));
+					out.writeInt(data.length);
+					out.write(data);
+				}
+			}
+		}
+
+		for (ClassInstance cls : classes) {
+			out.writeInt(getIndex(cls.getSuperClass(), classIndex));
+			out.writeInt(getIndex(cls.getOuterClass(), classIndex));
+			writeIndices(cls.interfaces, classIndex, out);
+			out.writeInt(getStringIndex(cls.isArray() ? null : cls.getTmpName(true)));
+			writeInts(cls.stringIds, out);
+
+			out.writeInt(cls.methods.length);
+
+			for (MethodInstance method : cls.methods) {
+				writeMember(method, method.asmNode != null ? getNodeIndex(cls, node -> method.position < node.methods.size() && node.methods.get(method.position) == method.asmNode) : -1, out);
+			}
+
+			out.writeInt(cls.fields.length);
+
+			for (FieldInstance field : cls.fields) {
+				writeMember(field, field.asmNode != null ? getNodeIndex(cls, node -> field.position < node.fields.size() && node.fields.get(field.position) == field.asmNode) : -1, out);
+			}
+		}
+
+		out.writeInt(groups.size());
+
+		for (Set<MethodInstance> group : groups) {
+			writeIndices(group, methodIndex, out);
+		}
+
+		for (MethodInstance method : methods) {
+			writeIndices(method.refsOut, methodIndex, out);
+			writeIndices(method.fieldReadRefs, fieldIndex, out);
+			writeIndices(method.fieldWriteRefs, fieldIndex, out);
+			writeIndices(method.classRefs, classIndex, out);
+			writeIndices(method.getParents(), methodIndex, out);
+			out.writeInt(getGroupIndex(method.hierarchyMembers));
+			writeInts(method.stringIds, out);
+		}
+
+		for (FieldInstance field : fields) {
+			writeIndices(field.getParents(), fieldIndex, out);
+			out.writeInt(getGroupIndex(field.hierarchyMembers));
+
+			if (field.initializer == null) {
+				out.writeInt(-1);
+			} else {
+				if (field.writeRefs.size() != 1) throw new IllegalStateException("initializer without unique writer for "+field);
+
+				InsnList il = field.writeRefs.iterator().next().asmNode.instructions;
+				out.writeInt(field.initializer.size());
+
+				for (AbstractInsnNode ain : field.initializer) {
+					out.writeInt(il.indexOf(ain));
+				}
+			}
+		}
+	}
+
+	private int getKind(ClassInstance cls) {
+		if (cls.isArray()) {
+			return detachedArrays.contains(cls) ? kindDetachedArray : kindArray;
+		} else if (cls.getAsmNodes() == null) {
+			if (!cls.isShared()) throw new IllegalStateException("local unknown class "+cls);
+
+			return kindUnknown;
+		} else {
+			return cls.isInput() ? kindInput : kindKnown;
+		}
+	}
+
+	/**
+	 * Get the index of the class node declaring a member.
+	 */
+	private static int getNodeIndex(ClassInstance cls, Predicate<ClassNode> declaresMember) {
+		ClassNode[] nodes = cls.getAsmNodes();
+
+		for (int i = 0; i < nodes.length; i++) {
+			if (declaresMember.test(nodes[i])) return i;
+		}
+
+		throw new IllegalStateException("member node not in "+cls);
+	}
+
+	private void writeMember(MemberInstance<?> member, int nodeIndex, DataOutputStream out) throws IOException {
+		out.writeByte((nodeIndex >= 0 ? flagReal : 0) | (member.isStatic ? flagStatic : 0) | (member.nameObfuscated ? flagNameObfuscated : 0));
+		out.writeInt(getStringIndex(member.origName));
+		out.writeInt(getStringIndex(member.getDesc()));
+
+		if (nodeIndex >= 0) {
+			out.writeInt(nodeIndex);
+			out.writeInt(member.position);
+		}
+
+		out.writeInt(getStringIndex(member.getTmpName(true)));
+	}
+
+	private int getGroupIndex(Set<?> group) {
+		if (group == null) {
+			return groupNone;
+		} else if (group.getClass() == singletonClass) {
+			return groupSingleton;
+		} else {
+			Integer ret = groupIndex.get(group);
+			if (ret == null) throw new IllegalStateException("unindexed hierarchy group");
+
+			return ret;
+		}
+	}
+
+	private int getStringIndex(String str) {
+		if (str == null) return -1;
+
+		Integer ret = stringIndex.get(str);
+
+		if (ret == null) {
+			ret = stringIndex.size();
+			stringIndex.put(str, ret);
+		}
+
+		return ret;
+	}
+
+	private static <T> int getIndex(T value, Map<T, Integer> index) {
+		if (value == null) return -1;
+
+		Integer ret = index.get(value);
+		if (ret == null) throw new IllegalStateException("unindexed reference to "+value);
+
+		return ret;
+	}
+
+	private static <T> void writeIndices(Collection<T> values, Map<T, Integer> index, DataOutputStream out) throws IOException {
+		out.writeInt(values.size());
+
+		for (T value : values) {
+			out.writeInt(getIndex(value, index));
+		}
+	}
+
+	private static void writeInts(int[] values, DataOutputStream out) throws IOException {
+		out.writeInt(values.length);
+
+		for (int value : values) {
+			out.writeInt(value);
+		}
+	}
+
+	private void writeStrings(DataOutputStream out) throws IOException {
+		out.writeInt(stringIndex.size());
+
+		for (String str : stringIndex.keySet()) {
+			out.writeInt(str.length());
+			out.writeChars(str); // utf-16 to keep unpaired surrogates intact
+		}
+	}
+
+	private void readStrings(ByteBuffer buffer) {
+		strings = new String[buffer.getInt()];
+
+		for (int i = 0; i < strings.length; i++) {
+			char[] chars = new char[buffer.getInt()];
+			buffer.asCharBuffer().get(chars);
+			buffer.position(buffer.position() + chars.length * 2);
+			strings[i] = new String(chars);
+		}
+	}
+
+	private void readBody(ByteBuffer buffer, ClassEnvironment env, ClassFeatureExtractor extractorA, ClassFeatureExtractor extractorB) throws IOException {
+		StringDictionary dictionary = env.getStringDictionary();
+		int stringCount = buffer.getInt();
+
+		for (int i = 0; i < stringCount; i++) {
+			if (dictionary.getId(readString(buffer)) != i) throw new IllegalStateException("string dictionary not empty");
+		}
+
+		// class table, the class files get parsed in parallel before creating the classes
+
+		int classCount = buffer.getInt();
+		int[] envIds = new int[classCount];
+		int[] kinds = new int[classCount];
+		String[] ids = new String[classCount];
+		int[] elementClasses = new int[classCount];
+		String[] uris = new String[classCount];
+		boolean[] nameObfuscated = new boolean[classCount];
+		int[] nodeStarts = new int[classCount + 1];
+		List<int[]> nodeData = new ArrayList<>(); // offset, length
+		BitSet partialNodes = new BitSet();
+
+		for (int i = 0; i < classCount; i++) {
+			envIds[i] = buffer.get();
+			kinds[i] = buffer.get();
+			ids[i] = readString(buffer);
+			nodeStarts[i] = nodeData.size();
+
+			if (envIds[i] < envShared || envIds[i] > envB) throw new IOException("invalid class env "+envIds[i]);
+			if (kinds[i] < kindUnknown || kinds[i] > kindDetachedArray) throw new IOException("invalid class kind "+kinds[i]);
+
+			if (kinds[i] == kindArray || kinds[i] == kindDetachedArray) {
+				elementClasses[i] = buffer.getInt();
+			} else if (kinds[i] != kindUnknown) {
+				uris[i] = readString(buffer);
+				nameObfuscated[i] = buffer.get() != 0;
+				int nodeCount = buffer.getInt();
+
+				for (int j = 0; j < nodeCount; j++) {
+					if (buffer.get() != 0) partialNodes.set(nodeData.size());
+					int length = buffer.getInt();
+					nodeData.add(new int[] { buffer.position(), length });
+					buffer.position(buffer.position() + length);
+				}
+			}
+		}
+
+		nodeStarts[classCount] = nodeData.size();
+		ClassNode[] nodes = new ClassNode[nodeData.size()];
+
+		IntStream.range(0, nodes.length).parallel().forEach(i -> {
+			ByteBuffer src = buffer.duplicate();
+			byte[] data = new byte[nodeData.get(i)[1]];
+			src.position(nodeData.get(i)[0]);
+			src.get(data);
+			nodes[i] = ClassEnvironment.readClass(data);
+		});
+
+		for (int i = partialNodes.nextSetBit(0); i >= 0; i = partialNodes.nextSetBit(i + 1)) {
+			env.addPartialNode(nodes[i]);
+		}
+
+		ClassEnv[] envs = { env, extractorA, extractorB };
+		classes.ensureCapacity(classCount);
+
+		for (int i = 0; i < classCount; i++) {
+			ClassEnv owner = envs[envIds[i]];
+			ClassInstance cls;
+
+			switch (kinds[i]) {
+			case kindUnknown:
+				cls = new ClassInstance(ids[i], owner);
+				break;
+			case kindKnown:
+				if (nodeStarts[i + 1] - nodeStarts[i] != 1) throw new IOException("invalid node count for "+ids[i]);
+				cls = new ClassInstance(ids[i], uris[i] != null ? URI.create(uris[i]) : null, owner, nodes[nodeStarts[i]]);
+				break;
+			case kindInput:
+				cls = new ClassInstance(ids[i], uris[i] != null ? URI.create(uris[i]) : null, owner, nodes[nodeStarts[i]], nameObfuscated[i]);
+
+				for (int j = nodeStarts[i] + 1; j < nodeStarts[i + 1]; j++) {
+					cls.addAsmNode(nodes[j]);
+				}
+
+				break;
+			case kindArray:
+			case kindDetachedArray:
+				cls = new ClassInstance(ids[i], classes.get(elementClasses[i]));
+				break;
+			default:
+				throw new IllegalStateException();
+			}
+
+			if (kinds[i] != kindDetachedArray) {
+				if (owner == env) {
+					if (env.addSharedCls(cls) != cls) throw new IllegalStateException("duplicate class "+cls);
+				} else {
+					((ClassFeatureExtractor) owner).addClass(cls);
+				}
+			}
+
+			classes.add(cls);
+		}
+
+		// class relations and members
+
+		for (ClassInstance cls : classes) {
+			ClassInstance superClass = readClass(buffer);
+
+			if (superClass != null) {
+				cls.superClass = superClass;
+				superClass.childClasses.add(cls);
+			}
+
+			ClassInstance outerClass = readClass(buffer);
+
+			if (outerClass != null) {
+				cls.outerClass = outerClass;
+				outerClass.innerClasses.add(cls);
+			}
+
+			for (int i = buffer.getInt(); i > 0; i--) {
+				ClassInstance iface = readClass(buffer);
+				if (cls.interfaces.add(iface)) iface.implementers.add(cls);
+			}
+
+			String tmpName = readString(buffer);
+			if (tmpName != null) cls.setTmpName(tmpName);
+
+			cls.stringIds = readInts(buffer);
+
+			if (cls.isInput()) {
+				for (ClassNode cn : cls.getAsmNodes()) {
+					if (cn.signature != null) {
+						cls.setSignature(ClassSignature.parse(cn.signature, cls.getEnv()));
+						break;
+					}
+				}
+			}
+
+			Pattern memberPattern = cls.getEnv() == extractorA ? env.getNonObfuscatedMemberPatternA() : env.getNonObfuscatedMemberPatternB();
+
+			for (int i = buffer.getInt(); i > 0; i--) {
+				int flags = buffer.get();
+				String name = readString(buffer);
+				String desc = readString(buffer);
+				MethodInstance method;
+
+				if ((flags & flagReal) != 0) {
+					ClassNode cn = cls.getAsmNodes()[buffer.getInt()];
+					int position = buffer.getInt();
+					MethodNode mn = cn.methods.get(position);
+
+					method = new MethodInstance(cls, name, desc, mn, ClassEnvironment.isNameObfuscated(cls, cn, mn, memberPattern), position);
+				} else {
+					method = new MethodInstance(cls, name, desc, (flags & flagStatic) != 0);
+				}
+
+				method.nameObfuscated = (flags & flagNameObfuscated) != 0;
+				tmpName = readString(buffer);
+				if (tmpName != null) method.setTmpName(tmpName);
+
+				cls.addMethod(method);
+				methods.add(method);
+			}
+
+			for (int i = buffer.getInt(); i > 0; i--) {
+				int flags = buffer.get();
+				String name = readString(buffer);
+				String desc = readString(buffer);
+				FieldInstance field;
+
+				if ((flags & flagReal) != 0) {
+					ClassNode cn = cls.getAsmNodes()[buffer.getInt()];
+					int position = buffer.getInt();
+					FieldNode fn = cn.fields.get(position);
+
+					field = new FieldInstance(cls, name, desc, fn, ClassEnvironment.isNameObfuscated(cls, cn, fn, memberPattern), position);
+				} else {
+					field = new FieldInstance(cls, name, desc, (flags & flagStatic) != 0);
+				}
+
+				field.nameObfuscated = (flags & flagNameObfuscated) != 0;
+				tmpName = readString(buffer);
+				if (tmpName != null) field.setTmpName(tmpName);
+
+				cls.addField(field);
+				fields.add(field);
+			}
+		}
+
+		// member relations
+
+		for (int i = buffer.getInt(); i > 0; i--) {
+			Set<MethodInstance> group = Util.newIdentityHashSet();
+
+			for (int j = buffer.getInt(); j > 0; j--) {
+				group.add(methods.get(buffer.getInt()));
+			}
+
+			groups.add(group);
+		}
+
+		for (MethodInstance method : methods) {
+			for (int i = buffer.getInt(); i > 0; i--) {
+				MethodInstance dst = methods.get(buffer.getInt());
+				method.refsOut.add(dst);
+				dst.refsIn.add(method);
+			}
+
+			for (int i = buffer.getInt(); i > 0; i--) {
+				FieldInstance dst = fields.get(buffer.getInt());
+				method.fieldReadRefs.add(dst);
+				dst.readRefs.add(method);
+			}
+
+			for (int i = buffer.getInt(); i > 0; i--) {
+				FieldInstance dst = fields.get(buffer.getInt());
+				method.fieldWriteRefs.add(dst);
+				dst.writeRefs.add(method);
+			}
+
+			for (int i = buffer.getInt(); i > 0; i--) {
+				ClassInstance dst = readClass(buffer);
+				method.classRefs.add(dst);
+				dst.methodTypeRefs.add(method);
+			}
+
+			for (int i = buffer.getInt(); i > 0; i--) {
+				MethodInstance parent = methods.get(buffer.getInt());
+				method.addParent(parent);
+				parent.addChild(method);
+			}
+
+			int group = buffer.getInt();
+			method.hierarchyMembers = group == groupNone ? null : group == groupSingleton ? Collections.singleton(method) : groups.get(group);
+			method.stringIds = readInts(buffer);
+		}
+
+		for (FieldInstance field : fields) {
+			for (int i = buffer.getInt(); i > 0; i--) {
+				FieldInstance parent = fields.get(buffer.getInt());
+				field.addParent(parent);
+				parent.addChild(field);
+			}
+
+			int group = buffer.getInt();
+			if (group >= 0) throw new IOException("invalid field hierarchy");
+			field.hierarchyMembers = group == groupNone ? null : Collections.singleton(field);
+
+			int initializerSize = buffer.getInt();
+
+			if (initializerSize >= 0) {
+				InsnList il = field.writeRefs.iterator().next().asmNode.instructions;
+				List<AbstractInsnNode> initializer = new ArrayList<>(initializerSize);
+
+				for (int i = 0; i < initializerSize; i++) {
+					initializer.add(il.get(buffer.getInt()));
+				}
+
+				field.initializer = initializer;
+			}
+		}
+
+		// derived per class data, computed the same way as the extraction passes do
+
+		classes.parallelStream().forEach(cls -> {
+			if (!cls.isInput()) return;
+
+			for (MethodInstance method : cls.methods) {
+				if (method.asmNode != null) {
+					method.codeSketch = CodeSketch.create(method.asmNode.instructions);
+					method.numericConstants = NumericConstants.create(method.asmNode);
+				}
+			}
+		});
+
+		classes.parallelStream().forEach(cls -> {
+			if (cls.getUri() == null || !cls.isInput()) return;
+
+			cls.features = new ClassFeatures(cls);
+		});
+	}
+
+	private String readString(ByteBuffer buffer) {
+		int idx = buffer.getInt();
+
+		return idx < 0 ? null : strings[idx];
+	}
+
+	private ClassInstance readClass(ByteBuffer buffer) {
+		int idx = buffer.getInt();
+
+		return idx < 0 ? null : classes.get(idx);
+	}
+
+	private static int[] readInts(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length == 0) return StringDictionary.noIds;
+
+		int[] ret = new int[length];
+		buffer.asIntBuffer().get(ret);
+		buffer.position(buffer.position() + length * 4);
+
+		return ret;
+	}
+
+	private static final int magic = 0x4d534e50;
+	private static final int version = 2;
+	private static final int bodyOffset = 44; // magic, version, sha-256 key, strings offset
+
+	private static final int envShared = 0;
+	private static final int envA = 1;
+	private static final int envB = 2;
+
+	private static final int kindUnknown = 0;
+	private static final int kindKnown = 1; // class path
+	private static final int kindInput = 2;
+	private static final int kindArray = 3;
+	private static final int kindDetachedArray = 4; // duplicate from re-entrant array creation, only referenced by its element class
+
+	private static final int flagReal = 1;
+	private static final int flagStatic = 2;
+	private static final int flagNameObfuscated = 4;
+
+	private static final int groupNone = -2;
+	private static final int groupSingleton = -1;
+	private static final Class<?> singletonClass = Collections.singleton(null).getClass();
+
+	private final Map<String, Integer> stringIndex = new LinkedHashMap<>();
+	private final Map<ClassInstance, Integer> classIndex = new IdentityHashMap<>();
+	private final List<Integer> classEnvs = new ArrayList<>();
+	private final Map<MethodInstance, Integer> methodIndex = new IdentityHashMap<>();
+	private final Map<FieldInstance, Integer> fieldIndex = new IdentityHashMap<>();
+	private final Map<Set<MethodInstance>, Integer> groupIndex = new IdentityHashMap<>();
+	private final List<Set<MethodInstance>> groups = new ArrayList<>();
+	private final Set<ClassInstance> detachedArrays = Util.newIdentityHashSet();
+
+	private String[] strings; // read string table
+
+	private final ArrayList<ClassInstance> classes = new ArrayList<>();
+	private final List<MethodInstance> methods = new ArrayList<>();
+	private final List<FieldInstance> fields = new ArrayList<>();
+}
@@ -8,6 +8,7 @@ import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.FieldNode;
 
 import matcher.Util;
+import matcher.classifier.InsnTokens;
 import matcher.type.Signature.FieldSignature;
 
 public class FieldInstance extends MemberInstance<FieldInstance> {
@@ -86,6 +87,19 @@ public class FieldInstance extends MemberInstance<FieldInstance> {
 		return initializer;
 	}
 
+	/**
+	 * Get the initializer instructions encoded for comparison, null if there is no initializer.
+	 */
+	public InsnTokens getInitializerTokens() {
+		InsnTokens ret = initializerTokens;
+
+		if (ret == null && initializer != null) {
+			initializerTokens = ret = InsnTokens.create(initializer, getEnv());
+		}
+
+		return ret;
+	}
+
 	public Set<MethodInstance> getReadRefs() {
 		return readRefs;
 	}
@@ -111,7 +125,8 @@ public class FieldInstance extends MemberInstance<FieldInstance> {
 	ClassInstance exactType;
 	private final FieldSignature signature;
 	List<AbstractInsnNode> initializer;
+	private volatile InsnTokens initializerTokens;
 
-	final Set<MethodInstance> readRefs = Util.newIdentityHashSet();
-	final Set<MethodInstance> writeRefs = Util.newIdentityHashSet();
+	final Set<MethodInstance> readRefs = Util.newConcurrentIdentityHashSet();
+	final Set<MethodInstance> writeRefs = Util.newConcurrentIdentityHashSet();
 }
@@ -3,9 +3,12 @@ package matcher.type;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -15,7 +18,7 @@ public class InputFile {
 		try {
 			this.path = path;
 			this.fileName = getSanitizedFileName(path);
-			this.size = Files.size(path);
+			this.size = getSize(path);
 			this.sha256 = hash(path);
 		} catch (IOException e) {
 			throw new UncheckedIOException(e);
@@ -46,7 +49,7 @@ public class InputFile {
 			if (this.path != null) return Files.isSameFile(path, this.path);
 
 			if (!getSanitizedFileName(path).equals(fileName)) return false;
-			if (size != -1 && Files.size(path) != size) return false;
+			if (size != -1 && getSize(path) != size) return false;
 
 			return sha256 == null || Arrays.equals(sha256, hash(path));
 		} catch (IOException e) {
@@ -54,26 +57,97 @@ public class InputFile {
 		}
 	}
 
-	private static String getSanitizedFileName(Path path) {
+	/**
+	 * Set the file persisting input hashes across sessions, null to only cache them in memory.
+	 */
+	public static void setHashCacheFile(Path file) {
+		InputHashCache.setFile(file);
+	}
+
+	/**
+	 * Write hashes computed since the last save to the hash cache file, if set.
+	 */
+	public static void saveHashCache() {
+		try {
+			InputHashCache.save();
+		} catch (IOException e) {
+			System.err.println("can't write input hash cache: "+e);
+		}
+	}
+
+	static String getSanitizedFileName(Path path) {
 		return path.getFileName().toString().replace('\n', ' ');
 	}
 
+	/**
+	 * Get the file size, or the total size of the class files for a class directory.
+	 */
+	private static long getSize(Path path) throws IOException {
+		if (!Files.isDirectory(path)) return Files.size(path);
+
+		long ret = 0;
+
+		for (Path file : ClassFileReader.getClassFiles(path)) {
+			ret += Files.size(file);
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Hash the file, or the relative paths and contents of the class files in path order for a class directory.
+	 *
+	 * <p>File hashes are served from the hash cache while the file's size and modification time are unchanged.
+	 */
 	private static byte[] hash(Path path) throws IOException {
 		TlData tlData = InputFile.tlData.get();
-
 		MessageDigest digest = tlData.digest;
-		ByteBuffer buffer = tlData.buffer;
+
+		if (!Files.isDirectory(path)) {
+			Path realPath = path.toRealPath();
+			BasicFileAttributes attrs = Files.readAttributes(realPath, BasicFileAttributes.class);
+			byte[] ret = InputHashCache.get(realPath, attrs);
+			if (ret != null) return ret;
+
+			hash(realPath, digest, tlData.buffer);
+			ret = digest.digest();
+			InputHashCache.put(realPath, attrs, ret);
+
+			return ret;
+		} else {
+			for (Path file : ClassFileReader.getClassFiles(path)) {
+				String name = path.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+				digest.update(name.getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+				hash(file, digest, tlData.buffer);
+			}
+		}
+
+		return digest.digest();
+	}
+
+	private static void hash(Path file, MessageDigest digest, ByteBuffer buffer) throws IOException {
 		buffer.clear();
 
-		try (SeekableByteChannel channel = Files.newByteChannel(path)) {
+		if (Files.size(file) >= minMappedSize) { // large jars, avoids copying through the buffer
+			try (FileChannel channel = FileChannel.open(file)) {
+				long size = channel.size();
+
+				for (long pos = 0; pos < size; pos += maxMappedChunk) {
+					digest.update(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(maxMappedChunk, size - pos)));
+				}
+			}
+
+			return;
+		}
+
+		try (SeekableByteChannel channel = Files.newByteChannel(file)) {
 			while (channel.read(buffer) != -1) {
 				buffer.flip();
 				digest.update(buffer);
 				buffer.clear();
 			}
 		}
-
-		return digest.digest();
 	}
 
 	private static class TlData {
@@ -90,6 +164,8 @@ public class InputFile {
 		final ByteBuffer buffer;
 	}
 
+	private static final long minMappedSize = 1 << 20;
+	private static final long maxMappedChunk = 64 << 20;
 	private static final ThreadLocal<TlData> tlData = ThreadLocal.withInitial(TlData::new);
 
 	public final Path path;
@@ -0,0 +1,75 @@
+package matcher.type;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Index of the files and directories below a list of input directories by file name.
+ *
+ * <p>The directories are walked once, lookups only compare the size and hash of the candidates with the requested
+ * name in directory and walk order.
+ */
+public final class InputFileIndex {
+	public InputFileIndex(List<Path> inputDirs) throws IOException {
+		for (Path inputDir : inputDirs) {
+			try (Stream<Path> stream = Files.walk(inputDir, FileVisitOption.FOLLOW_LINKS)) {
+				stream.forEach(path -> {
+					if (path.getFileName() == null) return; // file system root
+
+					index.computeIfAbsent(InputFile.getSanitizedFileName(path), ignore -> new ArrayList<>()).add(path);
+				});
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	/**
+	 * Find the first indexed path matching inputFile, null if there is none.
+	 */
+	public Path find(InputFile inputFile) throws IOException {
+		try {
+			for (Path path : index.getOrDefault(inputFile.getFileName(), Collections.emptyList())) {
+				if (inputFile.equals(path)) return path;
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Resolve all input files in parallel, failing if any of them can't be found.
+	 */
+	public List<Path> resolve(List<InputFile> inputFiles) throws IOException {
+		try {
+			return inputFiles.parallelStream()
+					.map(inputFile -> {
+						try {
+							Path ret = find(inputFile);
+							if (ret == null) throw new IOException("can't find input "+inputFile.getFileName());
+
+							return ret;
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					})
+					.collect(Collectors.toList());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private final Map<String, List<Path>> index = new HashMap<>();
+}
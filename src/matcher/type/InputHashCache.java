@@ -0,0 +1,154 @@
+package matcher.type;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SHA-256 hashes of regular input files keyed by their real path, size and modification time.
+ *
+ * <p>The hashes are always kept in memory for the process. With a cache file they also persist across sessions, save
+ * merges the entries with the file's current content, drops stale ones and replaces the file atomically.
+ */
+final class InputHashCache {
+	static synchronized void setFile(Path file) {
+		if (file == null ? InputHashCache.file == null : file.equals(InputHashCache.file)) return;
+
+		InputHashCache.file = file;
+		loaded = false;
+	}
+
+	static byte[] get(Path realPath, BasicFileAttributes attrs) {
+		load();
+
+		Entry entry = entries.get(realPath);
+
+		return entry != null && entry.matches(attrs) ? entry.sha256 : null;
+	}
+
+	static void put(Path realPath, BasicFileAttributes attrs, byte[] sha256) {
+		entries.put(realPath, new Entry(attrs.size(), getModificationTime(attrs), sha256));
+		dirty = true;
+	}
+
+	static synchronized void save() throws IOException {
+		if (file == null || !dirty) return;
+
+		dirty = false;
+		readFile(entries); // merge concurrent sessions, keeps our entries
+
+		entries.entrySet().removeIf(e -> !isCurrent(e.getKey(), e.getValue()));
+
+		Path dir = file.toAbsolutePath().getParent();
+		Files.createDirectories(dir);
+		Path tmpFile = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+
+		try {
+			try (BufferedWriter writer = Files.newBufferedWriter(tmpFile)) {
+				Base64.Encoder encoder = Base64.getEncoder();
+
+				for (Map.Entry<Path, Entry> e : entries.entrySet()) {
+					Entry entry = e.getValue();
+					String path = e.getKey().toString();
+					if (path.indexOf('\n') >= 0) continue;
+
+					writer.write(Long.toString(entry.size));
+					writer.write('\t');
+					writer.write(Long.toString(entry.modificationTime));
+					writer.write('\t');
+					writer.write(encoder.encodeToString(entry.sha256));
+					writer.write('\t');
+					writer.write(path);
+					writer.write('\n');
+				}
+			}
+
+			try {
+				Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmpFile);
+		}
+	}
+
+	private static void load() {
+		if (loaded) return;
+
+		synchronized (InputHashCache.class) {
+			if (loaded) return;
+
+			try {
+				if (file != null) readFile(entries);
+			} catch (IOException | RuntimeException e) {
+				System.err.println("can't read input hash cache "+file+": "+e);
+			}
+
+			loaded = true;
+		}
+	}
+
+	/**
+	 * Read the cache file, adding entries for paths that aren't in out yet.
+	 */
+	private static void readFile(Map<Path, Entry> out) throws IOException {
+		if (!Files.exists(file)) return;
+
+		Base64.Decoder decoder = Base64.getDecoder();
+
+		try (BufferedReader reader = Files.newBufferedReader(file)) {
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split("\t", 4);
+				if (parts.length != 4) throw new IOException("invalid input hash cache line: "+line);
+
+				out.putIfAbsent(Paths.get(parts[3]), new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1]), decoder.decode(parts[2])));
+			}
+		}
+	}
+
+	private static boolean isCurrent(Path path, Entry entry) {
+		try {
+			return entry.matches(Files.readAttributes(path, BasicFileAttributes.class));
+		} catch (IOException e) { // deleted or inaccessible
+			return false;
+		}
+	}
+
+	private static long getModificationTime(BasicFileAttributes attrs) {
+		return attrs.lastModifiedTime().to(TimeUnit.MICROSECONDS);
+	}
+
+	private static final class Entry {
+		Entry(long size, long modificationTime, byte[] sha256) {
+			this.size = size;
+			this.modificationTime = modificationTime;
+			this.sha256 = sha256;
+		}
+
+		boolean matches(BasicFileAttributes attrs) {
+			return attrs.isRegularFile() && attrs.size() == size && getModificationTime(attrs) == modificationTime;
+		}
+
+		final long size;
+		final long modificationTime; // microseconds since the epoch
+		final byte[] sha256;
+	}
+
+	private static final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+	private static Path file;
+	private static volatile boolean loaded;
+	private static volatile boolean dirty;
+}
@@ -14,6 +14,9 @@ import org.objectweb.asm.tree.LocalVariableNode;
 import org.objectweb.asm.tree.MethodNode;
 
 import matcher.Util;
+import matcher.classifier.InsnTokens;
+import matcher.classifier.NumericConstants;
+import matcher.classifier.OpcodeHistogram;
 import matcher.type.Signature.MethodSignature;
 
 public class MethodInstance extends MemberInstance<MethodInstance> {
@@ -270,6 +273,61 @@ public class MethodInstance extends MemberInstance<MethodInstance> {
 		return classRefs;
 	}
 
+	/**
+	 * Get the MinHash sketch of the method's code, see {@link matcher.classifier.CodeSketch}.
+	 *
+	 * @return sketch or null if the method has no code or isn't an input
+	 */
+	public int[] getCodeSketch() {
+		return codeSketch;
+	}
+
+	/**
+	 * Get the sorted ids of the string constants used by the method's code, see {@link StringDictionary}.
+	 */
+	public int[] getStringIds() {
+		return stringIds;
+	}
+
+	/**
+	 * Get the numeric constants used by the method's code, null if it has no code.
+	 */
+	public NumericConstants getNumericConstants() {
+		NumericConstants ret = numericConstants;
+
+		if (ret == null && asmNode != null) {
+			numericConstants = ret = NumericConstants.create(asmNode);
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Get the opcode frequencies of the method's instructions, null if it has no code.
+	 */
+	public OpcodeHistogram getOpcodeHistogram() {
+		OpcodeHistogram ret = opcodeHistogram;
+
+		if (ret == null && asmNode != null) {
+			opcodeHistogram = ret = OpcodeHistogram.create(asmNode.instructions);
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Get the method's instructions encoded for comparison, null if it has no code.
+	 */
+	public InsnTokens getInsnTokens() {
+		InsnTokens ret = insnTokens;
+
+		if (ret == null && asmNode != null) {
+			insnTokens = ret = InsnTokens.create(asmNode.instructions, getEnv());
+		}
+
+		return ret;
+	}
+
 	@Override
 	public String getUidString() {
 		int uid = getUid();
@@ -290,9 +348,14 @@ public class MethodInstance extends MemberInstance<MethodInstance> {
 	MethodVarInstance[] vars;
 	final MethodSignature signature;
 
-	final Set<MethodInstance> refsIn = Util.newIdentityHashSet();
+	final Set<MethodInstance> refsIn = Util.newConcurrentIdentityHashSet();
 	final Set<MethodInstance> refsOut = Util.newIdentityHashSet();
 	final Set<FieldInstance> fieldReadRefs = Util.newIdentityHashSet();
 	final Set<FieldInstance> fieldWriteRefs = Util.newIdentityHashSet();
 	final Set<ClassInstance> classRefs = Util.newIdentityHashSet();
+	int[] codeSketch;
+	int[] stringIds = StringDictionary.noIds;
+	volatile NumericConstants numericConstants;
+	private volatile OpcodeHistogram opcodeHistogram;
+	private volatile InsnTokens insnTokens;
 }
@@ -0,0 +1,23 @@
+package matcher.type;
+
+import org.objectweb.asm.ClassReader;
+
+/**
+ * How much of a class file gets parsed into its ClassNode.
+ */
+public enum ParseDepth {
+	/**
+	 * Everything including method bodies, debug info and expanded frames.
+	 */
+	FULL(ClassReader.EXPAND_FRAMES),
+	/**
+	 * Class header, members, signatures and annotations, the method bodies get loaded on demand.
+	 */
+	MEMBERS(ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+
+	private ParseDepth(int readerFlags) {
+		this.readerFlags = readerFlags;
+	}
+
+	public final int readerFlags;
+}
@@ -0,0 +1,497 @@
+package matcher.type;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.InnerClassNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Classes of the running JDK's runtime image, shared by all environments of the process.
+ *
+ * <p>The jrt image is indexed by package on first use, older JDKs fall back to the boot and extension class path.
+ * Each class is parsed once into a compact digest of its header, member declarations and argument names, later
+ * lookups decode a ClassNode without code from it. With a digest dir the digests persist per JDK version across
+ * sessions.
+ */
+public final class RuntimeClassIndex {
+	/**
+	 * Set the directory persisting the class digests, null to only keep them in memory.
+	 */
+	public static synchronized void setDigestDir(Path dir) {
+		Path file = dir != null ? dir.resolve("runtime-"+getKeyHash()+".digest") : null;
+		if (file == null ? digestFile == null : file.equals(digestFile)) return;
+
+		digestFile = file;
+		loaded = false;
+	}
+
+	/**
+	 * Get a runtime class by name, null if the runtime doesn't provide it.
+	 */
+	static RuntimeClass get(String name) {
+		load();
+
+		byte[] digest = digests.get(name);
+
+		try {
+			if (digest == null) {
+				digest = createDigest(name);
+				if (digest == null) return null;
+
+				byte[] prev = digests.putIfAbsent(name, digest);
+
+				if (prev != null) {
+					digest = prev;
+				} else {
+					dirty = true;
+				}
+			}
+
+			return decode(digest);
+		} catch (IOException e) {
+			throw new RuntimeException("can't read runtime class "+name, e);
+		}
+	}
+
+	static synchronized void save() {
+		if (digestFile == null || !dirty) return;
+
+		try {
+			dirty = false;
+			readFile(digests); // merge concurrent sessions, keeps our entries
+
+			Path dir = digestFile.toAbsolutePath().getParent();
+			Files.createDirectories(dir);
+			Path tmpFile = Files.createTempFile(dir, digestFile.getFileName().toString(), ".tmp");
+
+			try {
+				try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+					out.writeInt(magic);
+					out.writeInt(version);
+					writeString(getKey(), out);
+
+					Map<String, byte[]> digests = new HashMap<>(RuntimeClassIndex.digests);
+					out.writeInt(digests.size());
+
+					for (Map.Entry<String, byte[]> entry : digests.entrySet()) {
+						writeString(entry.getKey(), out);
+						out.writeInt(entry.getValue().length);
+						out.write(entry.getValue());
+					}
+				}
+
+				try {
+					Files.move(tmpFile, digestFile, StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(tmpFile, digestFile, StandardCopyOption.REPLACE_EXISTING);
+				}
+			} finally {
+				Files.deleteIfExists(tmpFile);
+			}
+		} catch (IOException e) {
+			System.err.println("can't write runtime class digests "+digestFile+": "+e);
+		}
+	}
+
+	private static void load() {
+		if (loaded) return;
+
+		synchronized (RuntimeClassIndex.class) {
+			if (loaded) return;
+
+			try {
+				if (digestFile != null) readFile(digests);
+			} catch (IOException | RuntimeException e) {
+				System.err.println("can't read runtime class digests "+digestFile+": "+e);
+			}
+
+			loaded = true;
+		}
+	}
+
+	/**
+	 * Read the digest file, adding entries for classes that aren't in out yet.
+	 */
+	private static void readFile(Map<String, byte[]> out) throws IOException {
+		if (!Files.exists(digestFile)) return;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(digestFile)))) {
+			if (in.readInt() != magic || in.readInt() != version) throw new IOException("invalid header");
+			if (!getKey().equals(readString(in))) return; // different runtime with the same key hash
+
+			for (int i = in.readInt(); i > 0; i--) {
+				String name = readString(in);
+				byte[] digest = new byte[in.readInt()];
+				in.readFully(digest);
+
+				out.putIfAbsent(name, digest);
+			}
+		}
+	}
+
+	/**
+	 * Locate and parse a runtime class, returning its digest or null if there is no such class.
+	 */
+	private static byte[] createDigest(String name) throws IOException {
+		URI uri;
+		byte[] data;
+		Map<String, List<String>> packageModules = getPackageModules();
+
+		if (packageModules != null) {
+			int pos = name.lastIndexOf('/');
+			List<String> modules = pos > 0 ? packageModules.get(name.substring(0, pos)) : null;
+			if (modules == null) return null;
+
+			Path file = null;
+
+			for (String module : modules) {
+				Path path = jrtFs.getPath("/modules", module, name+".class");
+
+				if (Files.isRegularFile(path)) {
+					file = path;
+					break;
+				}
+			}
+
+			if (file == null) return null;
+
+			uri = file.toUri();
+			data = Files.readAllBytes(file);
+		} else {
+			ClassLoader loader = ClassLoader.getSystemClassLoader().getParent(); // delegates to the boot loader
+			URL url = loader != null ? loader.getResource(name+".class") : null;
+			if (url == null) return null;
+
+			try (InputStream is = url.openStream()) {
+				ByteArrayOutputStream os = new ByteArrayOutputStream();
+				byte[] buffer = new byte[8192];
+				int len;
+
+				while ((len = is.read(buffer)) >= 0) {
+					os.write(buffer, 0, len);
+				}
+
+				uri = url.toURI();
+				data = os.toByteArray();
+			} catch (URISyntaxException e) {
+				throw new IOException(e);
+			}
+		}
+
+		return encode(uri, ClassEnvironment.readClass(data));
+	}
+
+	/**
+	 * Get the modules by internal package name from the jrt image, null if the runtime has none.
+	 */
+	private static synchronized Map<String, List<String>> getPackageModules() throws IOException {
+		if (packageModulesInitialized) return packageModules;
+
+		packageModulesInitialized = true;
+
+		try {
+			jrtFs = FileSystems.getFileSystem(URI.create("jrt:/"));
+		} catch (RuntimeException e) { // pre java 9 runtime without jrt provider
+			return null;
+		}
+
+		Map<String, List<String>> ret = new HashMap<>();
+
+		try (DirectoryStream<Path> packages = Files.newDirectoryStream(jrtFs.getPath("/packages"))) {
+			for (Path pkg : packages) {
+				List<String> modules = new ArrayList<>(1);
+
+				try (DirectoryStream<Path> moduleLinks = Files.newDirectoryStream(pkg)) {
+					for (Path module : moduleLinks) {
+						modules.add(module.getFileName().toString());
+					}
+				}
+
+				Collections.sort(modules);
+				ret.put(pkg.getFileName().toString().replace('.', '/'), modules);
+			}
+		}
+
+		packageModules = ret;
+
+		return ret;
+	}
+
+	private static byte[] encode(URI uri, ClassNode cn) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(os);
+
+		writeString(uri.toString(), out);
+		out.writeInt(cn.version);
+		out.writeInt(cn.access);
+		writeString(cn.name, out);
+		writeString(cn.superName, out);
+		writeString(cn.signature, out);
+		writeString(cn.outerClass, out);
+		writeString(cn.outerMethod, out);
+		writeString(cn.outerMethodDesc, out);
+
+		out.writeInt(cn.interfaces.size());
+
+		for (String iface : cn.interfaces) {
+			writeString(iface, out);
+		}
+
+		InnerClassNode self = null; // only the own entry is needed to determine the outer class
+
+		for (InnerClassNode icn : cn.innerClasses) {
+			if (icn.name.equals(cn.name)) {
+				self = icn;
+				break;
+			}
+		}
+
+		out.writeBoolean(self != null);
+
+		if (self != null) {
+			writeString(self.outerName, out);
+			writeString(self.innerName, out);
+			out.writeInt(self.access);
+		}
+
+		out.writeInt(cn.methods.size());
+
+		for (MethodNode mn : cn.methods) {
+			out.writeInt(mn.access);
+			writeString(mn.name, out);
+			writeString(mn.desc, out);
+			writeString(mn.signature, out);
+
+			out.writeInt(mn.exceptions.size());
+
+			for (String exc : mn.exceptions) {
+				writeString(exc, out);
+			}
+
+			// local variables starting at the first instruction, i.e. this and the args
+			List<LocalVariableNode> args = new ArrayList<>();
+			AbstractInsnNode firstInsn = mn.instructions.getFirst();
+
+			if (mn.localVariables != null && firstInsn != null) {
+				for (LocalVariableNode lv : mn.localVariables) {
+					if (lv.start == firstInsn) args.add(lv);
+				}
+			}
+
+			out.writeInt(args.size());
+
+			for (LocalVariableNode lv : args) {
+				out.writeInt(lv.index);
+				writeString(lv.name, out);
+				writeString(lv.desc, out);
+			}
+		}
+
+		out.writeInt(cn.fields.size());
+
+		for (FieldNode fn : cn.fields) {
+			out.writeInt(fn.access);
+			writeString(fn.name, out);
+			writeString(fn.desc, out);
+			writeString(fn.signature, out);
+
+			Object value = fn.value;
+
+			if (value instanceof Integer) {
+				out.writeByte(valueInt);
+				out.writeInt((Integer) value);
+			} else if (value instanceof Long) {
+				out.writeByte(valueLong);
+				out.writeLong((Long) value);
+			} else if (value instanceof Float) {
+				out.writeByte(valueFloat);
+				out.writeFloat((Float) value);
+			} else if (value instanceof Double) {
+				out.writeByte(valueDouble);
+				out.writeDouble((Double) value);
+			} else if (value instanceof String) {
+				out.writeByte(valueString);
+				writeString((String) value, out);
+			} else {
+				out.writeByte(valueNone);
+			}
+		}
+
+		out.flush();
+
+		return os.toByteArray();
+	}
+
+	private static RuntimeClass decode(byte[] digest) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(digest));
+
+		URI uri = URI.create(readString(in));
+		ClassNode cn = new ClassNode();
+		cn.version = in.readInt();
+		cn.access = in.readInt();
+		cn.name = readString(in);
+		cn.superName = readString(in);
+		cn.signature = readString(in);
+		cn.outerClass = readString(in);
+		cn.outerMethod = readString(in);
+		cn.outerMethodDesc = readString(in);
+
+		for (int i = in.readInt(); i > 0; i--) {
+			cn.interfaces.add(readString(in));
+		}
+
+		if (in.readBoolean()) {
+			cn.innerClasses.add(new InnerClassNode(cn.name, readString(in), readString(in), in.readInt()));
+		}
+
+		for (int i = in.readInt(); i > 0; i--) {
+			int access = in.readInt();
+			String name = readString(in);
+			String desc = readString(in);
+			String signature = readString(in);
+			String[] exceptions = new String[in.readInt()];
+
+			for (int j = 0; j < exceptions.length; j++) {
+				exceptions[j] = readString(in);
+			}
+
+			MethodNode mn = new MethodNode(access, name, desc, signature, exceptions);
+			int argCount = in.readInt();
+
+			if (argCount > 0) {
+				// a single label as the code, the args start at the first instruction like in the class file
+				LabelNode start = new LabelNode();
+				mn.instructions.add(start);
+				if (mn.localVariables == null) mn.localVariables = new ArrayList<>(argCount);
+
+				for (int j = 0; j < argCount; j++) {
+					int index = in.readInt();
+					mn.localVariables.add(new LocalVariableNode(readString(in), readString(in), null, start, start, index));
+				}
+			}
+
+			cn.methods.add(mn);
+		}
+
+		for (int i = in.readInt(); i > 0; i--) {
+			int access = in.readInt();
+			String name = readString(in);
+			String desc = readString(in);
+			String signature = readString(in);
+			Object value;
+
+			switch (in.readByte()) {
+			case valueNone: value = null; break;
+			case valueInt: value = in.readInt(); break;
+			case valueLong: value = in.readLong(); break;
+			case valueFloat: value = in.readFloat(); break;
+			case valueDouble: value = in.readDouble(); break;
+			case valueString: value = readString(in); break;
+			default: throw new IOException("invalid field value type");
+			}
+
+			cn.fields.add(new FieldNode(access, name, desc, signature, value));
+		}
+
+		return new RuntimeClass(uri, cn);
+	}
+
+	private static void writeString(String str, DataOutput out) throws IOException {
+		if (str == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] data = str.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(data.length);
+			out.write(data);
+		}
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		int len = in.readInt();
+		if (len < 0) return null;
+
+		byte[] data = new byte[len];
+		in.readFully(data);
+
+		return new String(data, StandardCharsets.UTF_8);
+	}
+
+	private static String getKey() {
+		return System.getProperty("java.home")+"\n"+System.getProperty("java.vendor")+"\n"+System.getProperty("java.runtime.version", System.getProperty("java.version"));
+	}
+
+	private static String getKeyHash() {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(getKey().getBytes(StandardCharsets.UTF_8));
+			StringBuilder ret = new StringBuilder(16);
+
+			for (int i = 0; i < 8; i++) {
+				ret.append(String.format("%02x", hash[i]));
+			}
+
+			return ret.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static final class RuntimeClass {
+		RuntimeClass(URI uri, ClassNode node) {
+			this.uri = uri;
+			this.node = node;
+		}
+
+		final URI uri;
+		final ClassNode node; // without code, owned by the caller
+	}
+
+	private static final int magic = 0x4d52434c;
+	private static final int version = 1;
+	private static final byte valueNone = 0;
+	private static final byte valueInt = 1;
+	private static final byte valueLong = 2;
+	private static final byte valueFloat = 3;
+	private static final byte valueDouble = 4;
+	private static final byte valueString = 5;
+
+	private static final Map<String, byte[]> digests = new ConcurrentHashMap<>();
+	private static Path digestFile;
+	private static volatile boolean loaded;
+	private static volatile boolean dirty;
+	private static boolean packageModulesInitialized;
+	private static Map<String, List<String>> packageModules;
+	private static FileSystem jrtFs;
+}
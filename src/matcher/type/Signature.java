@@ -75,6 +75,13 @@ public class Signature {
 					&& Signature.isPotentiallyEqual(superInterfaceSignatures, o.superInterfaceSignatures);
 		}
 
+		@Override
+		public void addClasses(Collection<ClassInstance> out) {
+			Signature.addClasses(typeParameters, out);
+			superClassSignature.addClasses(out);
+			Signature.addClasses(superInterfaceSignatures, out);
+		}
+
 		// [<
 		List<TypeParameter> typeParameters;
 		// >]
@@ -137,6 +144,12 @@ public class Signature {
 					&& Signature.isPotentiallyEqual(interfaceBounds, o.interfaceBounds);
 		}
 
+		@Override
+		public void addClasses(Collection<ClassInstance> out) {
+			Signature.addClasses(classBound, out);
+			Signature.addClasses(interfaceBounds, out);
+		}
+
 		String identifier;
 		// :[
 		ReferenceTypeSignature classBound;
@@ -195,6 +208,12 @@ public class Signature {
 			}
 		}
 
+		@Override
+		public void addClasses(Collection<ClassInstance> out) {
+			Signature.addClasses(cls, out);
+			Signature.addClasses(arrayElemCls, out);
+		}
+
 		ClassTypeSignature cls;
 		// | (T
 		String var;
@@ -269,6 +288,13 @@ public class Signature {
 					&& Signature.isPotentiallyEqual(suffixes, o.suffixes);
 		}
 
+		@Override
+		public void addClasses(Collection<ClassInstance> out) {
+			out.add(cls);
+			Signature.addClasses(typeArguments, out);
+			Signature.addClasses(suffixes, out);
+		}
+
 		ClassInstance cls;
 		List<TypeArgument> typeArguments;
 		List<SimpleClassTypeSignature> suffixes;
@@ -312,6 +338,11 @@ public class Signature {
 			}
 		}
 
+		@Override
+		public void addClasses(Collection<ClassInstance> out) {
+			Signature.addClasses(cls, out);
+		}
+
 		ReferenceTypeSignature cls;
 		// |
 		char baseType; // B C D F I J S Z
@@ -389,6 +420,11 @@ public class Signature {
 					&&*/ Signature.isPotentiallyEqual(typeArguments, o.typeArguments);
 		}
 
+		@Override
+		public void addClasses(Collection<ClassInstance> out) {
+			Signature.addClasses(typeArguments, out);
+		}
+
 		String identifier;
 		// [<
 		List<TypeArgument> typeArguments;
@@ -436,6 +472,11 @@ public class Signature {
 					&& Signature.isPotentiallyEqual(cls, o.cls);
 		}
 
+		@Override
+		public void addClasses(Collection<ClassInstance> out) {
+			Signature.addClasses(cls, out);
+		}
+
 		// [
 		char wildcardIndicator; // + (extends) or - (super) if present, otherwise 0
 		// ]
@@ -539,6 +580,14 @@ public class Signature {
 					&& Signature.isPotentiallyEqual(throwsSignatures, o.throwsSignatures);
 		}
 
+		@Override
+		public void addClasses(Collection<ClassInstance> out) {
+			Signature.addClasses(typeParameters, out);
+			Signature.addClasses(args, out);
+			Signature.addClasses(result, out);
+			Signature.addClasses(throwsSignatures, out);
+		}
+
 		// [<
 		List<TypeParameter> typeParameters;
 		// >]\(
@@ -596,6 +645,11 @@ public class Signature {
 			}
 		}
 
+		@Override
+		public void addClasses(Collection<ClassInstance> out) {
+			Signature.addClasses(cls, out);
+		}
+
 		// ^(
 		ClassTypeSignature cls;
 		// | (T
@@ -631,6 +685,11 @@ public class Signature {
 			return cls.isPotentiallyEqual(o.cls);
 		}
 
+		@Override
+		public void addClasses(Collection<ClassInstance> out) {
+			cls.addClasses(out);
+		}
+
 		ReferenceTypeSignature cls;
 	}
 
@@ -654,6 +713,18 @@ public class Signature {
 		return true;
 	}
 
+	private static void addClasses(PotentialComparable<?> element, Collection<ClassInstance> out) {
+		if (element != null) element.addClasses(out);
+	}
+
+	private static void addClasses(List<? extends PotentialComparable<?>> list, Collection<ClassInstance> out) {
+		if (list == null) return;
+
+		for (PotentialComparable<?> element : list) {
+			element.addClasses(out);
+		}
+	}
+
 	private static class MutableInt {
 		@Override
 		public String toString() {
@@ -665,5 +736,10 @@ public class Signature {
 
 	private static interface PotentialComparable<T> {
 		boolean isPotentiallyEqual(T o);
+
+		/**
+		 * Add the classes whose match state isPotentiallyEqual depends on.
+		 */
+		void addClasses(Collection<ClassInstance> out);
 	}
 }
@@ -0,0 +1,95 @@
+package matcher.type;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary assigning int ids to the string constants of both environments.
+ *
+ * <p>String constant sets are stored as sorted id arrays, which are compact and can be compared without
+ * allocating, see {@link matcher.classifier.ClassifierUtil#compareSortedSets(int[], int[])}.
+ */
+public final class StringDictionary {
+	public int getId(String str) {
+		Integer ret = ids.get(str); // lock free for known strings, e.g. lookups while ranking
+
+		if (ret == null) {
+			synchronized (this) {
+				ret = ids.get(str);
+
+				if (ret == null) {
+					ret = strings.size();
+					strings.add(str); // before publishing the id so get(ret) can't miss it
+					ids.put(str, ret);
+				}
+			}
+		}
+
+		return ret;
+	}
+
+	public synchronized String get(int id) {
+		return strings.get(id);
+	}
+
+	public synchronized int size() {
+		return strings.size();
+	}
+
+	/**
+	 * Get the sorted distinct ids for the supplied strings, adding them to the dictionary as needed.
+	 */
+	public int[] getIds(Collection<String> strs) {
+		if (strs.isEmpty()) return noIds;
+
+		int[] ret = new int[strs.size()];
+		int count = 0;
+
+		synchronized (this) { // lock once for all strings, the extraction passes intern concurrently
+			for (String str : strs) {
+				ret[count++] = getId(str);
+			}
+		}
+
+		return sortDistinct(ret);
+	}
+
+	/**
+	 * Merge two sorted distinct id arrays into one.
+	 */
+	public static int[] union(int[] a, int[] b) {
+		if (a.length == 0) return b;
+		if (b.length == 0) return a;
+
+		int[] ret = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, ret, a.length, b.length);
+
+		return sortDistinct(ret);
+	}
+
+	private static int[] sortDistinct(int[] ids) {
+		Arrays.sort(ids);
+
+		int count = 0;
+
+		for (int i = 0; i < ids.length; i++) {
+			if (i == 0 || ids[i] != ids[i - 1]) ids[count++] = ids[i];
+		}
+
+		return count == ids.length ? ids : Arrays.copyOf(ids, count);
+	}
+
+	public synchronized void clear() {
+		ids.clear();
+		strings.clear();
+	}
+
+	public static final int[] noIds = new int[0];
+
+	private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+	private final List<String> strings = new ArrayList<>();
+}